@@ -0,0 +1,35 @@
+/**
+ *
+ */
+package org.theseed.config.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * This is the main program for the benchmark suite. It runs all the benchmarks in this package
+ * and writes the results in JSON format so they can be compared between runs.
+ *
+ * The first positional parameter is the name of the result file (default "jmh-result.json").
+ * The second, if present, is a regular expression for selecting the benchmarks to run.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws RunnerException {
+		String resultFile = (args.length > 0 ? args[0] : "jmh-result.json");
+		String pattern = (args.length > 1 ? args[1] : BenchmarkMain.class.getPackageName() + ".*");
+		Options opts = new OptionsBuilder()
+				.include(pattern)
+				.resultFormat(ResultFormatType.JSON)
+				.result(resultFile)
+				.build();
+		new Runner(opts).run();
+	}
+
+}
@@ -0,0 +1,86 @@
+/**
+ *
+ */
+package org.theseed.config.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.theseed.config.git.BranchCache;
+import org.theseed.config.git.GitRepo;
+
+/**
+ * These benchmarks measure remote branch resolution for a repo with many remote-tracking
+ * branches, both with an empty branch cache and with a warm one.
+ *
+ * @author Bruce Parrello
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BranchBenchmark {
+
+	// FIELDS
+	/** number of remote-tracking branches */
+	@Param({"10", "100", "500"})
+	public int branches;
+	/** synthetic code base */
+	private SyntheticCodeBase synthetic;
+	/** JGit object for the test repo */
+	private Git git;
+	/** warm branch cache */
+	private BranchCache warmCache;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException, GitAPIException {
+		this.synthetic = new SyntheticCodeBase(1, 0, this.branches);
+		this.git = Git.open(this.synthetic.getTopProjects().get(0));
+		this.warmCache = new BranchCache();
+		GitRepo.setBranchCache(this.warmCache);
+		GitRepo.computeBranch(this.git, "origin");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		this.git.close();
+		this.synthetic.close();
+	}
+
+	/**
+	 * Compute the branch with an empty cache.
+	 */
+	@Benchmark
+	public String computeBranchCold() {
+		GitRepo.setBranchCache(new BranchCache());
+		return GitRepo.computeBranch(this.git, "origin");
+	}
+
+	/**
+	 * Compute the branch with a cache that already holds the answer.
+	 */
+	@Benchmark
+	public String computeBranchWarm() {
+		GitRepo.setBranchCache(this.warmCache);
+		return GitRepo.computeBranch(this.git, "origin");
+	}
+
+}
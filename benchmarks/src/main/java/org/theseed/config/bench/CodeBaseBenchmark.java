@@ -0,0 +1,122 @@
+/**
+ *
+ */
+package org.theseed.config.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.theseed.config.git.CodeBase;
+import org.theseed.config.git.GitRepo;
+
+/**
+ * These benchmarks measure code base scanning and repo construction on a synthetic code base.
+ *
+ * @author Bruce Parrello
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodeBaseBenchmark {
+
+	// FIELDS
+	/** number of top-level projects */
+	@Param({"20", "100"})
+	public int projects;
+	/** depth of the submodule tree under each project */
+	@Param({"0", "2"})
+	public int depth;
+	/** synthetic code base */
+	private SyntheticCodeBase synthetic;
+	/** code base manager */
+	private CodeBase codeBase;
+	/** list of projects that have submodule files */
+	private List<File> parents;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException, GitAPIException {
+		this.synthetic = new SyntheticCodeBase(this.projects, this.depth, 0);
+		this.codeBase = new CodeBase(this.synthetic.getMasterDir());
+		this.parents = new ArrayList<File>();
+		Iterator<File> iter = this.codeBase.iterator();
+		while (iter.hasNext()) {
+			File projDir = iter.next();
+			if (new File(projDir, ".gitmodules").exists())
+				this.parents.add(projDir);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		this.synthetic.close();
+	}
+
+	/**
+	 * Traverse the entire code base.
+	 */
+	@Benchmark
+	public int iterate() {
+		int retVal = 0;
+		Iterator<File> iter = this.codeBase.iterator();
+		while (iter.hasNext()) {
+			iter.next();
+			retVal++;
+		}
+		return retVal;
+	}
+
+	/**
+	 * Parse the submodule list of every project that has one.
+	 */
+	@Benchmark
+	public void getSubmodules(Blackhole bh) {
+		for (File parent : this.parents)
+			bh.consume(this.codeBase.getSubmodules(parent));
+	}
+
+	/**
+	 * Construct a repo for a top-level project, which has a normal GIT directory.
+	 */
+	@Benchmark
+	public String openTopRepo() throws IOException {
+		try (GitRepo repo = new GitRepo(this.synthetic.getTopProjects().get(0))) {
+			return repo.toString();
+		}
+	}
+
+	/**
+	 * Construct a repo for a submodule, which requires following a GIT directory pointer.
+	 */
+	@Benchmark
+	public String openSubmoduleRepo() throws IOException {
+		List<File> subs = this.synthetic.getSubmodules();
+		File projDir = (subs.isEmpty() ? this.synthetic.getTopProjects().get(0) : subs.get(0));
+		try (GitRepo repo = new GitRepo(projDir)) {
+			return repo.toString();
+		}
+	}
+
+}
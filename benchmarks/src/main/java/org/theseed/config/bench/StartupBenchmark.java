@@ -0,0 +1,136 @@
+/**
+ *
+ */
+package org.theseed.config.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This benchmark measures the time-to-first-repo for the "pull" command, that is, the time from
+ * launching a fresh JVM until the command starts work on the first project of a synthetic code
+ * base. This covers JVM startup, class loading, and code base setup, which dominate the run time
+ * when there is nothing to pull.
+ *
+ * The command is run from the installed java.config jar, which is "java.config.jar" in the
+ * SEED_JARS directory unless the "startup.jar" system property says otherwise. With class data
+ * sharing on, the archive built by the "cds" profile is used if it exists next to the jar;
+ * otherwise a dynamic archive is created in a temporary directory on the first run and reused
+ * after that.
+ *
+ * @author Bruce Parrello
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StartupBenchmark {
+
+	// FIELDS
+	/** number of top-level projects */
+	@Param({"20"})
+	public int projects;
+	/** "on" to use a class data sharing archive, else "off" */
+	@Param({"off", "on"})
+	public String cds;
+	/** synthetic code base */
+	private SyntheticCodeBase synthetic;
+	/** command to run */
+	private List<String> command;
+	/** temporary directory for a dynamic archive */
+	private File archiveDir;
+	/** log message that indicates the first repo is being processed */
+	private static final String FIRST_REPO_MARKER = "Processing project in";
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException, GitAPIException {
+		this.synthetic = new SyntheticCodeBase(this.projects, 1, 0);
+		File jarFile = new File(System.getProperty("startup.jar",
+				new File(System.getenv("SEED_JARS"), "java.config.jar").toString()));
+		if (! jarFile.canRead())
+			throw new IOException("Cannot find java.config jar " + jarFile + ".");
+		this.command = new ArrayList<String>();
+		this.command.add(new File(System.getProperty("java.home"), "bin/java").toString());
+		this.archiveDir = null;
+		if (this.cds.equals("on")) {
+			File archive = new File(jarFile.getParentFile(), "java.config.jsa");
+			if (archive.canRead())
+				this.command.add("-XX:SharedArchiveFile=" + archive);
+			else {
+				this.archiveDir = Files.createTempDirectory("cds").toFile();
+				this.command.add("-XX:+AutoCreateSharedArchive");
+				this.command.add("-XX:SharedArchiveFile=" + new File(this.archiveDir, "java.config.jsa"));
+			}
+		}
+		this.command.add("-jar");
+		this.command.add(jarFile.toString());
+		this.command.add("pull");
+		this.command.add("origin");
+		this.command.add("--base");
+		this.command.add(this.synthetic.getMasterDir().toString());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		this.synthetic.close();
+		if (this.archiveDir != null)
+			FileUtils.deleteDirectory(this.archiveDir);
+	}
+
+	/**
+	 * Launch the pull command and wait for it to start on the first repo. The process is
+	 * stopped as soon as that happens. It is stopped normally rather than killed, so that a
+	 * dynamic archive still gets written at exit.
+	 *
+	 * @return the log line for the first repo
+	 */
+	@Benchmark
+	public String timeToFirstRepo() throws IOException, InterruptedException {
+		String retVal = null;
+		Process process = new ProcessBuilder(this.command).redirectErrorStream(true).start();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(),
+				StandardCharsets.UTF_8))) {
+			String line = reader.readLine();
+			while (retVal == null && line != null) {
+				if (line.contains(FIRST_REPO_MARKER))
+					retVal = line;
+				else
+					line = reader.readLine();
+			}
+		} finally {
+			process.destroy();
+			if (! process.waitFor(30, TimeUnit.SECONDS))
+				process.destroyForcibly().waitFor();
+		}
+		if (retVal == null)
+			throw new IllegalStateException("Pull command ended without processing a repo.");
+		return retVal;
+	}
+
+}
@@ -0,0 +1,194 @@
+/**
+ *
+ */
+package org.theseed.config.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+/**
+ * This object builds a synthetic code base on local disk for benchmarking. The code base
+ * contains a specified number of top-level projects. Each project has a tree of nested
+ * submodules of the specified depth, with two submodules at each level. Submodules are
+ * laid out the way GIT lays them out, with the GIT directory stored under the parent's
+ * "modules" directory and a ".git" pointer file in the submodule directory. Each top-level
+ * project also has the specified number of remote-tracking branches for "origin", each
+ * pointing to a commit with a different date.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class SyntheticCodeBase implements AutoCloseable {
+
+	// FIELDS
+	/** master directory of the code base */
+	private File masterDir;
+	/** list of top-level project directories */
+	private List<File> topProjects;
+	/** list of submodule directories */
+	private List<File> submodules;
+	/** number of submodules at each level of a project */
+	public static final int FAN_OUT = 2;
+	/** identity used for commits */
+	private static final String IDENT_NAME = "benchmark";
+
+	/**
+	 * Build a synthetic code base in a new temporary directory.
+	 *
+	 * @param projects	number of top-level projects
+	 * @param depth		depth of the submodule tree under each project
+	 * @param branches	number of remote-tracking branches for each top-level project
+	 *
+	 * @throws IOException
+	 * @throws GitAPIException
+	 */
+	public SyntheticCodeBase(int projects, int depth, int branches) throws IOException, GitAPIException {
+		this.masterDir = Files.createTempDirectory("codebase").toFile();
+		this.topProjects = new ArrayList<File>(projects);
+		this.submodules = new ArrayList<File>();
+		for (int i = 0; i < projects; i++) {
+			File projDir = new File(this.masterDir, String.format("proj%04d", i));
+			try (Git git = Git.init().setDirectory(projDir).setInitialBranch("master").call()) {
+				this.buildSubmodules(projDir, git.getRepository().getDirectory(), depth);
+				ObjectId head = commitAll(git, Instant.ofEpochSecond(1_600_000_000L));
+				addRemoteBranches(git.getRepository(), head, branches);
+			}
+			this.topProjects.add(projDir);
+		}
+	}
+
+	/**
+	 * Create the submodules of a project.
+	 *
+	 * @param projDir		project directory
+	 * @param gitDir		GIT directory of the project
+	 * @param depth			number of submodule levels remaining
+	 *
+	 * @throws IOException
+	 * @throws GitAPIException
+	 */
+	private void buildSubmodules(File projDir, File gitDir, int depth) throws IOException, GitAPIException {
+		if (depth > 0) {
+			try (PrintWriter writer = new PrintWriter(new File(projDir, ".gitmodules"))) {
+				for (int i = 0; i < FAN_OUT; i++) {
+					String subName = "sub" + i;
+					writer.println("[submodule \"" + subName + "\"]");
+					writer.println("\tpath = " + subName);
+					writer.println("\turl = https://example.org/" + subName + ".git");
+				}
+			}
+			for (int i = 0; i < FAN_OUT; i++) {
+				String subName = "sub" + i;
+				File subDir = new File(projDir, subName);
+				File subGitDir = new File(gitDir, "modules/" + subName);
+				try (Git git = Git.init().setDirectory(subDir).setGitDir(subGitDir).setRelativeDirs(true)
+						.setInitialBranch("master").call()) {
+					this.buildSubmodules(subDir, subGitDir, depth - 1);
+					commitAll(git, Instant.ofEpochSecond(1_600_000_000L));
+				}
+				this.submodules.add(subDir);
+			}
+		}
+	}
+
+	/**
+	 * Add a file to a repo and commit everything in the work tree.
+	 *
+	 * @param git	repo to update
+	 * @param when	commit time
+	 *
+	 * @return the ID of the new commit
+	 *
+	 * @throws IOException
+	 * @throws GitAPIException
+	 */
+	private static ObjectId commitAll(Git git, Instant when) throws IOException, GitAPIException {
+		File workTree = git.getRepository().getWorkTree();
+		FileUtils.writeStringToFile(new File(workTree, "README"), workTree.getName() + "\n", "UTF-8");
+		git.add().addFilepattern("README").call();
+		if (new File(workTree, ".gitmodules").exists())
+			git.add().addFilepattern(".gitmodules").call();
+		PersonIdent ident = new PersonIdent(IDENT_NAME, "benchmark@example.org", when, ZoneOffset.UTC);
+		RevCommit commit = git.commit().setMessage("initial").setAuthor(ident).setCommitter(ident).call();
+		return commit.getId();
+	}
+
+	/**
+	 * Create remote-tracking branches for a repo. Each branch gets its own commit with a
+	 * different commit date, so that branch resolution has to parse all of them.
+	 *
+	 * @param repo		repository to update
+	 * @param head		commit on which to base the branches
+	 * @param branches	number of branches to create
+	 *
+	 * @throws IOException
+	 */
+	private static void addRemoteBranches(Repository repo, ObjectId head, int branches) throws IOException {
+		try (ObjectInserter inserter = repo.newObjectInserter()) {
+			ObjectId tree = repo.parseCommit(head).getTree().getId();
+			for (int i = 0; i < branches; i++) {
+				PersonIdent ident = new PersonIdent(IDENT_NAME, "benchmark@example.org",
+						Instant.ofEpochSecond(1_600_000_000L + i * 60L), ZoneOffset.UTC);
+				CommitBuilder builder = new CommitBuilder();
+				builder.setTreeId(tree);
+				builder.setParentId(head);
+				builder.setAuthor(ident);
+				builder.setCommitter(ident);
+				builder.setMessage("branch " + i);
+				ObjectId commitId = inserter.insert(builder);
+				inserter.flush();
+				RefUpdate update = repo.updateRef(Constants.R_REMOTES + "origin/branch" + i);
+				update.setNewObjectId(commitId);
+				update.forceUpdate();
+			}
+		}
+	}
+
+	/**
+	 * @return the master directory of the code base
+	 */
+	public File getMasterDir() {
+		return this.masterDir;
+	}
+
+	/**
+	 * @return the list of top-level project directories
+	 */
+	public List<File> getTopProjects() {
+		return this.topProjects;
+	}
+
+	/**
+	 * @return the list of submodule directories
+	 */
+	public List<File> getSubmodules() {
+		return this.submodules;
+	}
+
+	/**
+	 * Delete the code base.
+	 */
+	@Override
+	public void close() throws IOException {
+		FileUtils.deleteDirectory(this.masterDir);
+	}
+
+}
@@ -12,6 +12,22 @@ import org.theseed.basic.BaseProcessor;
  * The sub-commands are as follows:
  *
  * pull		update a single repo
+ * status	check the repos for upstream changes without merging
+ * clone	populate a code base from a manifest of project URLs
+ * verify	check the repos for damage
+ * maintain	pack and prune the repos
+ * changes	list the commits added to the repos since the last report
+ * dirty	list the local changes in the repos' working trees
+ * mirror	update a shared cache of mirror repos and fetch the code base from it
+ * daemon	keep a code base in memory and serve commands over a local socket
+ * client	send a command to a running daemon
+ *
+ * Startup time matters, since most runs have little to do. The processor for a command is only
+ * created when that command is run, so the JGit classes are loaded on demand, and the help and
+ * client paths never load them at all. Building with the "cds" profile also produces a class
+ * data sharing archive next to the jar, which is used by running
+ *
+ *     java -XX:SharedArchiveFile=java.config.jsa -jar java.config.jar ...
  *
  * @author Bruce Parrello
  *
@@ -20,7 +36,16 @@ public class App {
 
     /** static array containing command names and comments */
     protected static final String[] COMMANDS = new String[] {
-            "pull", "update a code base"
+            "pull", "update a code base",
+            "status", "check a code base for upstream changes",
+            "clone", "populate a code base from a manifest",
+            "verify", "check a code base for damaged repos",
+            "maintain", "garbage-collect the repos in a code base",
+            "changes", "list new commits across a code base",
+            "dirty", "list local changes across a code base",
+            "mirror", "fetch a code base through a shared mirror cache",
+            "daemon", "serve commands for a code base kept in memory",
+            "client", "send a command to a running daemon"
     };
 
     public static void main(String[] args) {
@@ -28,23 +53,65 @@ public class App {
         // Get the control parameter.
         String command = args[0];
         String[] newArgs = Arrays.copyOfRange(args, 1, args.length);
-        BaseProcessor processor;
+        if (command.equals("client")) {
+            // The client forwards the command to a daemon without parsing it.
+            System.exit(DaemonClient.run(newArgs));
+        }
+        BaseProcessor processor = createProcessor(command);
+        if (processor == null)
+            BaseProcessor.showCommands(COMMANDS);
+        else {
+            processor.parseCommand(newArgs);
+            processor.run();
+        }
+    }
+
+    /**
+     * Create the command processor for a sub-command.
+     *
+     * @param command	name of the sub-command
+     *
+     * @return the command processor, or NULL if the command is a request for help
+     */
+    public static BaseProcessor createProcessor(String command) {
+        // Only the selected processor class is loaded and initialized, so keep the command
+        // processors out of any static initializers in this class.
+        BaseProcessor retVal;
         switch (command) {
         case "pull" :
-        	processor = new PullProcessor();
+        	retVal = new PullProcessor();
+        	break;
+        case "status" :
+        	retVal = new StatusProcessor();
+        	break;
+        case "clone" :
+        	retVal = new CloneProcessor();
+        	break;
+        case "verify" :
+        	retVal = new VerifyProcessor();
+        	break;
+        case "maintain" :
+        	retVal = new MaintainProcessor();
+        	break;
+        case "changes" :
+        	retVal = new ChangesProcessor();
+        	break;
+        case "dirty" :
+        	retVal = new DirtyProcessor();
+        	break;
+        case "mirror" :
+        	retVal = new MirrorProcessor();
+        	break;
+        case "daemon" :
+        	retVal = new DaemonProcessor();
         	break;
         case "-h" :
         case "--help" :
-            processor = null;
+            retVal = null;
             break;
         default :
             throw new RuntimeException("Invalid command " + command + ".");
         }
-        if (processor == null)
-            BaseProcessor.showCommands(COMMANDS);
-        else {
-            processor.parseCommand(newArgs);
-            processor.run();
-        }
+        return retVal;
     }
 }
@@ -0,0 +1,228 @@
+/**
+ *
+ */
+package org.theseed.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.basic.ParseFailureException;
+import org.theseed.config.git.BaseGitProcessor;
+import org.theseed.config.git.ChangeCheckpoint;
+import org.theseed.config.git.CommitInfo;
+import org.theseed.config.git.RepoSummary;
+
+/**
+ * This command reports the commits added to every repo in a code base since the last time it
+ * was run. The last commit reported for each repo is remembered in the code base state
+ * directory, and only the history added since then is walked. The new commits from all the
+ * repos are merged into a single feed, newest first.
+ *
+ * The first time a repo is seen, its current head is recorded and nothing is reported for it.
+ * If the last commit reported is no longer in a repo, the walk is cut off at the commit limit.
+ *
+ * The feed is tab-delimited, with a header line, and contains the commit time, the repo path
+ * relative to the code base, the author name, the abbreviated commit ID, and the first line of
+ * the commit message.
+ *
+ * The command-line options are as follows:
+ *
+ * -h	display command-line usage
+ * -v	display more frequent log messages
+ *
+ * --base			module directory base (default is value of CODE_BASE (if any), else the current directory)
+ * --rescan			discard the code base index and rescan all the project directories
+ * --metrics		if specified, a JSON or CSV file to contain the per-repo metrics for the run
+ * --hostLimit		maximum number of concurrent remote operations per host (default 4)
+ * --repoCache		maximum number of repositories to keep open for reuse (default 100)
+ * --scanThreads	if nonzero, the number of threads for discovering the project tree up front (default 0)
+ * --stream			release each repo as soon as it is processed, to bound memory use
+ * --timeout			transport timeout for remote operations, in seconds (default 120)
+ * --retries			maximum number of retries for a remote operation that fails for a transient reason (default 2)
+ * --breaker			number of consecutive failures that causes a host to be skipped for a minute, or 0 to never skip (default 3)
+ * --parallel		number of repos to scan concurrently (default 4)
+ * --limit			maximum number of commits to report for a single repo (default 100)
+ * --peek			if specified, the checkpoint is not updated, so the same changes will be reported next time
+ * --output			if specified, a file to contain the feed (default is the standard output)
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ChangesProcessor extends BaseGitProcessor {
+
+	// FIELDS
+	/** logging facility */
+	private static final Logger log = LoggerFactory.getLogger(ChangesProcessor.class);
+	/** map of project directories to new commits */
+	private Map<File, List<CommitInfo>> newCommits;
+	/** map of project directories to current heads */
+	private Map<File, ObjectId> newHeads;
+	/** checkpoint from the previous run */
+	private ChangeCheckpoint checkpoint;
+
+	// COMMAND-LINE OPTIONS
+
+	/** number of repos to scan at once */
+	@Option(name = "--parallel", metaVar = "8", usage = "number of repos to scan concurrently")
+	private int parallel;
+
+	/** maximum number of commits per repo */
+	@Option(name = "--limit", metaVar = "500", usage = "maximum number of commits to report for a single repo")
+	private int limit;
+
+	/** if specified, the checkpoint will not be updated */
+	@Option(name = "--peek", usage = "if specified, the checkpoint will not be updated")
+	private boolean peekMode;
+
+	/** optional output file for the feed */
+	@Option(name = "--output", metaVar = "changes.tbl", usage = "optional output file for the feed (default is STDOUT)")
+	private File outFile;
+
+	/**
+	 * This object tracks the position in one repo's list of new commits during the merge.
+	 */
+	private static class FeedCursor {
+
+		/** repo path relative to the code base */
+		private String repoName;
+		/** iterator through the new commits */
+		private Iterator<CommitInfo> iter;
+		/** current commit */
+		private CommitInfo current;
+
+		/**
+		 * Create a cursor for a repo's commits.
+		 *
+		 * @param repoName	repo path relative to the code base
+		 * @param commits	list of new commits, newest first
+		 */
+		private FeedCursor(String repoName, List<CommitInfo> commits) {
+			this.repoName = repoName;
+			this.iter = commits.iterator();
+			this.current = this.iter.next();
+		}
+
+		/**
+		 * Move to the next commit.
+		 *
+		 * @return TRUE if there is a next commit, else FALSE
+		 */
+		private boolean advance() {
+			boolean retVal = this.iter.hasNext();
+			this.current = (retVal ? this.iter.next() : null);
+			return retVal;
+		}
+
+	}
+
+	@Override
+	protected void setGitDefaults() {
+		this.parallel = 4;
+		this.limit = 100;
+		this.peekMode = false;
+		this.outFile = null;
+	}
+
+	@Override
+	protected void validateGitParms() throws IOException, ParseFailureException {
+		if (this.parallel < 1)
+			throw new ParseFailureException("Parallel thread count must be at least 1.");
+		if (this.limit < 1)
+			throw new ParseFailureException("Commit limit must be at least 1.");
+	}
+
+	@Override
+	protected void runGitCommand() throws Exception {
+		this.checkpoint = ChangeCheckpoint.load(this.getStateFile(ChangeCheckpoint.CHECKPOINT_NAME));
+		this.newCommits = new ConcurrentHashMap<File, List<CommitInfo>>();
+		this.newHeads = new ConcurrentHashMap<File, ObjectId>();
+		List<RepoSummary> summaries = this.scheduleRepos(this.parallel, null, x -> this.scanRepo(x));
+		int count = this.writeFeed();
+		log.info("{} new commits found in {} repos.", count, this.newCommits.size());
+		if (! this.peekMode) {
+			for (Map.Entry<File, ObjectId> head : this.newHeads.entrySet())
+				this.checkpoint.update(head.getKey(), head.getValue());
+			this.checkpoint.save();
+		}
+		this.writeSummary("Change summary", summaries);
+	}
+
+	/**
+	 * Find the new commits in a single repo.
+	 *
+	 * @param projFile	project directory
+	 *
+	 * @return a summary of the result
+	 */
+	private RepoSummary scanRepo(File projFile) {
+		return this.processRepo(projFile, (repo, monitor) -> {
+			String retVal;
+			ObjectId head = repo.getHeadId();
+			if (head == null)
+				retVal = "EMPTY";
+			else {
+				ObjectId since = this.checkpoint.get(projFile);
+				if (since == null)
+					retVal = "BASELINE";
+				else if (since.equals(head))
+					retVal = "UNCHANGED";
+				else {
+					List<CommitInfo> commits = repo.findNewCommits(head, since, this.limit);
+					if (! commits.isEmpty())
+						this.newCommits.put(projFile, commits);
+					retVal = commits.size() + " NEW";
+					if (commits.size() >= this.limit)
+						retVal += " (LIMIT REACHED)";
+				}
+				this.newHeads.put(projFile, head);
+			}
+			return retVal;
+		});
+	}
+
+	/**
+	 * Write the merged feed of new commits. Each repo's list is already sorted newest first,
+	 * so we only need to merge the lists.
+	 *
+	 * @return the number of commits written
+	 *
+	 * @throws IOException
+	 */
+	private int writeFeed() throws IOException {
+		int retVal = 0;
+		try (PrintWriter writer = this.openReport(this.outFile)) {
+			Path basePath = this.getBaseDir().getAbsoluteFile().toPath();
+			PriorityQueue<FeedCursor> queue = new PriorityQueue<FeedCursor>(Math.max(1, this.newCommits.size()),
+					Comparator.comparing((FeedCursor x) -> x.current.getTime()).reversed()
+					.thenComparing(x -> x.repoName));
+			for (Map.Entry<File, List<CommitInfo>> repoCommits : this.newCommits.entrySet()) {
+				String repoName = basePath.relativize(repoCommits.getKey().getAbsoluteFile().toPath()).toString();
+				queue.add(new FeedCursor(repoName, repoCommits.getValue()));
+			}
+			writer.println("time\trepo\tauthor\tcommit\tsubject");
+			while (! queue.isEmpty()) {
+				FeedCursor cursor = queue.poll();
+				CommitInfo commit = cursor.current;
+				writer.println(commit.getTime() + "\t" + cursor.repoName + "\t" + commit.getAuthor() + "\t"
+						+ commit.getId() + "\t" + commit.getSubject());
+				retVal++;
+				if (cursor.advance())
+					queue.add(cursor);
+			}
+		}
+		return retVal;
+	}
+
+}
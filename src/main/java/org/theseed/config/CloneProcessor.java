@@ -0,0 +1,223 @@
+/**
+ *
+ */
+package org.theseed.config;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.basic.ParseFailureException;
+import org.theseed.config.git.BaseGitProcessor;
+import org.theseed.config.git.FetchMonitor;
+import org.theseed.config.git.GitRepo;
+import org.theseed.config.git.RepoSummary;
+import org.theseed.io.LineReader;
+
+/**
+ * This command populates a code base from a manifest. The manifest is a tab-delimited file
+ * with one line per top-level project, containing (0) the project name, (1) the remote URL,
+ * and optionally (2) the branch to check out. Blank lines and lines beginning with "#" are
+ * ignored.
+ *
+ * Each project is cloned into the code base directory under its project name, and then its
+ * submodules are initialized and checked out. Projects that already exist are skipped, and a
+ * project that cannot be completely set up is deleted, so that it is cloned again on the next
+ * run. The projects can be cloned concurrently, and the history can be truncated to a fixed
+ * depth. In single-branch mode, only the branch named in the manifest is fetched, which
+ * greatly reduces the transfer for repos with many branches.
+ *
+ * The positional parameter is the name of the manifest file.
+ *
+ * The command-line options are as follows:
+ *
+ * -h	display command-line usage
+ * -v	display more frequent log messages
+ *
+ * --base			module directory base (default is value of CODE_BASE (if any), else the current directory)
+ * --rescan			discard the code base index and rescan all the project directories
+ * --metrics		if specified, a JSON or CSV file to contain the per-repo metrics for the run
+ * --hostLimit		maximum number of concurrent remote operations per host (default 4)
+ * --repoCache		maximum number of repositories to keep open for reuse (default 100)
+ * --scanThreads	if nonzero, the number of threads for discovering the project tree up front (default 0)
+ * --stream			release each repo as soon as it is processed, to bound memory use
+ * --timeout			transport timeout for remote operations, in seconds (default 120)
+ * --retries			maximum number of retries for a remote operation that fails for a transient reason (default 2)
+ * --breaker			number of consecutive failures that causes a host to be skipped for a minute, or 0 to never skip (default 3)
+ * --parallel		number of projects to clone concurrently (default 4)
+ * --depth			number of commits of history to fetch, or 0 for the full history (default 0)
+ * --singleBranch	only fetch the branch specified in the manifest
+ * --remote			name to give the remote in the new repos (default "origin")
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CloneProcessor extends BaseGitProcessor {
+
+	// FIELDS
+	/** logging facility */
+	private static final Logger log = LoggerFactory.getLogger(CloneProcessor.class);
+	/** list of projects to clone */
+	private List<ManifestEntry> entries;
+
+	// COMMAND-LINE OPTIONS
+
+	/** manifest file */
+	@Argument(index = 0, metaVar = "manifest.tbl", usage = "manifest of project names and URLs", required = true)
+	private File manifestFile;
+
+	/** number of projects to clone at once */
+	@Option(name = "--parallel", metaVar = "8", usage = "number of projects to clone concurrently")
+	private int parallel;
+
+	/** depth of history to fetch */
+	@Option(name = "--depth", metaVar = "1", usage = "number of commits of history to fetch (0 for all)")
+	private int depth;
+
+	/** if specified, only the manifest branch will be fetched */
+	@Option(name = "--singleBranch", usage = "if specified, only the branch in the manifest will be fetched")
+	private boolean singleBranch;
+
+	/** name of the remote in the new repos */
+	@Option(name = "--remote", metaVar = "upstream", usage = "name to give the remote in the new repos")
+	private String remoteName;
+
+	/**
+	 * This object describes a single project in the manifest.
+	 */
+	protected static class ManifestEntry {
+
+		/** project name */
+		private String name;
+		/** remote URL */
+		private String url;
+		/** branch to check out, or NULL for the remote default */
+		private String branch;
+
+		/**
+		 * Create a manifest entry.
+		 *
+		 * @param name		project name
+		 * @param url		remote URL
+		 * @param branch	branch to check out, or NULL for the remote default
+		 */
+		protected ManifestEntry(String name, String url, String branch) {
+			this.name = name;
+			this.url = url;
+			this.branch = branch;
+		}
+
+	}
+
+	@Override
+	protected void setGitDefaults() {
+		this.parallel = 4;
+		this.depth = 0;
+		this.singleBranch = false;
+		this.remoteName = "origin";
+	}
+
+	@Override
+	protected void validateGitParms() throws IOException, ParseFailureException {
+		if (this.parallel < 1)
+			throw new ParseFailureException("Parallel thread count must be at least 1.");
+		if (this.depth < 0)
+			throw new ParseFailureException("Clone depth cannot be negative.");
+		if (! this.manifestFile.canRead())
+			throw new FileNotFoundException("Manifest file " + this.manifestFile + " is not found or unreadable.");
+		// Read the manifest.
+		this.entries = new ArrayList<ManifestEntry>();
+		try (LineReader inStream = new LineReader(this.manifestFile)) {
+			int lineNum = 0;
+			for (String line : inStream) {
+				lineNum++;
+				if (! StringUtils.isBlank(line) && ! line.startsWith("#")) {
+					String[] fields = StringUtils.split(line, '\t');
+					if (fields.length < 2 || fields.length > 3)
+						throw new ParseFailureException("Invalid manifest line " + lineNum + " in " + this.manifestFile + ".");
+					String branch = (fields.length > 2 ? fields[2] : null);
+					this.entries.add(new ManifestEntry(fields[0], fields[1], branch));
+				}
+			}
+		}
+		log.info("{} projects found in manifest {}.", this.entries.size(), this.manifestFile);
+	}
+
+	@Override
+	protected void runGitCommand() throws Exception {
+		List<RepoSummary> summaries = new ArrayList<RepoSummary>(this.entries.size());
+		if (this.parallel <= 1 || this.entries.size() <= 1) {
+			for (ManifestEntry entry : this.entries)
+				summaries.add(this.cloneProject(entry));
+		} else {
+			int poolSize = Math.min(this.parallel, this.entries.size());
+			log.info("Cloning {} projects with {} workers.", this.entries.size(), poolSize);
+			ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+			try {
+				List<Future<RepoSummary>> futures = new ArrayList<Future<RepoSummary>>(this.entries.size());
+				for (ManifestEntry entry : this.entries)
+					futures.add(pool.submit(() -> this.cloneProject(entry)));
+				for (Future<RepoSummary> future : futures)
+					summaries.add(future.get());
+			} finally {
+				pool.shutdown();
+			}
+		}
+		this.writeSummary("Clone summary", summaries);
+	}
+
+	/**
+	 * Clone a single project and check out its submodules.
+	 *
+	 * @param entry		manifest entry for the project
+	 *
+	 * @return a summary of the result
+	 */
+	private RepoSummary cloneProject(ManifestEntry entry) {
+		File projDir = new File(this.getBaseDir(), entry.name);
+		RepoSummary retVal;
+		if (projDir.exists())
+			retVal = new RepoSummary(projDir, "EXISTS");
+		else {
+			log.info("Cloning {} from {}.", entry.name, entry.url);
+			long start = System.currentTimeMillis();
+			FetchMonitor monitor = new FetchMonitor();
+			long bytesFetched = 0;
+			try {
+				GitRepo.cloneRepo(entry.url, projDir, this.remoteName, entry.branch, this.depth, this.singleBranch,
+						monitor);
+				try (GitRepo repo = new GitRepo(projDir)) {
+					int subCount = repo.initSubmodules(this.remoteName, monitor);
+					bytesFetched = repo.getPackBytes();
+					String status = "CLONED";
+					if (subCount > 0)
+						status += " (" + subCount + " submodules)";
+					retVal = new RepoSummary(projDir, status);
+				}
+			} catch (Exception e) {
+				log.error("Error cloning {}: {}", entry.name, e.toString());
+				retVal = new RepoSummary(projDir, e);
+				// A failure after the clone itself (for example, in a submodule) leaves a partial
+				// project behind. We delete it so that the next run clones it again instead of
+				// reporting that it exists.
+				FileUtils.deleteQuietly(projDir);
+				if (projDir.exists())
+					log.warn("Could not delete partial project {}.", projDir);
+			}
+			retVal.setMetrics(System.currentTimeMillis() - start, bytesFetched, monitor.getObjectCount());
+		}
+		return retVal;
+	}
+
+}
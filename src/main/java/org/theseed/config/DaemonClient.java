@@ -0,0 +1,78 @@
+/**
+ *
+ */
+package org.theseed.config;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.commons.lang3.StringUtils;
+import org.theseed.config.git.CodeBase;
+
+/**
+ * This is a thin client for the code base daemon. It forwards its command-line arguments to the
+ * daemon without parsing them, and copies the daemon's response to the standard output. None of
+ * the JGit or command-processing classes are loaded, so the client starts very quickly.
+ *
+ * The socket is normally the default daemon socket in the code base state directory, where the
+ * code base is determined the same way as for the other commands (CODE_BASE, or else the current
+ * directory). A different socket can be specified by making the first two arguments "--socket"
+ * and the socket file name.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class DaemonClient {
+
+	/**
+	 * Send a command to the daemon and display the response.
+	 *
+	 * @param args	command-line arguments to forward, optionally preceded by a socket specification
+	 *
+	 * @return the exit code of the command
+	 */
+	public static int run(String[] args) {
+		int retVal = 1;
+		File socketFile;
+		if (args.length >= 2 && args[0].equals("--socket")) {
+			socketFile = new File(args[1]);
+			args = Arrays.copyOfRange(args, 2, args.length);
+		} else {
+			String baseString = System.getenv("CODE_BASE");
+			if (StringUtils.isBlank(baseString))
+				baseString = System.getProperty("user.dir");
+			socketFile = new File(new File(baseString, CodeBase.STATE_DIR_NAME), DaemonProcessor.SOCKET_NAME);
+		}
+		try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+			channel.connect(UnixDomainSocketAddress.of(socketFile.toPath()));
+			DataOutputStream outStream = new DataOutputStream(Channels.newOutputStream(channel));
+			outStream.writeInt(args.length);
+			for (String arg : args)
+				outStream.writeUTF(arg);
+			outStream.flush();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel),
+					StandardCharsets.UTF_8));
+			boolean done = false;
+			for (String line = reader.readLine(); ! done && line != null; line = reader.readLine()) {
+				if (line.startsWith(DaemonProcessor.EXIT_PREFIX)) {
+					retVal = Integer.parseInt(StringUtils.substringAfter(line, DaemonProcessor.EXIT_PREFIX));
+					done = true;
+				} else
+					System.out.println(line);
+			}
+		} catch (IOException e) {
+			System.err.println("Could not communicate with daemon at " + socketFile + ": " + e.toString());
+		}
+		return retVal;
+	}
+
+}
@@ -0,0 +1,205 @@
+/**
+ *
+ */
+package org.theseed.config;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Arrays;
+
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.basic.BaseProcessor;
+import org.theseed.basic.ParseFailureException;
+import org.theseed.config.git.BaseGitProcessor;
+import org.theseed.config.git.CodeBaseWatcher;
+
+import jdk.net.ExtendedSocketOptions;
+
+/**
+ * This command runs a daemon that keeps a code base in memory and serves commands for it over
+ * a Unix-domain socket. The code base, the open repositories, and the remote connections are
+ * all kept between commands, and the code base is watched for projects being added, removed,
+ * or re-configured, so each command can start work immediately.
+ *
+ * Commands are sent by the "client" sub-command. Each request is the full list of command-line
+ * arguments for a sub-command, and the daemon runs the sub-command in-process and sends back
+ * the run summary. Requests are served one at a time. The socket can only be used by the user
+ * running the daemon, since a command runs with the daemon's permissions. The special request "shutdown" stops the
+ * daemon. Commands for a different code base directory are run normally, without the warm state.
+ * The host limit, repository cache size, stream mode, and remote policy of the daemon apply to
+ * every command it runs. If a command specifies any of these options, the client is told they
+ * were ignored.
+ *
+ * The wire protocol is simple. The client sends the number of arguments followed by each
+ * argument, using the data-stream encoding. The daemon responds with lines of UTF-8 text, the
+ * last of which is "#exit" followed by the exit code. A request with an invalid argument count
+ * is rejected without reading the arguments.
+ *
+ * The command-line options are as follows:
+ *
+ * -h	display command-line usage
+ * -v	display more frequent log messages
+ *
+ * --base			module directory base (default is value of CODE_BASE (if any), else the current directory)
+ * --rescan			discard the code base index and rescan all the project directories
+ * --metrics		if specified, a JSON or CSV file to contain the per-repo metrics for the run
+ * --hostLimit		maximum number of concurrent remote operations per host (default 4)
+ * --repoCache		maximum number of repositories to keep open for reuse (default 100)
+ * --scanThreads	if nonzero, the number of threads for discovering the project tree up front (default 0)
+ * --stream			release each repo as soon as it is processed, to bound memory use
+ * --timeout			transport timeout for remote operations, in seconds (default 120)
+ * --retries			maximum number of retries for a remote operation that fails for a transient reason (default 2)
+ * --breaker			number of consecutive failures that causes a host to be skipped for a minute, or 0 to never skip (default 3)
+ * --socket			socket file name (default is "daemon.sock" in the code base state directory)
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class DaemonProcessor extends BaseGitProcessor {
+
+	// FIELDS
+	/** logging facility */
+	private static final Logger log = LoggerFactory.getLogger(DaemonProcessor.class);
+	/** name of the default socket file in the code base state directory */
+	public static final String SOCKET_NAME = "daemon.sock";
+	/** prefix for the final response line containing the exit code */
+	public static final String EXIT_PREFIX = "#exit ";
+	/** request that stops the daemon */
+	public static final String SHUTDOWN = "shutdown";
+	/** maximum number of arguments in a request */
+	public static final int MAX_ARGS = 1000;
+	/** permissions for the socket file */
+	private static final String SOCKET_PERMISSIONS = "rw-------";
+
+	// COMMAND-LINE OPTIONS
+
+	/** socket file name */
+	@Option(name = "--socket", metaVar = "daemon.sock", usage = "socket file for receiving commands")
+	private File socketFile;
+
+	@Override
+	protected void setGitDefaults() {
+		this.socketFile = null;
+	}
+
+	@Override
+	protected void validateGitParms() throws IOException, ParseFailureException {
+		if (this.socketFile == null)
+			this.socketFile = this.getStateFile(SOCKET_NAME);
+	}
+
+	@Override
+	protected void runGitCommand() throws Exception {
+		// Share our code base with the commands we run. The transport and repository pools are
+		// already installed for the life of this command.
+		BaseGitProcessor.setSharedCodeBase(this.getCodeBase());
+		// Remove any socket left behind by a daemon that did not shut down cleanly.
+		Files.deleteIfExists(this.socketFile.toPath());
+		try (CodeBaseWatcher watcher = new CodeBaseWatcher(this.getCodeBase());
+				ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+			// Only our own user may send commands. The socket is made owner-only as soon as it
+			// exists, and since a connection could be made before that, each peer is also checked.
+			Path socketPath = this.socketFile.toPath();
+			server.bind(UnixDomainSocketAddress.of(socketPath));
+			Files.setPosixFilePermissions(socketPath, PosixFilePermissions.fromString(SOCKET_PERMISSIONS));
+			UserPrincipal owner = Files.getOwner(socketPath);
+			log.info("Daemon listening on {}.", this.socketFile);
+			boolean done = false;
+			while (! done) {
+				try (SocketChannel channel = server.accept()) {
+					UserPrincipal peer = channel.getOption(ExtendedSocketOptions.SO_PEERCRED).user();
+					if (! peer.equals(owner))
+						log.warn("Rejected request from user {}.", peer.getName());
+					else {
+						watcher.poll();
+						done = this.serve(channel);
+					}
+				} catch (IOException e) {
+					log.error("Error serving request: {}", e.toString());
+				}
+			}
+		} finally {
+			BaseGitProcessor.setSharedCodeBase(null);
+			Files.deleteIfExists(this.socketFile.toPath());
+		}
+		log.info("Daemon stopped.");
+	}
+
+	/**
+	 * Serve a single request.
+	 *
+	 * @param channel	socket channel for the request
+	 *
+	 * @return TRUE if the daemon should shut down, else FALSE
+	 *
+	 * @throws IOException
+	 */
+	private boolean serve(SocketChannel channel) throws IOException {
+		boolean retVal = false;
+		DataInputStream inStream = new DataInputStream(Channels.newInputStream(channel));
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(Channels.newOutputStream(channel),
+				StandardCharsets.UTF_8));
+		// The argument count comes from the client, so we check it before allocating anything.
+		final int n = inStream.readInt();
+		int exitCode = 0;
+		if (n == 0) {
+			writer.println("No command specified.");
+			exitCode = 1;
+		} else if (n < 0 || n > MAX_ARGS) {
+			log.error("Invalid argument count {} in request.", n);
+			writer.println("Invalid argument count " + n + ".");
+			exitCode = 1;
+		} else {
+			String[] args = new String[n];
+			for (int i = 0; i < n; i++)
+				args[i] = inStream.readUTF();
+			if (args[0].equals(SHUTDOWN)) {
+				writer.println("Daemon shutting down.");
+				retVal = true;
+			} else {
+				long start = System.currentTimeMillis();
+				log.info("Running command: {}", String.join(" ", args));
+				try {
+					BaseProcessor processor = App.createProcessor(args[0]);
+					if (processor == null || processor instanceof DaemonProcessor) {
+						writer.println("Command " + args[0] + " cannot be run by the daemon.");
+						exitCode = 1;
+					} else {
+						if (processor instanceof BaseGitProcessor)
+							((BaseGitProcessor) processor).setReportWriter(writer);
+						if (processor.parseCommand(Arrays.copyOfRange(args, 1, n)))
+							processor.run();
+						else {
+							writer.println("Invalid parameters for " + args[0] + ".");
+							exitCode = 1;
+						}
+					}
+				} catch (RuntimeException e) {
+					log.error("Error running {}: {}", args[0], e.toString());
+					writer.println("Error: " + e.getMessage());
+					exitCode = 1;
+				}
+				writer.format("Command completed in %4.3f seconds.%n", (System.currentTimeMillis() - start) / 1000.0);
+			}
+		}
+		writer.println(EXIT_PREFIX + exitCode);
+		writer.flush();
+		return retVal;
+	}
+
+}
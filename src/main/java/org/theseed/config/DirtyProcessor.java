@@ -0,0 +1,134 @@
+/**
+ *
+ */
+package org.theseed.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.basic.ParseFailureException;
+import org.theseed.config.git.BaseGitProcessor;
+import org.theseed.config.git.RepoSummary;
+
+/**
+ * This command checks the working trees of all the repos in a code base for local changes.
+ * The repos are checked in parallel. For each file, the size and modification time are
+ * compared with the index first, and the file contents are only hashed when those do not
+ * settle the question.
+ *
+ * The report is tab-delimited, with a header line, and lists each local change, containing
+ * the repo path relative to the code base, the change code ("M" modified, "A" added, "D"
+ * deleted, or "?" untracked), and the file path within the repo. An untracked directory is
+ * listed as a whole, with a trailing slash.
+ *
+ * The command-line options are as follows:
+ *
+ * -h	display command-line usage
+ * -v	display more frequent log messages
+ *
+ * --base			module directory base (default is value of CODE_BASE (if any), else the current directory)
+ * --rescan			discard the code base index and rescan all the project directories
+ * --metrics		if specified, a JSON or CSV file to contain the per-repo metrics for the run
+ * --hostLimit		maximum number of concurrent remote operations per host (default 4)
+ * --repoCache		maximum number of repositories to keep open for reuse (default 100)
+ * --scanThreads	if nonzero, the number of threads for discovering the project tree up front (default 0)
+ * --stream			release each repo as soon as it is processed, to bound memory use
+ * --timeout			transport timeout for remote operations, in seconds (default 120)
+ * --retries			maximum number of retries for a remote operation that fails for a transient reason (default 2)
+ * --breaker			number of consecutive failures that causes a host to be skipped for a minute, or 0 to never skip (default 3)
+ * --parallel		number of repos to check concurrently (default 4)
+ * --tracked		if specified, untracked files will not be reported
+ * --output			if specified, a file to contain the report (default is the standard output)
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class DirtyProcessor extends BaseGitProcessor {
+
+	// FIELDS
+	/** logging facility */
+	private static final Logger log = LoggerFactory.getLogger(DirtyProcessor.class);
+	/** status message for a clean repo */
+	private static final String CLEAN = "CLEAN";
+	/** map of project directories to local changes */
+	private Map<File, List<String>> changes;
+
+	// COMMAND-LINE OPTIONS
+
+	/** number of repos to check at once */
+	@Option(name = "--parallel", metaVar = "8", usage = "number of repos to check concurrently")
+	private int parallel;
+
+	/** if specified, untracked files are ignored */
+	@Option(name = "--tracked", usage = "if specified, only changes to tracked files will be reported")
+	private boolean trackedOnly;
+
+	/** optional output file for the report */
+	@Option(name = "--output", metaVar = "dirty.tbl", usage = "optional output file for the report (default is STDOUT)")
+	private File outFile;
+
+	@Override
+	protected void setGitDefaults() {
+		this.parallel = 4;
+		this.trackedOnly = false;
+		this.outFile = null;
+	}
+
+	@Override
+	protected void validateGitParms() throws IOException, ParseFailureException {
+		if (this.parallel < 1)
+			throw new ParseFailureException("Parallel thread count must be at least 1.");
+	}
+
+	@Override
+	protected void runGitCommand() throws Exception {
+		this.changes = new ConcurrentHashMap<File, List<String>>();
+		List<RepoSummary> summaries = this.scheduleRepos(this.parallel, null, x -> this.checkRepo(x));
+		// Write the changes in code-base order.
+		Path basePath = this.getBaseDir().getAbsoluteFile().toPath();
+		try (PrintWriter writer = this.openReport(this.outFile)) {
+			writer.println("repo\tchange\tpath");
+			for (RepoSummary summary : summaries) {
+				List<String> repoChanges = this.changes.get(summary.getProjDir());
+				if (repoChanges != null) {
+					String repoName = basePath.relativize(summary.getProjDir().getAbsoluteFile().toPath()).toString();
+					for (String change : repoChanges)
+						writer.println(repoName + "\t" + change.charAt(0) + "\t" + change.substring(2));
+				}
+			}
+		}
+		log.info("{} of {} repos have local changes.", this.changes.size(), summaries.size());
+		this.writeSummary("Dirty summary", summaries);
+	}
+
+	/**
+	 * Check a single repo for local changes.
+	 *
+	 * @param projFile	project directory
+	 *
+	 * @return a summary of the repo's state
+	 */
+	private RepoSummary checkRepo(File projFile) {
+		return this.processRepo(projFile, (repo, monitor) -> {
+			String retVal;
+			List<String> repoChanges = repo.findLocalChanges(! this.trackedOnly);
+			if (repoChanges.isEmpty())
+				retVal = CLEAN;
+			else {
+				this.changes.put(projFile, repoChanges);
+				long untracked = repoChanges.stream().filter(x -> x.startsWith("?")).count();
+				retVal = String.format("DIRTY (%d changed, %d untracked)", repoChanges.size() - untracked, untracked);
+			}
+			return retVal;
+		});
+	}
+
+}
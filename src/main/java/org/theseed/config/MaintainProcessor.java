@@ -0,0 +1,159 @@
+/**
+ *
+ */
+package org.theseed.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.basic.ParseFailureException;
+import org.theseed.config.git.BaseGitProcessor;
+import org.theseed.config.git.RepoSummary;
+
+/**
+ * This command performs maintenance on all the repos in a code base, including submodules. Each
+ * repo's loose objects are packed, its packs are combined, and expired unreachable objects are
+ * pruned, and a commit-graph file is written. This keeps later fetches and history walks fast.
+ *
+ * Repos with few loose objects and few packs are skipped. The repos are collected in parallel,
+ * and the total number of packing threads is limited to a fixed budget, which is divided among
+ * the repos being collected at the same time. The space reclaimed and the time taken are
+ * reported for each repo.
+ *
+ * The command-line options are as follows:
+ *
+ * -h	display command-line usage
+ * -v	display more frequent log messages
+ *
+ * --base		module directory base (default is value of CODE_BASE (if any), else the current directory)
+ * --rescan		discard the code base index and rescan all the project directories
+ * --metrics	if specified, a JSON or CSV file to contain the per-repo metrics for the run
+ * --hostLimit	maximum number of concurrent remote operations per host (default 4)
+ * --repoCache	maximum number of repositories to keep open for reuse (default 100)
+ * --scanThreads	if nonzero, the number of threads for discovering the project tree up front (default 0)
+ * --stream		release each repo as soon as it is processed, to bound memory use
+ * --timeout		transport timeout for remote operations, in seconds (default 120)
+ * --retries		maximum number of retries for a remote operation that fails for a transient reason (default 2)
+ * --breaker		number of consecutive failures that causes a host to be skipped for a minute, or 0 to never skip (default 3)
+ * --parallel	number of repos to collect concurrently (default 2)
+ * --threads	total number of packing threads to use (default is the number of processors)
+ * --minLoose	minimum number of loose objects for a repo to be collected (default 100)
+ * --minPacks	minimum number of pack files for a repo to be collected (default 5)
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class MaintainProcessor extends BaseGitProcessor {
+
+	// FIELDS
+	/** logging facility */
+	private static final Logger log = LoggerFactory.getLogger(MaintainProcessor.class);
+	/** number of packing threads for each repo */
+	private int repoThreads;
+	/** total number of bytes reclaimed */
+	private AtomicLong totalReclaimed;
+
+	// COMMAND-LINE OPTIONS
+
+	/** number of repos to collect at once */
+	@Option(name = "--parallel", metaVar = "4", usage = "number of repos to collect concurrently")
+	private int parallel;
+
+	/** total thread budget */
+	@Option(name = "--threads", metaVar = "8", usage = "total number of packing threads to use")
+	private int threads;
+
+	/** loose-object threshold */
+	@Option(name = "--minLoose", metaVar = "500", usage = "minimum number of loose objects for a repo to be collected")
+	private long minLoose;
+
+	/** pack-count threshold */
+	@Option(name = "--minPacks", metaVar = "10", usage = "minimum number of pack files for a repo to be collected")
+	private long minPacks;
+
+	@Override
+	protected void setGitDefaults() {
+		this.parallel = 2;
+		this.threads = Runtime.getRuntime().availableProcessors();
+		this.minLoose = 100;
+		this.minPacks = 5;
+	}
+
+	@Override
+	protected void validateGitParms() throws IOException, ParseFailureException {
+		if (this.parallel < 1)
+			throw new ParseFailureException("Parallel thread count must be at least 1.");
+		if (this.threads < 1)
+			throw new ParseFailureException("Thread budget must be at least 1.");
+		if (this.minLoose < 0 || this.minPacks < 0)
+			throw new ParseFailureException("Thresholds cannot be negative.");
+		// Every repo gets at least one thread, even if the budget is smaller than the parallel count.
+		this.repoThreads = Math.max(1, this.threads / this.parallel);
+	}
+
+	@Override
+	protected void runGitCommand() throws Exception {
+		List<File> projects = this.getProjects().map(x -> x.getDir()).toList();
+		log.info("Maintaining {} repos, {} at a time with {} packing threads each.", projects.size(),
+				this.parallel, this.repoThreads);
+		this.totalReclaimed = new AtomicLong(0);
+		// The repos that took longest last time are started first.
+		List<RepoSummary> summaries = this.scheduleRepos(this.parallel, null, x -> this.maintainRepo(x));
+		log.info("{} KB reclaimed.", this.totalReclaimed.get() / 1024);
+		this.writeSummary("Maintenance summary", summaries);
+	}
+
+	/**
+	 * Collect garbage in a single repo if it needs it.
+	 *
+	 * @param projFile	project directory
+	 *
+	 * @return a summary of the result
+	 */
+	private RepoSummary maintainRepo(File projFile) {
+		return this.processRepo(projFile, (repo, monitor) -> {
+			String retVal;
+			Properties before = repo.getObjectStatistics();
+			long loose = getStat(before, "numberOfLooseObjects");
+			long packs = getStat(before, "numberOfPackFiles");
+			if (loose < this.minLoose && packs < this.minPacks)
+				retVal = String.format("SKIPPED (%d loose, %d packs)", loose, packs);
+			else {
+				log.info("Collecting {} ({} loose objects, {} packs).", projFile, loose, packs);
+				Properties after = repo.collectGarbage(this.repoThreads, monitor);
+				long reclaimed = totalSize(before) - totalSize(after);
+				this.totalReclaimed.addAndGet(reclaimed);
+				retVal = String.format("COLLECTED %d KB (%d loose, %d packs after)", reclaimed / 1024,
+						getStat(after, "numberOfLooseObjects"), getStat(after, "numberOfPackFiles"));
+			}
+			return retVal;
+		});
+	}
+
+	/**
+	 * @return the value of a repo statistic, or 0 if it is not present
+	 *
+	 * @param stats		statistics from the garbage collector
+	 * @param name		name of the desired statistic
+	 */
+	private static long getStat(Properties stats, String name) {
+		Object retVal = stats.get(name);
+		return (retVal instanceof Number ? ((Number) retVal).longValue() : 0L);
+	}
+
+	/**
+	 * @return the total size of the object store, in bytes
+	 *
+	 * @param stats		statistics from the garbage collector
+	 */
+	private static long totalSize(Properties stats) {
+		return getStat(stats, "sizeOfLooseObjects") + getStat(stats, "sizeOfPackedObjects");
+	}
+
+}
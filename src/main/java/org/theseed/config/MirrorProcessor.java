@@ -0,0 +1,202 @@
+/**
+ *
+ */
+package org.theseed.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.basic.ParseFailureException;
+import org.theseed.config.git.BaseGitProcessor;
+import org.theseed.config.git.FetchMonitor;
+import org.theseed.config.git.GitRepo;
+import org.theseed.config.git.MirrorCache;
+import org.theseed.config.git.ProjectInfo;
+import org.theseed.config.git.RepoScheduler;
+import org.theseed.config.git.RepoSummary;
+
+/**
+ * This command keeps a shared cache of mirror repos for the projects in a code base, so that
+ * several code bases on the same machine only fetch from the upstream servers once. The cache
+ * holds a bare mirror of each upstream repo, stored under the host name and path of its URL.
+ *
+ * First, the upstream URL of each repo in the code base is found, and each distinct upstream
+ * repo is mirrored into the cache, or if its mirror already exists, fetched into the mirror.
+ * The mirrors are updated concurrently, with the usual limit on the number of operations per
+ * host. Then each repo's remote is pointed at its mirror, with the upstream URL kept as the
+ * push URL, so that later pulls fetch from the mirror while pushes still go upstream.
+ *
+ * Running this command for each code base that uses the cache keeps all of them current with
+ * one upstream fetch per project. In sharing mode, the repos also borrow objects from the
+ * mirrors (git alternates), so each object is stored on disk only once. Refs deleted upstream
+ * are never removed from a mirror, and each mirror is configured so that garbage collection
+ * never prunes it (gc.auto=0 and a gc.pruneExpire at the epoch), since the repos sharing it may depend
+ * on objects that are no longer reachable from its refs.
+ *
+ * The positional parameter is the name of the cache directory. It is created if it does not
+ * exist.
+ *
+ * The command-line options are as follows:
+ *
+ * -h	display command-line usage
+ * -v	display more frequent log messages
+ *
+ * --base			module directory base (default is value of CODE_BASE (if any), else the current directory)
+ * --rescan			discard the code base index and rescan all the project directories
+ * --metrics		if specified, a JSON or CSV file to contain the per-repo metrics for the run
+ * --hostLimit		maximum number of concurrent remote operations per host (default 4)
+ * --repoCache		maximum number of repositories to keep open for reuse (default 100)
+ * --scanThreads	if nonzero, the number of threads for discovering the project tree up front (default 0)
+ * --stream			release each repo as soon as it is processed, to bound memory use
+ * --timeout		transport timeout for remote operations, in seconds (default 120)
+ * --retries		maximum number of retries for a remote operation that fails for a transient reason (default 2)
+ * --breaker		number of consecutive failures that causes a host to be skipped for a minute, or 0 to never skip (default 3)
+ * --parallel		number of mirrors to update concurrently (default 4)
+ * --remote			name of the remote to mirror (default "origin")
+ * --share			if specified, the repos will borrow objects from the mirrors instead of keeping their own copies
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class MirrorProcessor extends BaseGitProcessor {
+
+	// FIELDS
+	/** logging facility */
+	private static final Logger log = LoggerFactory.getLogger(MirrorProcessor.class);
+	/** mirror cache */
+	private MirrorCache cache;
+	/** map of project directories to upstream URLs */
+	private Map<File, String> upstreams;
+	/** set of mirror directories that failed to update */
+	private Set<File> failedMirrors;
+
+	// COMMAND-LINE OPTIONS
+
+	/** mirror cache directory */
+	@Argument(index = 0, metaVar = "cacheDir", usage = "directory of shared mirror repos", required = true)
+	private File cacheDir;
+
+	/** number of mirrors to update at once */
+	@Option(name = "--parallel", metaVar = "8", usage = "number of mirrors to update concurrently")
+	private int parallel;
+
+	/** name of the remote to mirror */
+	@Option(name = "--remote", metaVar = "upstream", usage = "name of the remote to mirror")
+	private String remoteName;
+
+	/** if specified, the repos borrow objects from the mirrors */
+	@Option(name = "--share", usage = "if specified, the repos will borrow objects from the mirrors")
+	private boolean shareMode;
+
+	@Override
+	protected void setGitDefaults() {
+		this.parallel = 4;
+		this.remoteName = "origin";
+		this.shareMode = false;
+	}
+
+	@Override
+	protected void validateGitParms() throws IOException, ParseFailureException {
+		if (this.parallel < 1)
+			throw new ParseFailureException("Parallel thread count must be at least 1.");
+		if (! this.cacheDir.isDirectory()) {
+			log.info("Creating mirror cache directory {}.", this.cacheDir);
+			if (! this.cacheDir.mkdirs())
+				throw new IOException("Could not create mirror cache directory " + this.cacheDir + ".");
+		}
+		this.cache = new MirrorCache(this.cacheDir);
+	}
+
+	@Override
+	protected void runGitCommand() throws Exception {
+		// Find the upstream URL of each repo.
+		this.upstreams = new ConcurrentHashMap<File, String>();
+		List<ProjectInfo> projects = this.getProjects().toList();
+		for (ProjectInfo project : projects) {
+			try (GitRepo repo = new GitRepo(project.getDir())) {
+				String url = this.cache.findUpstream(repo, this.remoteName);
+				if (url != null)
+					this.upstreams.put(project.getDir(), url);
+			} catch (IOException e) {
+				log.warn("Could not read remote of {}: {}", project.getDir(), e.toString());
+			}
+		}
+		// Update each distinct mirror once.
+		Map<File, String> mirrors = new TreeMap<File, String>();
+		for (String url : this.upstreams.values()) {
+			File mirrorDir = this.cache.getMirrorDir(url);
+			if (mirrorDir != null)
+				mirrors.put(mirrorDir, url);
+		}
+		log.info("{} of {} repos use {} distinct upstream repos.", this.upstreams.size(), projects.size(), mirrors.size());
+		RepoScheduler scheduler = new RepoScheduler(GitRepo.getTransportPool().getHostLimit());
+		for (Map.Entry<File, String> mirror : mirrors.entrySet())
+			scheduler.add(mirror.getKey(), null, GitRepo.urlHost(mirror.getValue()), 0);
+		this.failedMirrors = ConcurrentHashMap.newKeySet();
+		List<RepoSummary> summaries = new ArrayList<RepoSummary>(mirrors.size() + projects.size());
+		summaries.addAll(scheduler.run(this.parallel, x -> this.updateMirror(x, mirrors.get(x))));
+		// Point the repos at their mirrors.
+		summaries.addAll(this.scheduleRepos(this.parallel, null, x -> this.linkRepo(x)));
+		log.info("{} mirrors failed to update.", this.failedMirrors.size());
+		this.writeSummary("Mirror summary", summaries);
+	}
+
+	/**
+	 * Update a single mirror from its upstream repo.
+	 *
+	 * @param mirrorDir		mirror directory
+	 * @param url			upstream URL
+	 *
+	 * @return a summary of the result
+	 */
+	private RepoSummary updateMirror(File mirrorDir, String url) {
+		long start = System.currentTimeMillis();
+		FetchMonitor monitor = new FetchMonitor();
+		RepoSummary retVal;
+		try {
+			log.info("Updating mirror of {}.", url);
+			retVal = new RepoSummary(mirrorDir, GitRepo.updateMirror(url, mirrorDir, monitor));
+		} catch (Exception e) {
+			log.error("Error updating mirror of {}: {}", url, e.toString());
+			this.failedMirrors.add(mirrorDir);
+			retVal = new RepoSummary(mirrorDir, e);
+		}
+		retVal.setMetrics(System.currentTimeMillis() - start, 0, monitor.getObjectCount());
+		return retVal;
+	}
+
+	/**
+	 * Point a repo's remote at its mirror.
+	 *
+	 * @param projFile	project directory
+	 *
+	 * @return a summary of the result
+	 */
+	private RepoSummary linkRepo(File projFile) {
+		return this.processRepo(projFile, (repo, monitor) -> {
+			String retVal;
+			String url = this.upstreams.get(projFile);
+			File mirrorDir = (url == null ? null : this.cache.getMirrorDir(url));
+			if (mirrorDir == null)
+				retVal = "SKIPPED (no upstream)";
+			else if (this.failedMirrors.contains(mirrorDir))
+				retVal = "SKIPPED (mirror failed)";
+			else if (repo.linkMirror(this.remoteName, mirrorDir, this.shareMode))
+				retVal = (this.shareMode ? "LINKED (shared)" : "LINKED");
+			else
+				retVal = "ALREADY LINKED";
+			return retVal;
+		});
+	}
+
+}
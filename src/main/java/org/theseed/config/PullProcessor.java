@@ -5,21 +5,48 @@ package org.theseed.config;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.eclipse.jgit.api.PullResult;
+import org.eclipse.jgit.api.errors.GitAPIException;
 import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.ParseFailureException;
 import org.theseed.config.git.BaseGitProcessor;
 import org.theseed.config.git.GitRepo;
+import org.theseed.config.git.PullState;
+import org.theseed.config.git.RepoSummary;
 
 /**
  * This method will pull all the repos from a code base. It does a simple pull from the
  * specified origin with no frills. The only advantage is finding all the GIT projects
  * in the specified directory.
  *
+ * Repos can be pulled concurrently. In that case, the repos that took longest on previous runs
+ * are started first, a project's submodules are always pulled after the project itself, and no
+ * more repos are pulled at once from a single host than the host limit allows. At the end, a
+ * summary of the results is written in code-base order.
+ *
+ * Repos with local changes to tracked files are pulled normally by default, but they can instead
+ * be skipped, or have their changes stashed before the pull and restored afterward. If stashed
+ * changes cannot be restored cleanly, they are left in the stash.
+ *
+ * In changed-only mode, the remote heads of every repo are listed first (which transfers only
+ * the ref advertisement) and compared with the heads seen on the last run. Only the repos whose
+ * remote heads have moved are pulled. The heads for each remote URL are only listed once.
+ *
  * The positional parameter is the name of the remote origin.
  *
  * The command-line options are as follows:
@@ -28,6 +55,18 @@ import org.theseed.config.git.GitRepo;
  * -v	display more frequent log messages
  *
  * --base		module directory base (default is value of CODE_BASE (if any), else the current directory)
+ * --rescan		discard the code base index and rescan all the project directories
+ * --metrics	if specified, a JSON or CSV file to contain the per-repo metrics for the run
+ * --hostLimit	maximum number of concurrent remote operations per host (default 4)
+ * --repoCache	maximum number of repositories to keep open for reuse (default 100)
+ * --scanThreads	if nonzero, the number of threads for discovering the project tree up front (default 0)
+ * --stream		release each repo as soon as it is processed, to bound memory use
+ * --timeout		transport timeout for remote operations, in seconds (default 120)
+ * --retries		maximum number of retries for a remote operation that fails for a transient reason (default 2)
+ * --breaker		number of consecutive failures that causes a host to be skipped for a minute, or 0 to never skip (default 3)
+ * --parallel	number of repos to pull concurrently (default 1)
+ * --changed	only pull repos whose remote heads have changed since the last run
+ * --dirty		handling of repos with local changes-- PULL, SKIP, or STASH (default PULL)
  *
  * @author Bruce Parrello
  *
@@ -37,6 +76,10 @@ public class PullProcessor extends BaseGitProcessor {
 	// FIELDS
 	/** logging facility */
 	private static final Logger log = LoggerFactory.getLogger(PullProcessor.class);
+	/** set of repos to pull, or NULL to pull all of them */
+	private Set<File> pullSet;
+	/** map of repos to the fingerprints of their current remote heads */
+	private Map<File, String> newHeads;
 
 	// COMMAND-LINE OPTIONS
 
@@ -44,28 +87,188 @@ public class PullProcessor extends BaseGitProcessor {
 	@Argument(index = 0, metaVar = "origin", usage = "name of the remote origin", required = true)
 	private String remoteName;
 
+	/** number of repos to pull at once */
+	@Option(name = "--parallel", metaVar = "8", usage = "number of repos to pull concurrently")
+	private int parallel;
+
+	/** if specified, only repos whose remote heads have moved will be pulled */
+	@Option(name = "--changed", usage = "only pull repos whose remote heads have changed since the last run")
+	private boolean changedOnly;
+
+	/** handling of repos with local changes */
+	@Option(name = "--dirty", usage = "handling of repos with local changes to tracked files")
+	private DirtyMode dirtyMode;
+
+	/**
+	 * This enum describes the ways a repo with local changes can be handled.
+	 */
+	public static enum DirtyMode {
+		/** pull the repo, letting the merge decide whether the changes are in the way */
+		PULL,
+		/** do not pull the repo */
+		SKIP,
+		/** stash the changes, pull the repo, and then restore the changes */
+		STASH;
+	}
 
 	@Override
 	protected void setGitDefaults() {
+		this.parallel = 1;
+		this.changedOnly = false;
+		this.dirtyMode = DirtyMode.PULL;
 	}
 
 	@Override
 	protected void validateGitParms() throws ParseFailureException, IOException {
+		if (this.parallel < 1)
+			throw new ParseFailureException("Parallel thread count must be at least 1.");
 	}
 
 	@Override
 	protected void runGitCommand() throws Exception {
-		// Get access to all the repos in the code base.
-		Iterator<File> iter = this.getRepos();
-		while (iter.hasNext()) {
-			File projFile = iter.next();
-			log.info("Processing project in {}.", projFile);
-			try (GitRepo repo = new GitRepo(projFile)) {
-				PullResult result = repo.pull(this.remoteName, null);
-				log.info("Result for {}: {}", repo, GitRepo.resultMessageFor(result));
+		// In changed-only mode, find out which repos have moved.
+		PullState state = null;
+		this.pullSet = null;
+		if (this.changedOnly) {
+			state = PullState.load(this.getStateFile(PullState.STATE_NAME));
+			this.findChangedRepos(state);
+		}
+		List<RepoSummary> summaries;
+		if (this.parallel <= 1) {
+			summaries = new ArrayList<RepoSummary>();
+			for (File topProject : this.getTopProjects())
+				summaries.addAll(this.pullTree(topProject));
+		} else
+			summaries = this.scheduleRepos(this.parallel, this.remoteName, x -> this.pullRepo(x));
+		// Write the summary.
+		this.writeSummary("Pull summary", summaries);
+		// Remember the heads for the repos we pulled successfully. A repo whose merge did not
+		// complete keeps its old heads, so that it is pulled again next time.
+		if (state != null) {
+			for (RepoSummary summary : summaries) {
+				File projDir = summary.getProjDir();
+				String heads = this.newHeads.get(projDir);
+				if (heads != null && this.pullSet.contains(projDir) && summary.isSuccessful())
+					state.update(projDir, this.remoteName, heads);
 			}
+			state.save();
 		}
+	}
 
+	/**
+	 * Determine which repos have remote heads that have moved since the last run. The
+	 * set of repos to pull and the map of new head fingerprints are filled in. If we can't
+	 * list a repo's remote heads, it is pulled anyway so that the error is reported.
+	 *
+	 * @param state		pull state from the previous run
+	 *
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	private void findChangedRepos(PullState state) throws InterruptedException, ExecutionException {
+		List<File> projects = this.getProjects().map(x -> x.getDir()).toList();
+		this.pullSet = ConcurrentHashMap.newKeySet();
+		this.newHeads = new ConcurrentHashMap<File, String>();
+		Map<String, String> urlHeads = new ConcurrentHashMap<String, String>();
+		log.info("Checking {} repos for remote changes.", projects.size());
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(this.parallel, Math.max(1, projects.size())));
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>(projects.size());
+			for (File project : projects)
+				futures.add(pool.submit(() -> this.checkRepo(project, state, urlHeads)));
+			for (Future<?> future : futures)
+				future.get();
+		} finally {
+			pool.shutdown();
+		}
+		log.info("{} of {} repos have remote changes.", this.pullSet.size(), projects.size());
+	}
+
+	/**
+	 * Check a single repo to see if its remote heads have moved.
+	 *
+	 * @param projFile	project directory
+	 * @param state		pull state from the previous run
+	 * @param urlHeads	map of remote URLs to head fingerprints, used to avoid listing a remote twice
+	 */
+	private void checkRepo(File projFile, PullState state, Map<String, String> urlHeads) {
+		try (GitRepo repo = new GitRepo(projFile)) {
+			// Relative URLs depend on the parent, so they can't be shared.
+			String url = repo.getRemoteUrl(this.remoteName);
+			if (url != null && url.startsWith("."))
+				url = null;
+			String fingerprint = (url == null ? null : urlHeads.get(url));
+			if (fingerprint == null) {
+				fingerprint = PullState.fingerprint(repo.listRemoteHeads(this.remoteName));
+				if (url != null)
+					urlHeads.put(url, fingerprint);
+			}
+			this.newHeads.put(projFile, fingerprint);
+			if (state.isChanged(projFile, this.remoteName, fingerprint))
+				this.pullSet.add(projFile);
+		} catch (IOException | GitAPIException e) {
+			log.warn("Could not list remote heads for {}: {}", projFile, e.toString());
+			this.pullSet.add(projFile);
+		}
+	}
+
+	/**
+	 * Pull a top-level project and all its submodules. The project is always pulled before
+	 * its submodules. A failure in one repo is recorded and does not stop the others.
+	 *
+	 * @param topProject	top-level project directory
+	 *
+	 * @return a list of the pull summaries, in code-base order
+	 */
+	private List<RepoSummary> pullTree(File topProject) {
+		List<RepoSummary> retVal = new ArrayList<RepoSummary>();
+		Iterator<File> iter = this.getRepos(topProject);
+		while (iter.hasNext())
+			retVal.add(this.pullRepo(iter.next()));
+		return retVal;
+	}
+
+	/**
+	 * Pull a single repo, unless we know it has not changed.
+	 *
+	 * @param projFile	project directory
+	 *
+	 * @return a summary of the pull result
+	 */
+	private RepoSummary pullRepo(File projFile) {
+		RepoSummary retVal;
+		if (this.pullSet != null && ! this.pullSet.contains(projFile))
+			retVal = new RepoSummary(projFile, "UNCHANGED");
+		else {
+			log.info("Processing project in {}.", projFile);
+			AtomicBoolean pulled = new AtomicBoolean(false);
+			retVal = this.processRepo(projFile, (repo, monitor) -> {
+				String message;
+				boolean dirty = (this.dirtyMode != DirtyMode.PULL && ! repo.findLocalChanges(false).isEmpty());
+				if (dirty && this.dirtyMode == DirtyMode.SKIP) {
+					log.info("Skipping {} due to local changes.", repo);
+					message = "SKIPPED (local changes)";
+				} else {
+					boolean stashed = (dirty && repo.stashChanges("local changes stashed before pull"));
+					boolean restored = false;
+					try {
+						PullResult result = repo.pull(this.remoteName, null, monitor);
+						message = GitRepo.resultMessageFor(result);
+						pulled.set(result.isSuccessful());
+					} finally {
+						// The changes are restored even if the pull fails.
+						if (stashed)
+							restored = repo.restoreStash();
+					}
+					if (stashed)
+						message += (restored ? " (changes restored)" : " (changes left in stash)");
+					log.info("Result for {}: {}", repo, message);
+				}
+				return message;
+			});
+			retVal.setSuccessful(pulled.get());
+		}
+		return retVal;
 	}
 
 }
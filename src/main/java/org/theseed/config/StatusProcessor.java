@@ -0,0 +1,153 @@
+/**
+ *
+ */
+package org.theseed.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jgit.api.PullResult;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.basic.ParseFailureException;
+import org.theseed.config.git.BaseGitProcessor;
+import org.theseed.config.git.GitRepo;
+import org.theseed.config.git.RepoSummary;
+
+/**
+ * This command checks all the repos in a code base for upstream changes without fetching or
+ * merging anything. For each repo, the heads advertised by the remote are compared with the
+ * local remote-tracking refs, which only requires a ref advertisement from the remote. Repos
+ * with new or changed remote branches are reported as behind. If requested, the repos that
+ * are behind will then be pulled.
+ *
+ * The positional parameter is the name of the remote origin.
+ *
+ * The command-line options are as follows:
+ *
+ * -h	display command-line usage
+ * -v	display more frequent log messages
+ *
+ * --base		module directory base (default is value of CODE_BASE (if any), else the current directory)
+ * --rescan		discard the code base index and rescan all the project directories
+ * --metrics	if specified, a JSON or CSV file to contain the per-repo metrics for the run
+ * --hostLimit	maximum number of concurrent remote operations per host (default 4)
+ * --repoCache	maximum number of repositories to keep open for reuse (default 100)
+ * --scanThreads	if nonzero, the number of threads for discovering the project tree up front (default 0)
+ * --stream		release each repo as soon as it is processed, to bound memory use
+ * --timeout		transport timeout for remote operations, in seconds (default 120)
+ * --retries		maximum number of retries for a remote operation that fails for a transient reason (default 2)
+ * --breaker		number of consecutive failures that causes a host to be skipped for a minute, or 0 to never skip (default 3)
+ * --parallel	number of repos to check concurrently (default 1)
+ * --apply		if specified, repos that are behind will be pulled
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class StatusProcessor extends BaseGitProcessor {
+
+	// FIELDS
+	/** logging facility */
+	private static final Logger log = LoggerFactory.getLogger(StatusProcessor.class);
+	/** status message for a repo with no upstream changes */
+	private static final String CURRENT = "CURRENT";
+
+	// COMMAND-LINE OPTIONS
+
+	/** name of the remote origin */
+	@Argument(index = 0, metaVar = "origin", usage = "name of the remote origin", required = true)
+	private String remoteName;
+
+	/** number of repos to check at once */
+	@Option(name = "--parallel", metaVar = "8", usage = "number of repos to check concurrently")
+	private int parallel;
+
+	/** if specified, repos that are behind will be pulled */
+	@Option(name = "--apply", usage = "if specified, repos that are behind will be pulled")
+	private boolean applyFlag;
+
+	@Override
+	protected void setGitDefaults() {
+		this.parallel = 1;
+		this.applyFlag = false;
+	}
+
+	@Override
+	protected void validateGitParms() throws IOException, ParseFailureException {
+		if (this.parallel < 1)
+			throw new ParseFailureException("Parallel thread count must be at least 1.");
+	}
+
+	@Override
+	protected void runGitCommand() throws Exception {
+		// Get all the repos in code-base order.
+		List<File> projects = new ArrayList<File>();
+		Iterator<File> iter = this.getRepos();
+		while (iter.hasNext())
+			projects.add(iter.next());
+		log.info("Checking {} repos for upstream changes.", projects.size());
+		// Check the repos. The slowest checks are started first.
+		List<RepoSummary> summaries = new ArrayList<RepoSummary>(projects.size());
+		if (this.parallel <= 1) {
+			for (File project : projects)
+				summaries.add(this.checkRepo(project));
+		} else
+			summaries = this.scheduleRepos(this.parallel, this.remoteName, x -> this.checkRepo(x));
+		// If we are applying, pull the repos that are behind. We do this in code-base order so
+		// that parents are always pulled before their submodules.
+		if (this.applyFlag) {
+			for (int i = 0; i < summaries.size(); i++) {
+				RepoSummary summary = summaries.get(i);
+				if (! summary.isFailed() && ! summary.getStatus().equals(CURRENT))
+					summaries.set(i, this.pullRepo(summary.getProjDir()));
+			}
+		}
+		// Write the summary.
+		long behindCount = summaries.stream().filter(x -> ! x.isFailed() && ! x.getStatus().equals(CURRENT)).count();
+		log.info("{} repos have upstream changes.", behindCount);
+		this.writeSummary("Status summary", summaries);
+	}
+
+	/**
+	 * Check a single repo for upstream changes.
+	 *
+	 * @param projFile	project directory
+	 *
+	 * @return a summary of the repo's status
+	 */
+	private RepoSummary checkRepo(File projFile) {
+		return this.processRepo(projFile, (repo, monitor) -> {
+			String retVal;
+			List<String> changed = repo.checkRemote(this.remoteName);
+			if (changed.isEmpty())
+				retVal = CURRENT;
+			else {
+				log.info("{} is behind on {}.", projFile, changed);
+				retVal = "BEHIND (" + StringUtils.join(changed, ", ") + ")";
+			}
+			return retVal;
+		});
+	}
+
+	/**
+	 * Pull a single repo that is behind.
+	 *
+	 * @param projFile	project directory
+	 *
+	 * @return a summary of the pull result
+	 */
+	private RepoSummary pullRepo(File projFile) {
+		log.info("Pulling project in {}.", projFile);
+		return this.processRepo(projFile, (repo, monitor) -> {
+			PullResult result = repo.pull(this.remoteName, null, monitor);
+			return "PULLED " + GitRepo.resultMessageFor(result);
+		});
+	}
+
+}
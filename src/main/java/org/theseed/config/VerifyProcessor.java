@@ -0,0 +1,117 @@
+/**
+ *
+ */
+package org.theseed.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.lang3.StringUtils;
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.basic.ParseFailureException;
+import org.theseed.config.git.BaseGitProcessor;
+import org.theseed.config.git.RepoSummary;
+
+/**
+ * This command checks all the repos in a code base for damage, such as leftover lock files from
+ * an interrupted operation, a missing HEAD, or refs that cannot be resolved. In deep mode, every
+ * object reachable from the refs is read to verify the object store. Nothing is changed.
+ *
+ * The repos are checked in parallel, and the problems are reported for each repo. A repo whose
+ * GIT directory cannot be found or opened is reported as failed.
+ *
+ * The command-line options are as follows:
+ *
+ * -h	display command-line usage
+ * -v	display more frequent log messages
+ *
+ * --base		module directory base (default is value of CODE_BASE (if any), else the current directory)
+ * --rescan		discard the code base index and rescan all the project directories
+ * --metrics	if specified, a JSON or CSV file to contain the per-repo metrics for the run
+ * --hostLimit	maximum number of concurrent remote operations per host (default 4)
+ * --repoCache	maximum number of repositories to keep open for reuse (default 100)
+ * --scanThreads	if nonzero, the number of threads for discovering the project tree up front (default 0)
+ * --stream		release each repo as soon as it is processed, to bound memory use
+ * --timeout		transport timeout for remote operations, in seconds (default 120)
+ * --retries		maximum number of retries for a remote operation that fails for a transient reason (default 2)
+ * --breaker		number of consecutive failures that causes a host to be skipped for a minute, or 0 to never skip (default 3)
+ * --parallel	number of repos to check concurrently (default 4)
+ * --deep		if specified, all reachable objects will be read and verified
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class VerifyProcessor extends BaseGitProcessor {
+
+	// FIELDS
+	/** logging facility */
+	private static final Logger log = LoggerFactory.getLogger(VerifyProcessor.class);
+	/** status message for a healthy repo */
+	private static final String HEALTHY = "OK";
+
+	// COMMAND-LINE OPTIONS
+
+	/** number of repos to check at once */
+	@Option(name = "--parallel", metaVar = "8", usage = "number of repos to check concurrently")
+	private int parallel;
+
+	/** if specified, the object store will be walked */
+	@Option(name = "--deep", usage = "if specified, all reachable objects will be read and verified")
+	private boolean deepMode;
+
+	@Override
+	protected void setGitDefaults() {
+		this.parallel = 4;
+		this.deepMode = false;
+	}
+
+	@Override
+	protected void validateGitParms() throws IOException, ParseFailureException {
+		if (this.parallel < 1)
+			throw new ParseFailureException("Parallel thread count must be at least 1.");
+	}
+
+	@Override
+	protected void runGitCommand() throws Exception {
+		log.info("Verifying repos in {} mode with {} threads.", (this.deepMode ? "deep" : "fast"), this.parallel);
+		// The project stream splits at top-level projects and keeps the results in code-base order.
+		ForkJoinPool pool = new ForkJoinPool(this.parallel);
+		List<RepoSummary> summaries;
+		try {
+			summaries = pool.submit(() -> this.getProjects().parallel().map(x -> this.verifyRepo(x.getDir()))
+					.toList()).get();
+		} finally {
+			pool.shutdown();
+		}
+		long badCount = summaries.stream().filter(x -> x.isFailed() || ! x.getStatus().equals(HEALTHY)).count();
+		log.info("{} of {} repos have problems.", badCount, summaries.size());
+		this.writeSummary("Verify summary", summaries);
+	}
+
+	/**
+	 * Check a single repo for problems.
+	 *
+	 * @param projFile	project directory
+	 *
+	 * @return a summary of the repo's health
+	 */
+	private RepoSummary verifyRepo(File projFile) {
+		return this.processRepo(projFile, (repo, monitor) -> {
+			String retVal;
+			List<String> problems = repo.verify(this.deepMode);
+			if (problems.isEmpty())
+				retVal = HEALTHY;
+			else {
+				for (String problem : problems)
+					log.warn("{}: {}.", projFile, problem);
+				retVal = "DAMAGED (" + StringUtils.join(problems, "; ") + ")";
+			}
+			return retVal;
+		});
+	}
+
+}
@@ -6,10 +6,22 @@ package org.theseed.config.git;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.text.StringEscapeUtils;
 import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.theseed.basic.BaseProcessor;
 import org.theseed.basic.ParseFailureException;
 
@@ -24,6 +36,15 @@ import org.theseed.basic.ParseFailureException;
  * -v	display more frequent log messages
  *
  * --base		module directory base (default is value of CODE_BASE (if any), else the current directory)
+ * --rescan		discard the code base index and rescan all the project directories
+ * --metrics	if specified, a JSON or CSV file to contain the per-repo metrics for the run
+ * --hostLimit	maximum number of concurrent remote operations per host (default 4)
+ * --repoCache	maximum number of repositories to keep open for reuse (default 100)
+ * --scanThreads	if nonzero, the number of threads to use for discovering the project tree up front (default 0)
+ * --stream		release each repo as soon as it is processed, to bound memory use
+ * --timeout		transport timeout for remote operations, in seconds (default 120)
+ * --retries		maximum number of retries for a remote operation that fails for a transient reason (default 2)
+ * --breaker		number of consecutive failures that causes a host to be skipped for a minute, or 0 to never skip (default 3)
  *
  * @author Bruce Parrello
  *
@@ -31,8 +52,22 @@ import org.theseed.basic.ParseFailureException;
 public abstract class BaseGitProcessor extends BaseProcessor {
 
 	// FIELDS
+	/** logging facility */
+	private static final Logger log = LoggerFactory.getLogger(BaseGitProcessor.class);
 	/** master code base */
 	private CodeBase codeBase;
+	/** persistent remote branch cache */
+	private BranchCache branchCache;
+	/** persistent repo timings from previous runs, or NULL if they cannot be saved */
+	private RepoTimings timings;
+	/** optional writer for a copy of the run summary */
+	private PrintWriter reportWriter;
+	/** code base kept in memory by a daemon, or NULL if each command loads its own */
+	private static volatile CodeBase sharedCodeBase = null;
+	/** default maximum number of concurrent remote operations per host */
+	private static final int DEFAULT_HOST_LIMIT = 4;
+	/** default maximum number of open repositories to keep for reuse */
+	private static final int DEFAULT_REPO_CACHE = 100;
 
 	// COMMAND-LINE OPTIONS
 
@@ -40,6 +75,42 @@ public abstract class BaseGitProcessor extends BaseProcessor {
 	@Option(name = "--base", metaVar = "projDir", usage = "name of the master project directory")
 	private File baseDir;
 
+	/** if specified, the code base index will be rebuilt from scratch */
+	@Option(name = "--rescan", usage = "if specified, the code base index will be rebuilt from scratch")
+	private boolean rescan;
+
+	/** optional output file for per-repo metrics */
+	@Option(name = "--metrics", metaVar = "metrics.json", usage = "optional output file for per-repo metrics (.json or .csv)")
+	private File metricsFile;
+
+	/** maximum number of concurrent remote operations per host */
+	@Option(name = "--hostLimit", metaVar = "8", usage = "maximum number of concurrent remote operations per host")
+	private int hostLimit;
+
+	/** maximum number of open repositories to keep for reuse */
+	@Option(name = "--repoCache", metaVar = "200", usage = "maximum number of repositories to keep open for reuse")
+	private int repoCache;
+
+	/** number of threads for up-front project discovery, or 0 to discover projects during iteration */
+	@Option(name = "--scanThreads", metaVar = "8", usage = "if nonzero, number of threads for parallel project discovery")
+	private int scanThreads;
+
+	/** if specified, each repo is released as soon as it is processed, to bound memory use */
+	@Option(name = "--stream", usage = "if specified, release each repo as soon as it is processed")
+	private boolean streamMode;
+
+	/** transport timeout for remote operations, in seconds */
+	@Option(name = "--timeout", metaVar = "300", usage = "transport timeout for remote operations, in seconds (0 for none)")
+	private int timeout;
+
+	/** maximum number of retries for a remote operation with a transient failure */
+	@Option(name = "--retries", metaVar = "5", usage = "maximum number of retries for a transient remote failure")
+	private int retries;
+
+	/** number of consecutive failures that causes a host to be skipped */
+	@Option(name = "--breaker", metaVar = "5", usage = "number of consecutive failures that causes a host to be skipped (0 for never)")
+	private int breakerLimit;
+
 	@Override
 	final protected void setDefaults() {
 		String baseString = System.getenv("CODE_BASE");
@@ -47,6 +118,15 @@ public abstract class BaseGitProcessor extends BaseProcessor {
 			baseString = System.getProperty("user.dir");
 		}
 		this.baseDir = new File(baseString);
+		this.rescan = false;
+		this.metricsFile = null;
+		this.hostLimit = DEFAULT_HOST_LIMIT;
+		this.scanThreads = 0;
+		this.repoCache = DEFAULT_REPO_CACHE;
+		this.streamMode = false;
+		this.timeout = RemotePolicy.DEFAULT_TIMEOUT;
+		this.retries = RemotePolicy.DEFAULT_RETRIES;
+		this.breakerLimit = RemotePolicy.DEFAULT_BREAKER;
 		// Allow the subclass to set more defaults.
 		this.setGitDefaults();
 	}
@@ -58,10 +138,55 @@ public abstract class BaseGitProcessor extends BaseProcessor {
 
 	@Override
 	final protected void validateParms() throws IOException, ParseFailureException {
+		if (this.hostLimit < 1)
+			throw new ParseFailureException("Host limit must be at least 1.");
+		if (this.repoCache < 1)
+			throw new ParseFailureException("Repository cache size must be at least 1.");
+		if (this.scanThreads < 0)
+			throw new ParseFailureException("Scan thread count cannot be negative.");
+		if (this.timeout < 0)
+			throw new ParseFailureException("Timeout cannot be negative.");
+		if (this.retries < 0)
+			throw new ParseFailureException("Retry count cannot be negative.");
+		if (this.breakerLimit < 0)
+			throw new ParseFailureException("Breaker limit cannot be negative.");
+		// Validate the metrics file type.
+		if (this.metricsFile != null) {
+			String metricsName = this.metricsFile.getName();
+			if (! metricsName.endsWith(".json") && ! metricsName.endsWith(".csv"))
+				throw new ParseFailureException("Metrics file name must end in \".json\" or \".csv\".");
+		}
 		// Validate the base directory.
 		if (! this.baseDir.isDirectory())
 			throw new FileNotFoundException("Code base directory " + this.baseDir + " is not found or invalid.");
-		this.codeBase = new CodeBase(this.baseDir);
+		CodeBase shared = sharedCodeBase;
+		if (shared != null && ! this.rescan
+				&& shared.getMasterDir().getCanonicalFile().equals(this.baseDir.getCanonicalFile())) {
+			// A daemon is keeping this code base in memory, so we don't need to load it.
+			this.codeBase = shared;
+		} else {
+			this.codeBase = new CodeBase(this.baseDir);
+			this.codeBase.loadIndex(this.rescan);
+			if (this.scanThreads > 0)
+				this.codeBase.discover(this.scanThreads);
+			else if (this.streamMode)
+				this.codeBase.setModuleCaching(false);
+		}
+		// Set up the persistent branch cache. If we can't, we fall back to a memory-only cache.
+		try {
+			this.branchCache = BranchCache.load(this.codeBase.getStateFile(BranchCache.CACHE_NAME));
+		} catch (IOException e) {
+			log.warn("Branch cache will not be saved: {}", e.toString());
+			this.branchCache = new BranchCache();
+		}
+		GitRepo.setBranchCache(this.branchCache);
+		// Load the timings from previous runs for scheduling.
+		try {
+			this.timings = RepoTimings.load(this.codeBase.getStateFile(RepoTimings.TIMING_NAME));
+		} catch (IOException e) {
+			log.warn("Repo timings will not be recorded: {}", e.toString());
+			this.timings = null;
+		}
 		// Allow the subclass to validate its parameters.
 		this.validateGitParms();
 	}
@@ -77,7 +202,73 @@ public abstract class BaseGitProcessor extends BaseProcessor {
 
 	@Override
 	final protected void runCommand() throws Exception {
-		this.runGitCommand();
+		// All the repos processed in this run share one set of per-host limits, and each repo is
+		// only opened once. If a daemon has already installed pools, we use those instead. In
+		// stream mode, there is no repo pool, so each repo is closed as soon as it is processed.
+		TransportPool pool = GitRepo.getTransportPool();
+		RepoPool repos = GitRepo.getRepoPool();
+		final boolean ownPools = (pool == null || repos == null);
+		if (! ownPools) {
+			// The pool options have no effect here, so we warn the user if any were specified.
+			List<String> ignored = this.findPoolOptions();
+			if (! ignored.isEmpty()) {
+				String message = "Options ignored because the daemon's settings apply: "
+						+ StringUtils.join(ignored, ", ") + ".";
+				log.warn(message);
+				if (this.reportWriter != null)
+					this.reportWriter.println(message);
+			}
+		} else {
+			RemotePolicy policy = new RemotePolicy(this.timeout, this.retries, RemotePolicy.DEFAULT_BACKOFF,
+					this.breakerLimit, RemotePolicy.DEFAULT_COOLDOWN);
+			pool = new TransportPool(this.hostLimit, policy);
+			repos = (this.streamMode ? null : new RepoPool(this.repoCache));
+			GitRepo.setTransportPool(pool);
+			GitRepo.setRepoPool(repos);
+		}
+		try {
+			this.runGitCommand();
+		} finally {
+			if (ownPools) {
+				GitRepo.setRepoPool(null);
+				GitRepo.setTransportPool(null);
+				if (repos != null)
+					repos.close();
+			}
+			try {
+				this.branchCache.save();
+			} catch (IOException e) {
+				log.warn("Could not save branch cache: {}", e.toString());
+			}
+			if (this.timings != null) {
+				try {
+					this.timings.save();
+				} catch (IOException e) {
+					log.warn("Could not save repo timings: {}", e.toString());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return a list of the options that configure the transport and repository pools and were changed
+	 * 		   from their defaults
+	 */
+	private List<String> findPoolOptions() {
+		List<String> retVal = new ArrayList<String>();
+		if (this.hostLimit != DEFAULT_HOST_LIMIT)
+			retVal.add("--hostLimit");
+		if (this.repoCache != DEFAULT_REPO_CACHE)
+			retVal.add("--repoCache");
+		if (this.streamMode)
+			retVal.add("--stream");
+		if (this.timeout != RemotePolicy.DEFAULT_TIMEOUT)
+			retVal.add("--timeout");
+		if (this.retries != RemotePolicy.DEFAULT_RETRIES)
+			retVal.add("--retries");
+		if (this.breakerLimit != RemotePolicy.DEFAULT_BREAKER)
+			retVal.add("--breaker");
+		return retVal;
 	}
 
 	/**
@@ -87,6 +278,192 @@ public abstract class BaseGitProcessor extends BaseProcessor {
 	 */
 	protected abstract void runGitCommand() throws Exception;
 
+	/**
+	 * Perform an operation on a single repo, recording metrics. The elapsed time, the number
+	 * of bytes added to the pack store, and the number of objects received are stored in the
+	 * returned summary. Any error is logged and recorded in the summary. The elapsed time of
+	 * a successful operation is also remembered for scheduling future runs.
+	 *
+	 * @param projDir	project directory of the repo
+	 * @param action	operation to perform
+	 *
+	 * @return a summary of the operation
+	 */
+	protected RepoSummary processRepo(File projDir, RepoAction action) {
+		long start = System.currentTimeMillis();
+		FetchMonitor monitor = new FetchMonitor();
+		long bytesFetched = 0;
+		RepoSummary retVal;
+		try (GitRepo repo = new GitRepo(projDir)) {
+			long packStart = repo.getPackBytes();
+			String status = action.apply(repo, monitor);
+			bytesFetched = Math.max(0L, repo.getPackBytes() - packStart);
+			retVal = new RepoSummary(projDir, status);
+		} catch (Exception e) {
+			log.error("Error processing {}: {}", projDir, e.toString());
+			retVal = new RepoSummary(projDir, e);
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		retVal.setMetrics(elapsed, bytesFetched, monitor.getObjectCount());
+		if (this.timings != null && ! retVal.isFailed())
+			this.timings.record(projDir, this.getTimingName(), elapsed);
+		return retVal;
+	}
+
+	/**
+	 * @return the name under which this command's repo timings are recorded
+	 */
+	private String getTimingName() {
+		return StringUtils.removeEnd(this.getClass().getSimpleName(), "Processor").toLowerCase();
+	}
+
+	/**
+	 * Perform an operation on every repo in the code base using a pool of workers. The repos
+	 * are scheduled longest-first according to the timings of previous runs, with each parent
+	 * processed before its submodules. If a remote is specified, the repos are grouped by the
+	 * host of that remote, and the number of repos for the same host run at once is limited
+	 * to the host limit.
+	 *
+	 * @param workers	number of worker threads
+	 * @param remote	name of the remote for host limits, or NULL if there are no host limits
+	 * @param task		operation to perform on each repo
+	 *
+	 * @return the results of the operation, in code-base order
+	 *
+	 * @throws InterruptedException
+	 */
+	protected List<RepoSummary> scheduleRepos(int workers, String remote, Function<File, RepoSummary> task)
+			throws InterruptedException {
+		RepoScheduler scheduler = new RepoScheduler(this.hostLimit);
+		List<ProjectInfo> projects = this.getProjects().toList();
+		String timingName = this.getTimingName();
+		// Repos we have never seen get the average estimate, so they are neither first nor last.
+		long[] estimates = new long[projects.size()];
+		long known = 0;
+		long total = 0;
+		for (int i = 0; i < estimates.length; i++) {
+			estimates[i] = (this.timings == null ? -1L : this.timings.estimate(projects.get(i).getDir(), timingName));
+			if (estimates[i] >= 0) {
+				known++;
+				total += estimates[i];
+			}
+		}
+		long average = (known == 0 ? 0L : total / known);
+		log.info("{} of {} repos have timings from previous runs.", known, projects.size());
+		Map<File, String> hosts = new HashMap<File, String>();
+		for (int i = 0; i < estimates.length; i++) {
+			ProjectInfo project = projects.get(i);
+			String host = null;
+			if (remote != null) {
+				host = this.findHost(project, remote, hosts);
+				hosts.put(project.getDir(), host);
+			}
+			File parentDir = (project.getParent() == null ? null : project.getParent().getDir());
+			scheduler.add(project.getDir(), parentDir, host, (estimates[i] < 0 ? average : estimates[i]));
+		}
+		return scheduler.run(workers, task);
+	}
+
+	/**
+	 * Determine the host for a repo's remote. A relative remote URL is on the same host as the
+	 * parent's remote.
+	 *
+	 * @param project	descriptor of the repo
+	 * @param remote	name of the remote
+	 * @param hosts		map of the project directories already processed to their hosts
+	 *
+	 * @return the host name, or the local host name if the remote is local or unknown
+	 */
+	private String findHost(ProjectInfo project, String remote, Map<File, String> hosts) {
+		String retVal = null;
+		try (GitRepo repo = new GitRepo(project.getDir())) {
+			String url = repo.getRemoteUrl(remote);
+			if (url != null && url.startsWith(".") && project.getParent() != null)
+				retVal = hosts.get(project.getParent().getDir());
+			else
+				retVal = GitRepo.urlHost(url);
+		} catch (IOException e) {
+			log.debug("Could not find remote host for {}: {}", project.getDir(), e.toString());
+		}
+		return (retVal == null ? TransportPool.LOCAL_HOST : retVal);
+	}
+
+	/**
+	 * Write a summary of the run. A table of the per-repo results is logged, and if a metrics
+	 * file was specified, the metrics are written to it.
+	 *
+	 * @param title			title of the summary
+	 * @param summaries		list of repo summaries, in the order they should be reported
+	 *
+	 * @throws IOException
+	 */
+	protected void writeSummary(String title, List<RepoSummary> summaries) throws IOException {
+		long failCount = summaries.stream().filter(x -> x.isFailed()).count();
+		long totalMillis = summaries.stream().mapToLong(x -> x.getMillis()).sum();
+		log.info("{} for {} repos ({} failed, {} seconds of repo time):", title, summaries.size(), failCount,
+				String.format("%4.2f", totalMillis / 1000.0));
+		log.info(String.format("   %-30s %-30s %9s %10s %8s", "repo", "status", "seconds", "KB", "objects"));
+		for (RepoSummary summary : summaries) {
+			log.info(String.format("   %-30s %-30s %9.2f %10d %8d%s", summary.getName(), summary.getStatus(),
+					summary.getMillis() / 1000.0, summary.getBytesFetched() / 1024, summary.getObjectsReceived(),
+					(summary.isFailed() ? "  " + summary.getError() : "")));
+		}
+		if (this.reportWriter != null) {
+			this.reportWriter.format("%s for %d repos (%d failed):%n", title, summaries.size(), failCount);
+			for (RepoSummary summary : summaries)
+				this.reportWriter.println("   " + summary.toString());
+			this.reportWriter.flush();
+		}
+		if (this.metricsFile != null) {
+			try (PrintWriter writer = new PrintWriter(this.metricsFile)) {
+				if (this.metricsFile.getName().endsWith(".json"))
+					writeJsonMetrics(writer, summaries);
+				else
+					writeCsvMetrics(writer, summaries);
+			}
+			log.info("Metrics written to {}.", this.metricsFile);
+		}
+	}
+
+	/**
+	 * Write the repo metrics in JSON format.
+	 *
+	 * @param writer		output writer
+	 * @param summaries		list of repo summaries to write
+	 */
+	private static void writeJsonMetrics(PrintWriter writer, List<RepoSummary> summaries) {
+		writer.println("[");
+		final int n = summaries.size();
+		for (int i = 0; i < n; i++) {
+			RepoSummary summary = summaries.get(i);
+			String error = (summary.isFailed() ? "\"" + StringEscapeUtils.escapeJson(summary.getError()) + "\"" : "null");
+			writer.format("  {\"repo\": \"%s\", \"path\": \"%s\", \"status\": \"%s\", \"millis\": %d, "
+					+ "\"bytes\": %d, \"objects\": %d, \"error\": %s}%s%n",
+					StringEscapeUtils.escapeJson(summary.getName()),
+					StringEscapeUtils.escapeJson(summary.getProjDir().getPath()),
+					StringEscapeUtils.escapeJson(summary.getStatus()), summary.getMillis(),
+					summary.getBytesFetched(), summary.getObjectsReceived(), error, (i < n - 1 ? "," : ""));
+		}
+		writer.println("]");
+	}
+
+	/**
+	 * Write the repo metrics in CSV format.
+	 *
+	 * @param writer		output writer
+	 * @param summaries		list of repo summaries to write
+	 */
+	private static void writeCsvMetrics(PrintWriter writer, List<RepoSummary> summaries) {
+		writer.println("repo,path,status,millis,bytes,objects,error");
+		for (RepoSummary summary : summaries) {
+			writer.format("%s,%s,%s,%d,%d,%d,%s%n", StringEscapeUtils.escapeCsv(summary.getName()),
+					StringEscapeUtils.escapeCsv(summary.getProjDir().getPath()),
+					StringEscapeUtils.escapeCsv(summary.getStatus()), summary.getMillis(),
+					summary.getBytesFetched(), summary.getObjectsReceived(),
+					(summary.isFailed() ? StringEscapeUtils.escapeCsv(summary.getError()) : ""));
+		}
+	}
+
 	/**
 	 * This method returns a git repo. It should be used in a try block. If the
 	 * project does not exist, a parse failure exception is thrown.
@@ -103,6 +480,72 @@ public abstract class BaseGitProcessor extends BaseProcessor {
 		return retVal;
 	}
 
+	/**
+	 * Specify a writer to receive a copy of the run summary. This is used to send results back
+	 * to a client when the command is run by a daemon.
+	 *
+	 * @param writer	writer for the summary, or NULL to only log it
+	 */
+	public void setReportWriter(PrintWriter writer) {
+		this.reportWriter = writer;
+	}
+
+	/**
+	 * Open the output for a command's report. If no output file is specified, the report goes
+	 * to the summary writer when there is one (so a daemon sends it to the client), and to the
+	 * standard output otherwise. Closing the returned writer only closes an output file; the
+	 * other destinations are just flushed.
+	 *
+	 * @param outFile	output file, or NULL to use the default destination
+	 *
+	 * @return a writer for the report
+	 *
+	 * @throws IOException
+	 */
+	protected PrintWriter openReport(File outFile) throws IOException {
+		PrintWriter retVal;
+		if (outFile != null)
+			retVal = new PrintWriter(outFile);
+		else {
+			Writer target = (this.reportWriter != null ? this.reportWriter : new OutputStreamWriter(System.out));
+			retVal = new PrintWriter(target) {
+				@Override
+				public void close() {
+					this.flush();
+				}
+			};
+		}
+		return retVal;
+	}
+
+	/**
+	 * Specify a code base to be shared by all subsequent commands on the same directory. This is
+	 * used by a daemon to keep the code base in memory between commands.
+	 *
+	 * @param codeBase	code base to share, or NULL to have each command load its own
+	 */
+	public static void setSharedCodeBase(CodeBase codeBase) {
+		sharedCodeBase = codeBase;
+	}
+
+	/**
+	 * @return the code base being processed
+	 */
+	protected CodeBase getCodeBase() {
+		return this.codeBase;
+	}
+
+	/**
+	 * @return a file in the code base state directory
+	 *
+	 * @param name	base name of the desired file
+	 *
+	 * @throws IOException
+	 */
+	public File getStateFile(String name) throws IOException {
+		return this.codeBase.getStateFile(name);
+	}
+
 	/**
 	 * @return the code base directory
 	 */
@@ -117,5 +560,28 @@ public abstract class BaseGitProcessor extends BaseProcessor {
 		return this.codeBase.iterator();
 	}
 
+	/**
+	 * @return a stream of descriptors for all the repos in this code base
+	 */
+	public Stream<ProjectInfo> getProjects() {
+		return this.codeBase.projects();
+	}
+
+	/**
+	 * @return an iterator through a single top-level project and all its submodules
+	 *
+	 * @param projDir	top-level project directory
+	 */
+	public Iterator<File> getRepos(File projDir) {
+		return this.codeBase.iterator(projDir);
+	}
+
+	/**
+	 * @return a list of the top-level project directories in this code base
+	 */
+	public List<File> getTopProjects() {
+		return this.codeBase.getTopProjects();
+	}
+
 
 }
@@ -0,0 +1,157 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object caches the remote branch computed for each repo. Each entry is keyed by the
+ * GIT directory and the remote name, and holds a fingerprint of the remote-tracking refs
+ * at the time the branch was computed. If the remote refs change, the fingerprint will not
+ * match and the entry is ignored.
+ *
+ * The cache is thread-safe. It can be saved to a tab-delimited file with four columns--
+ * (0) the GIT directory, (1) the remote name, (2) the ref fingerprint, and (3) the branch name.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class BranchCache {
+
+	// FIELDS
+	/** logging facility */
+	private static final Logger log = LoggerFactory.getLogger(BranchCache.class);
+	/** map of cache keys to entries */
+	private Map<String, Entry> entries;
+	/** file for saving the cache, or NULL if the cache is memory-only */
+	private File cacheFile;
+	/** TRUE if the cache has changed since it was loaded */
+	private volatile boolean changed;
+	/** name of the cache file in the code base state directory */
+	public static final String CACHE_NAME = "branches.tsv";
+
+	/**
+	 * This object describes a single cached branch.
+	 */
+	protected static class Entry {
+
+		/** fingerprint of the remote refs */
+		private String fingerprint;
+		/** name of the branch */
+		private String branch;
+
+		/**
+		 * Create a new cache entry.
+		 *
+		 * @param fingerprint	fingerprint of the remote refs
+		 * @param branch		name of the branch
+		 */
+		protected Entry(String fingerprint, String branch) {
+			this.fingerprint = fingerprint;
+			this.branch = branch;
+		}
+
+	}
+
+	/**
+	 * Create a new, empty, memory-only branch cache.
+	 */
+	public BranchCache() {
+		this.entries = new ConcurrentHashMap<String, Entry>();
+		this.cacheFile = null;
+		this.changed = false;
+	}
+
+	/**
+	 * Load a branch cache from a file. If the file does not exist, the cache will be empty;
+	 * if it is unreadable, a warning is logged and the cache will be empty.
+	 *
+	 * @param cacheFile		file containing the saved cache
+	 *
+	 * @return the branch cache
+	 */
+	public static BranchCache load(File cacheFile) {
+		BranchCache retVal = new BranchCache();
+		retVal.cacheFile = cacheFile;
+		try {
+			StateFile.read(cacheFile, 4, x -> retVal.entries.put(key(x[0], x[1]), new Entry(x[2], x[3])));
+		} catch (IOException e) {
+			log.warn("Could not read branch cache {}: {}", cacheFile, e.toString());
+			retVal.entries.clear();
+		}
+		return retVal;
+	}
+
+	/**
+	 * @return the key string for a repo and remote
+	 *
+	 * @param gitDir	GIT directory path
+	 * @param remote	remote name
+	 */
+	private static String key(String gitDir, String remote) {
+		return gitDir + "\t" + remote;
+	}
+
+	/**
+	 * Get the cached branch for a repo.
+	 *
+	 * @param gitDir		GIT directory of the repo
+	 * @param remote		remote name
+	 * @param fingerprint	fingerprint of the current remote refs
+	 *
+	 * @return the cached branch name, or NULL if there is no valid entry
+	 */
+	public String get(File gitDir, String remote, String fingerprint) {
+		String retVal = null;
+		Entry entry = this.entries.get(key(gitDir.getAbsolutePath(), remote));
+		if (entry != null && entry.fingerprint.equals(fingerprint))
+			retVal = entry.branch;
+		return retVal;
+	}
+
+	/**
+	 * Store the branch for a repo.
+	 *
+	 * @param gitDir		GIT directory of the repo
+	 * @param remote		remote name
+	 * @param fingerprint	fingerprint of the current remote refs
+	 * @param branch		branch name to cache
+	 */
+	public void put(File gitDir, String remote, String fingerprint, String branch) {
+		this.entries.put(key(gitDir.getAbsolutePath(), remote), new Entry(fingerprint, branch));
+		this.changed = true;
+	}
+
+	/**
+	 * Save this cache to its file, if it has one and it has changed.
+	 *
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		if (this.cacheFile != null && this.changed) {
+			StateFile.write(this.cacheFile, writer -> {
+				for (Map.Entry<String, Entry> mapEntry : this.entries.entrySet()) {
+					Entry entry = mapEntry.getValue();
+					writer.println(mapEntry.getKey() + "\t" + entry.fingerprint + "\t" + entry.branch);
+				}
+			});
+			this.changed = false;
+			log.info("{} cached branches saved to {}.", this.entries.size(), this.cacheFile);
+		}
+	}
+
+	/**
+	 * @return the number of entries in the cache
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+
+}
@@ -0,0 +1,109 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object remembers the last commit reported for each repo in a code base, so that a
+ * change report only has to walk the history added since the previous report.
+ *
+ * The checkpoint is thread-safe. It is saved in a tab-delimited file with two columns-- (0) the
+ * project directory, and (1) the ID of the last commit seen.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ChangeCheckpoint {
+
+	// FIELDS
+	/** logging facility */
+	private static final Logger log = LoggerFactory.getLogger(ChangeCheckpoint.class);
+	/** map of project directory names to last-seen commits */
+	private Map<String, ObjectId> commits;
+	/** file for saving the checkpoint */
+	private File checkpointFile;
+	/** TRUE if the checkpoint has changed since it was loaded */
+	private volatile boolean changed;
+	/** name of the checkpoint file in the code base state directory */
+	public static final String CHECKPOINT_NAME = "changes.state";
+
+	/**
+	 * Load the checkpoint from a file. If the file does not exist or is unreadable, the
+	 * checkpoint will be empty.
+	 *
+	 * @param checkpointFile	file containing the saved checkpoint
+	 *
+	 * @return the change checkpoint
+	 */
+	public static ChangeCheckpoint load(File checkpointFile) {
+		ChangeCheckpoint retVal = new ChangeCheckpoint(checkpointFile);
+		try {
+			StateFile.read(checkpointFile, 2, x -> {
+				if (ObjectId.isId(x[1]))
+					retVal.commits.put(x[0], ObjectId.fromString(x[1]));
+			});
+		} catch (IOException e) {
+			log.warn("Could not read change checkpoint {}: {}", checkpointFile, e.toString());
+			retVal.commits.clear();
+		}
+		return retVal;
+	}
+
+	/**
+	 * Create an empty checkpoint.
+	 *
+	 * @param checkpointFile	file for saving the checkpoint
+	 */
+	private ChangeCheckpoint(File checkpointFile) {
+		this.checkpointFile = checkpointFile;
+		this.commits = new ConcurrentHashMap<String, ObjectId>();
+		this.changed = false;
+	}
+
+	/**
+	 * @return the last commit seen for a repo, or NULL if the repo has never been seen
+	 *
+	 * @param projDir	project directory
+	 */
+	public ObjectId get(File projDir) {
+		return this.commits.get(projDir.getAbsolutePath());
+	}
+
+	/**
+	 * Record the last commit seen for a repo.
+	 *
+	 * @param projDir	project directory
+	 * @param commit	ID of the last commit seen
+	 */
+	public void update(File projDir, ObjectId commit) {
+		ObjectId old = this.commits.put(projDir.getAbsolutePath(), commit.copy());
+		if (! commit.equals(old))
+			this.changed = true;
+	}
+
+	/**
+	 * Save this checkpoint to its file if it has changed.
+	 *
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		if (this.changed) {
+			StateFile.write(this.checkpointFile, writer -> {
+				for (Map.Entry<String, ObjectId> commit : this.commits.entrySet())
+					writer.println(commit.getKey() + "\t" + commit.getValue().name());
+			});
+			this.changed = false;
+			log.info("Change checkpoint for {} repos saved to {}.", this.commits.size(), this.checkpointFile);
+		}
+	}
+
+}
@@ -7,17 +7,33 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.apache.commons.lang3.StringUtils;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.storage.file.FileBasedConfig;
 import org.eclipse.jgit.util.FS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.theseed.basic.ParseFailureException;
 
 /**
@@ -30,8 +46,30 @@ import org.theseed.basic.ParseFailureException;
 public class CodeBase {
 
 	// FIELDS
+	/** logging facility */
+	private static final Logger log = LoggerFactory.getLogger(CodeBase.class);
 	/** master directory for the code base */
 	private File masterDir;
+	/** persistent project index, or NULL if the code base is scanned directly */
+	private CodeBaseIndex index;
+	/** map of project names to project directories, or NULL if it has not been built yet */
+	private volatile Map<String, List<File>> nameMap;
+	/** precomputed list of top-level projects, or NULL if the code base has not been discovered */
+	private volatile List<File> topList;
+	/** precomputed map of project directories to submodule lists, or NULL if the code base has not been discovered */
+	private volatile Map<File, List<File>> subTree;
+	/** number of threads used for the last discovery */
+	private int discoverThreads;
+	/** cache of submodule lists for project directories */
+	private Map<File, ModuleEntry> moduleCache;
+	/** project directories whose submodule lists in the index are out of date */
+	private Set<File> staleProjects;
+	/** TRUE if a watcher is reporting changes, so that cached submodule lists need not be revalidated */
+	private volatile boolean watched;
+	/** TRUE if submodule lists should be cached in memory */
+	private boolean cacheModules;
+	/** name of the code base state directory */
+	public static final String STATE_DIR_NAME = ".jconfig";
 	/** list filter for GIT subdirectories */
 	private static FileFilter PROJ_DIR = new FileFilter() {
 		@Override
@@ -65,10 +103,20 @@ public class CodeBase {
 		 * Construct the iterator for this code base.
 		 */
 		public ProjectIterator() {
+			this(CodeBase.this.getTopProjects());
+		}
+
+		/**
+		 * Construct an iterator for a subset of this code base.
+		 *
+		 * @param projects	list of starting project directories; each will be returned
+		 * 					followed by its submodules
+		 */
+		public ProjectIterator(List<File> projects) {
 			// Initialize the stack.
 			this.dirStack = new ArrayDeque<Iterator<File>>(3);
 			// Get the list of main projects.
-			Iterator<File> iter = CodeBase.this.getTopProjects().iterator();
+			Iterator<File> iter = projects.iterator();
 			// If there are any projects, we push the iterator onto the stack.
 			if (iter.hasNext())
 				this.dirStack.push(iter);
@@ -104,6 +152,176 @@ public class CodeBase {
 
 	}
 
+	/**
+	 * This object contains a cached submodule list, along with the modification time and size
+	 * of the ".gitmodules" file it was computed from.
+	 */
+	protected static class ModuleEntry {
+
+		/** modification time of the module file, or -1 if there was none */
+		private long modTime;
+		/** size of the module file, or -1 if there was none */
+		private long size;
+		/** list of submodule directories, or NULL for a leaf project */
+		private List<File> subs;
+
+		/**
+		 * Create a cached submodule list.
+		 *
+		 * @param stamp		modification time and size of the module file
+		 * @param subs		list of submodule directories, or NULL for a leaf project
+		 */
+		protected ModuleEntry(long[] stamp, List<File> subs) {
+			this.modTime = stamp[0];
+			this.size = stamp[1];
+			this.subs = subs;
+		}
+
+		/**
+		 * @return TRUE if the module file still has the same modification time and size
+		 *
+		 * @param stamp		current modification time and size of the module file
+		 */
+		protected boolean matches(long[] stamp) {
+			return this.modTime == stamp[0] && this.size == stamp[1];
+		}
+
+	}
+
+	/**
+	 * This class splits a traversal of the code base for streaming. It returns the same projects
+	 * in the same order as the project iterator, but wraps each one in a project descriptor.
+	 *
+	 * The spliterator covers a range of top-level projects, and a project is always returned
+	 * before its submodules. Splits are only made at top-level project boundaries, so that a
+	 * project and all its submodules are processed by the same thread. The spliterator that
+	 * is split off gets the first half of the remaining top-level projects, together with any
+	 * subtree in progress.
+	 */
+	public class ProjectSpliterator implements Spliterator<ProjectInfo> {
+
+		/** list of top-level project directories */
+		private List<File> tops;
+		/** index of the next top-level project to start */
+		private int next;
+		/** index past the last top-level project in range */
+		private int end;
+		/** stack of submodule iterators for the subtree in progress */
+		private Deque<Iterator<ProjectInfo>> dirStack;
+
+		/**
+		 * Construct a spliterator for a range of top-level projects.
+		 *
+		 * @param tops		list of top-level project directories
+		 * @param next		index of the first top-level project in range
+		 * @param end		index past the last top-level project in range
+		 */
+		protected ProjectSpliterator(List<File> tops, int next, int end) {
+			this.tops = tops;
+			this.next = next;
+			this.end = end;
+			this.dirStack = new ArrayDeque<Iterator<ProjectInfo>>(3);
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super ProjectInfo> action) {
+			ProjectInfo found = null;
+			if (! this.dirStack.isEmpty()) {
+				Iterator<ProjectInfo> topIter = this.dirStack.peek();
+				found = topIter.next();
+				if (! topIter.hasNext())
+					this.dirStack.pop();
+			} else if (this.next < this.end) {
+				found = new ProjectInfo(this.tops.get(this.next), null, CodeBase.this.index);
+				this.next++;
+			}
+			boolean retVal = (found != null);
+			if (retVal) {
+				// Queue the submodules so they come out next.
+				List<File> subFiles = getSubmodules(found.getDir());
+				if (subFiles != null && ! subFiles.isEmpty()) {
+					List<ProjectInfo> subs = new ArrayList<ProjectInfo>(subFiles.size());
+					for (File subFile : subFiles)
+						subs.add(new ProjectInfo(subFile, found, CodeBase.this.index));
+					this.dirStack.push(subs.iterator());
+				}
+				action.accept(found);
+			}
+			return retVal;
+		}
+
+		@Override
+		public Spliterator<ProjectInfo> trySplit() {
+			ProjectSpliterator retVal = null;
+			int remaining = this.end - this.next;
+			if (remaining >= 2) {
+				int mid = this.next + remaining / 2;
+				retVal = new ProjectSpliterator(this.tops, this.next, mid);
+				// The subtree in progress precedes the unstarted projects, so it goes with the prefix.
+				Deque<Iterator<ProjectInfo>> stack = retVal.dirStack;
+				retVal.dirStack = this.dirStack;
+				this.dirStack = stack;
+				this.next = mid;
+			}
+			return retVal;
+		}
+
+		@Override
+		public long estimateSize() {
+			// We only know the number of top-level projects; the submodule counts are unknown
+			// until we get to them.
+			return this.end - this.next + this.dirStack.size();
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | DISTINCT | NONNULL;
+		}
+
+	}
+
+	/**
+	 * This task discovers the submodules of a project directory and stores them in the
+	 * submodule tree, then forks a sub-task for each submodule, so that the whole subtree
+	 * is explored concurrently.
+	 */
+	protected class DiscoveryTask extends RecursiveAction {
+
+		/** serialization ID */
+		private static final long serialVersionUID = 1L;
+		/** project directory to explore */
+		private File projDir;
+		/** submodule tree being built */
+		private Map<File, List<File>> tree;
+
+		/**
+		 * Create a discovery task for a project directory.
+		 *
+		 * @param projDir	project directory to explore
+		 * @param tree		submodule tree being built
+		 */
+		protected DiscoveryTask(File projDir, Map<File, List<File>> tree) {
+			this.projDir = projDir;
+			this.tree = tree;
+		}
+
+		@Override
+		protected void compute() {
+			List<File> subFiles = CodeBase.this.findSubmodules(this.projDir);
+			// A leaf project is stored as an empty list, since the tree cannot contain nulls.
+			if (subFiles == null)
+				subFiles = List.of();
+			this.tree.put(this.projDir, subFiles);
+			if (! subFiles.isEmpty()) {
+				List<DiscoveryTask> subTasks = new ArrayList<DiscoveryTask>(subFiles.size());
+				for (File subFile : subFiles)
+					subTasks.add(new DiscoveryTask(subFile, this.tree));
+				invokeAll(subTasks);
+			}
+		}
+
+	}
+
 	/**
 	 * Construct a new code base directory manager.
 	 *
@@ -113,19 +331,153 @@ public class CodeBase {
 	 */
 	public CodeBase(File dir) throws IOException {
 		this.masterDir = dir;
+		this.index = null;
+		this.nameMap = null;
+		this.moduleCache = new ConcurrentHashMap<File, ModuleEntry>();
+		this.staleProjects = ConcurrentHashMap.newKeySet();
+		this.watched = false;
+		this.cacheModules = true;
 		if (! this.masterDir.isDirectory())
 			throw new IOException(dir + " is not a valid directory.");
 	}
 
+	/**
+	 * Use a persistent index to avoid scanning the code base directories. The index is kept
+	 * in the code base state directory and is brought up to date on loading, so that only the
+	 * parts of the code base that have changed are rescanned.
+	 *
+	 * If the state directory cannot be created, a warning is logged and the code base
+	 * will be scanned directly.
+	 *
+	 * @param rebuild	TRUE to discard any existing index and rescan the whole code base
+	 */
+	public void loadIndex(boolean rebuild) {
+		try {
+			File indexFile = this.getStateFile(CodeBaseIndex.INDEX_NAME);
+			this.index = CodeBaseIndex.load(this.masterDir, indexFile, rebuild);
+			this.nameMap = null;
+			// The index has been revalidated, so it is no longer out of date.
+			this.staleProjects.clear();
+		} catch (IOException e) {
+			log.warn("Code base index is not available for {}: {}", this.masterDir, e.toString());
+		}
+	}
+
+	/**
+	 * @return the code base index, or NULL if none is in use
+	 */
+	public CodeBaseIndex getIndex() {
+		return this.index;
+	}
+
+	/**
+	 * Compute the name of a file in the code base state directory. The state directory is
+	 * created if it does not exist.
+	 *
+	 * @param name	base name of the desired file
+	 *
+	 * @return a file object for the named file in the state directory
+	 *
+	 * @throws IOException
+	 */
+	public File getStateFile(String name) throws IOException {
+		File stateDir = new File(this.masterDir, STATE_DIR_NAME);
+		if (! stateDir.isDirectory() && ! stateDir.mkdirs())
+			throw new IOException("Could not create state directory " + stateDir + ".");
+		return new File(stateDir, name);
+	}
+
+	/**
+	 * Discover the entire project tree in parallel. Each top-level project is explored by a
+	 * separate fork-join task, which in turn forks a task for each submodule. The resulting
+	 * tree is kept in memory, and all subsequent iterations use it instead of going back to
+	 * the disk. The iteration order is the same as for an undiscovered code base.
+	 *
+	 * @param threads	number of threads to use for the discovery
+	 */
+	public void discover(int threads) {
+		long start = System.currentTimeMillis();
+		Map<File, List<File>> tree = new ConcurrentHashMap<File, List<File>>();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			// Without an index, we need to check each directory in the master directory for a
+			// ".git" entry, and this is done in parallel as well.
+			List<File> tops;
+			if (this.index != null)
+				tops = this.index.getTopProjects();
+			else
+				tops = pool.submit(() -> Arrays.stream(this.masterDir.listFiles()).parallel()
+						.filter(x -> PROJ_DIR.accept(x)).toList()).get();
+			List<DiscoveryTask> topTasks = new ArrayList<DiscoveryTask>(tops.size());
+			for (File top : tops)
+				topTasks.add(new DiscoveryTask(top, tree));
+			pool.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {
+					invokeAll(topTasks);
+				}
+			});
+			this.subTree = tree;
+			this.topList = tops;
+			this.discoverThreads = threads;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Code base discovery interrupted.");
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error during code base discovery: " + e.getCause().toString());
+		} finally {
+			pool.shutdown();
+		}
+		log.info("{} projects discovered in {} using {} threads ({} ms).", tree.size(), this.masterDir, threads,
+				System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Bring the in-memory view of the code base up to date after changes on disk. The index
+	 * (if any) is revalidated, and if the project tree was discovered, it is discovered again.
+	 */
+	public synchronized void refresh() {
+		if (this.index != null)
+			this.loadIndex(false);
+		this.nameMap = null;
+		if (this.subTree != null)
+			this.discover(this.discoverThreads);
+	}
+
+	/**
+	 * @return the master directory of this code base
+	 */
+	public File getMasterDir() {
+		return this.masterDir;
+	}
+
 	/**
 	 * @return a list of the top-level projects in this code base
 	 */
 	public List<File> getTopProjects() {
-		return Arrays.asList(this.masterDir.listFiles(PROJ_DIR));
+		List<File> retVal = this.topList;
+		if (retVal != null) {
+			// Here the code base has been discovered.
+		} else if (this.index != null)
+			retVal = this.index.getTopProjects();
+		else
+			retVal = scanTopProjects(this.masterDir);
+		return retVal;
+	}
+
+	/**
+	 * @return a list of the project directories in a code base master directory
+	 *
+	 * @param masterDir		master directory to scan
+	 */
+	protected static List<File> scanTopProjects(File masterDir) {
+		return Arrays.asList(masterDir.listFiles(PROJ_DIR));
 	}
 
 	/**
-	 * Find submodules in the specified project directory.
+	 * Find submodules in the specified project directory. If the code base has been
+	 * discovered, the submodules come from the project tree in memory.
 	 *
 	 * @param projDir	project directory to check
 	 *
@@ -133,6 +485,142 @@ public class CodeBase {
 	 */
 	public List<File> getSubmodules(File projDir) {
 		List<File> retVal = null;
+		Map<File, List<File>> tree = this.subTree;
+		if (tree != null)
+			retVal = tree.get(projDir);
+		if (retVal == null)
+			retVal = this.findSubmodules(projDir);
+		return retVal;
+	}
+
+	/**
+	 * Find submodules in the specified project directory. The submodule lists are cached unless
+	 * caching has been turned off. If the code base is being watched, a cached list is used until
+	 * the project is invalidated. Otherwise, it is used as long as the ".gitmodules" file has the
+	 * same modification time and size.
+	 *
+	 * @param projDir	project directory to check
+	 *
+	 * @return a list of directories for the submodules, or NULL if the project is a leaf project
+	 */
+	protected List<File> findSubmodules(File projDir) {
+		List<File> retVal;
+		ModuleEntry entry = this.moduleCache.get(projDir);
+		long[] stamp = null;
+		if (entry != null && ! this.watched) {
+			stamp = moduleStamp(projDir);
+			if (! entry.matches(stamp)) {
+				// The module file has changed, so the index entry (if any) is out of date, too.
+				this.staleProjects.add(projDir);
+				entry = null;
+			}
+		}
+		if (entry != null)
+			retVal = entry.subs;
+		else {
+			// We stamp before reading, so that a change during the read forces another read later.
+			if (stamp == null)
+				stamp = moduleStamp(projDir);
+			retVal = this.readSubmodules(projDir);
+			if (this.cacheModules)
+				this.moduleCache.put(projDir, new ModuleEntry(stamp, retVal));
+		}
+		return retVal;
+	}
+
+	/**
+	 * @return the modification time and size of a project's ".gitmodules" file, or -1 for both
+	 * 		   if there is no such file
+	 *
+	 * @param projDir	project directory to check
+	 */
+	private static long[] moduleStamp(File projDir) {
+		long[] retVal;
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(new File(projDir, ".gitmodules").toPath(),
+					BasicFileAttributes.class);
+			retVal = new long[] { attrs.lastModifiedTime().toMillis(), attrs.size() };
+		} catch (IOException e) {
+			retVal = new long[] { -1L, -1L };
+		}
+		return retVal;
+	}
+
+	/**
+	 * Compute the submodules in the specified project directory using the index or the
+	 * ".gitmodules" file.
+	 *
+	 * @param projDir	project directory to check
+	 *
+	 * @return a list of directories for the submodules, or NULL if the project is a leaf project
+	 */
+	private List<File> readSubmodules(File projDir) {
+		List<File> retVal = null;
+		List<String> subNames;
+		if (this.index != null && this.index.contains(projDir) && ! this.staleProjects.contains(projDir))
+			subNames = this.index.getSubmoduleNames(projDir);
+		else
+			subNames = readSubmoduleNames(projDir);
+		if (subNames != null) {
+			retVal = new ArrayList<File>(subNames.size());
+			// Loop through the names, forming the submodule directories.
+			for (String subName : subNames) {
+				File subFile = new File(projDir, subName);
+				// Verify the directory exists.
+				if (subFile.isDirectory())
+					retVal.add(subFile);
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Discard the cached submodule list for a project, so that it is recomputed from disk on
+	 * the next request. This is used when a watcher detects a change.
+	 *
+	 * @param projDir	project directory that has changed
+	 */
+	public void invalidate(File projDir) {
+		this.moduleCache.remove(projDir);
+		this.staleProjects.add(projDir);
+		Map<File, List<File>> tree = this.subTree;
+		if (tree != null)
+			tree.remove(projDir);
+		this.nameMap = null;
+	}
+
+	/**
+	 * Specify whether a watcher is reporting changes to this code base. While the code base is
+	 * watched, cached submodule lists are trusted without checking the disk.
+	 *
+	 * @param flag	TRUE if a watcher is active, else FALSE
+	 */
+	public void setWatched(boolean flag) {
+		this.watched = flag;
+	}
+
+	/**
+	 * Specify whether submodule lists should be cached in memory. A one-pass command does not
+	 * need the cache, and turning it off means each submodule list can be released as soon as
+	 * the iteration has passed it.
+	 *
+	 * @param flag	TRUE to cache submodule lists, else FALSE
+	 */
+	public void setModuleCaching(boolean flag) {
+		this.cacheModules = flag;
+		if (! flag)
+			this.moduleCache.clear();
+	}
+
+	/**
+	 * Parse the ".gitmodules" file of a project to get the names of its declared submodules.
+	 *
+	 * @param projDir	project directory to check
+	 *
+	 * @return a list of the submodule names, or NULL if the project is a leaf project
+	 */
+	protected static List<String> readSubmoduleNames(File projDir) {
+		List<String> retVal = null;
 		File moduleFile = new File(projDir, ".gitmodules");
 		if (moduleFile.exists()) {
 			FileBasedConfig subConfig = new FileBasedConfig(moduleFile, FS.DETECTED);
@@ -145,14 +633,7 @@ public class CodeBase {
 			}
 			// The submodules are all names in the "submodule" section.
 			Set<String> sections = subConfig.getSubsections("submodule");
-			retVal = new ArrayList<File>(sections.size());
-			// Loop through the sections, extracting the submodule name.
-			for (String section : sections) {
-				File subFile = new File(projDir, section);
-				// Verify the directory exists.
-				if (subFile.isDirectory())
-					retVal.add(subFile);
-			}
+			retVal = new ArrayList<String>(sections);
 		}
 		return retVal;
 	}
@@ -164,6 +645,24 @@ public class CodeBase {
 		return this.new ProjectIterator();
 	}
 
+	/**
+	 * @return an iterator through a single project directory followed by all its submodules
+	 *
+	 * @param projDir	project directory at the root of the subtree
+	 */
+	public Iterator<File> iterator(File projDir) {
+		return this.new ProjectIterator(List.of(projDir));
+	}
+
+	/**
+	 * @return a sequential stream of descriptors for all the projects in this code base, in
+	 * 		   iteration order; call "parallel" to process top-level projects concurrently
+	 */
+	public Stream<ProjectInfo> projects() {
+		List<File> tops = this.getTopProjects();
+		return StreamSupport.stream(this.new ProjectSpliterator(tops, 0, tops.size()), false);
+	}
+
 	/**
 	 * This method returns a git repo. It should be used in a try block. If the
 	 * project does not exist, a parse failure exception is thrown.
@@ -176,27 +675,58 @@ public class CodeBase {
 	 * @throws ParseFailureException
 	 */
 	public GitRepo getRepo(String projName) throws IOException, ParseFailureException {
-		GitRepo retVal;
 		// Check to see if this is a high-level project. We do this first to see if we
-		// can get a quick hit without a linear search.
+		// can get a quick hit without building the name map.
 		File projFile = new File(this.masterDir, projName);
 		File gitDir = new File(projFile, ".git");
-		if (gitDir.exists()) {
-			// Here we can return the project immediately.
-			retVal = new GitRepo(projFile);
-		} else {
-			// Now we have to search submodules, which is a long process. We iterate through all
-			// the projects until we find the one we want.
-			Iterator<File> iter = this.iterator();
-			retVal = null;
-			while (retVal == null && iter.hasNext()) {
-				projFile = iter.next();
-				if (projFile.getName().equals(projName))
-					retVal = new GitRepo(projFile);
+		if (! gitDir.exists()) {
+			// Now we have to search submodules. We use the name map for this.
+			projFile = this.findProject(projName);
+		}
+		return new GitRepo(projFile);
+	}
+
+	/**
+	 * Find the directory of a project anywhere in the code base. If more than one project has
+	 * the specified name, a parse failure exception is thrown listing the candidates.
+	 *
+	 * @param projName	name of the project to find
+	 *
+	 * @return the directory containing the project
+	 *
+	 * @throws ParseFailureException
+	 */
+	public File findProject(String projName) throws ParseFailureException {
+		List<File> projDirs = this.getNameMap().get(projName);
+		if (projDirs == null)
+			throw new ParseFailureException("Could not find " + projName
+					+ " in code base " + this.masterDir);
+		if (projDirs.size() > 1)
+			throw new ParseFailureException("Project name " + projName + " is ambiguous in code base "
+					+ this.masterDir + ": found in " + StringUtils.join(projDirs, ", ") + ".");
+		return projDirs.get(0);
+	}
+
+	/**
+	 * @return the map of project names to project directories, building it if necessary
+	 */
+	private Map<String, List<File>> getNameMap() {
+		Map<String, List<File>> retVal = this.nameMap;
+		if (retVal == null) {
+			synchronized (this) {
+				retVal = this.nameMap;
+				if (retVal == null) {
+					// Here we must build the map. We traverse the entire code base, remembering
+					// every directory for each name so that duplicates can be reported.
+					retVal = new HashMap<String, List<File>>();
+					Iterator<File> iter = this.iterator();
+					while (iter.hasNext()) {
+						File projDir = iter.next();
+						retVal.computeIfAbsent(projDir.getName(), x -> new ArrayList<File>(1)).add(projDir);
+					}
+					this.nameMap = retVal;
+				}
 			}
-			if (retVal == null)
-				throw new ParseFailureException("Could not find " + projName
-						+ " in code base " + this.masterDir);
 		}
 		return retVal;
 	}
@@ -206,8 +736,4 @@ public class CodeBase {
 		return "CodeBase [" + this.masterDir + "]";
 	}
 
-
-
-
-
 }
@@ -0,0 +1,313 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.io.LineReader;
+
+/**
+ * This object is a persistent index of the projects in a code base. It records the top-level
+ * projects, the declared submodules of each project, and the GIT directory of each project, so
+ * that a code base can be traversed without listing the master directory or parsing every
+ * ".gitmodules" file.
+ *
+ * The index is validated using modification times. If the master directory has changed, the
+ * top-level project list is rescanned. If a project's ".gitmodules" file has changed, only that
+ * project's submodule list is reparsed. Projects that are no longer reachable are dropped.
+ *
+ * The index file is tab-delimited. The first line is a header containing the format version
+ * and the modification time of the master directory. Each "T" line contains the name of a
+ * top-level project, in order. Each "P" line describes a project, and contains (0) the record
+ * type, (1) the path of the project relative to the master directory, (2) the modification time
+ * of the ".gitmodules" file (or 0 if there is none), (3) the GIT directory (or "-" if it is
+ * unknown), and (4+) the names of the declared submodules.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CodeBaseIndex {
+
+	// FIELDS
+	/** logging facility */
+	private static final Logger log = LoggerFactory.getLogger(CodeBaseIndex.class);
+	/** master directory of the code base */
+	private File masterDir;
+	/** file containing the index */
+	private File indexFile;
+	/** modification time of the master directory when the top-level list was scanned */
+	private long masterTime;
+	/** names of the top-level projects */
+	private List<String> topNames;
+	/** map of relative project paths to project descriptors */
+	private Map<String, Entry> entries;
+	/** TRUE if the index has changed since it was loaded */
+	private boolean changed;
+	/** name of the index file in the code base state directory */
+	public static final String INDEX_NAME = "codebase.idx";
+	/** index format version */
+	private static final String VERSION = "1";
+	/** marker for a missing GIT directory */
+	private static final String NO_DIR = "-";
+
+	/**
+	 * This object describes a single project in the index.
+	 */
+	protected static class Entry {
+
+		/** modification time of the ".gitmodules" file (0 if none) */
+		private long modulesTime;
+		/** GIT directory path, or NULL if unknown */
+		private String gitDir;
+		/** list of declared submodule names, or NULL if this is a leaf project */
+		private List<String> subNames;
+
+	}
+
+	/**
+	 * Create an empty index.
+	 *
+	 * @param masterDir		master directory of the code base
+	 * @param indexFile		file to contain the index
+	 */
+	private CodeBaseIndex(File masterDir, File indexFile) {
+		this.masterDir = masterDir;
+		this.indexFile = indexFile;
+		this.clear();
+	}
+
+	/**
+	 * Erase the index data so that the index will be rebuilt.
+	 */
+	private void clear() {
+		this.masterTime = -1;
+		this.topNames = new ArrayList<String>();
+		this.entries = new HashMap<String, Entry>();
+		this.changed = true;
+	}
+
+	/**
+	 * Load the index for a code base, bring it up to date, and save it if it has changed.
+	 *
+	 * @param masterDir		master directory of the code base
+	 * @param indexFile		file containing the index
+	 * @param rebuild		TRUE to ignore the existing index and rescan the entire code base
+	 *
+	 * @return the up-to-date index
+	 */
+	public static CodeBaseIndex load(File masterDir, File indexFile, boolean rebuild) {
+		CodeBaseIndex retVal = new CodeBaseIndex(masterDir, indexFile);
+		if (! rebuild && indexFile.canRead()) {
+			try {
+				retVal.read();
+			} catch (IOException | RuntimeException e) {
+				log.warn("Code base index {} is invalid and will be rebuilt: {}", indexFile, e.toString());
+				retVal.clear();
+			}
+		}
+		retVal.refresh();
+		if (retVal.changed) {
+			try {
+				retVal.save();
+			} catch (IOException e) {
+				log.warn("Could not save code base index {}: {}", indexFile, e.toString());
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Read the index from the index file.
+	 *
+	 * @throws IOException
+	 */
+	private void read() throws IOException {
+		try (LineReader inStream = new LineReader(this.indexFile)) {
+			if (! inStream.hasNext())
+				throw new IOException("Index file is empty.");
+			String[] header = inStream.next().split("\t");
+			if (header.length != 3 || ! header[1].equals(VERSION))
+				throw new IOException("Index file has an incompatible format.");
+			this.masterTime = Long.parseLong(header[2]);
+			for (String line : inStream) {
+				String[] fields = line.split("\t");
+				switch (fields[0]) {
+				case "T" :
+					this.topNames.add(fields[1]);
+					break;
+				case "P" :
+					Entry entry = new Entry();
+					entry.modulesTime = Long.parseLong(fields[2]);
+					entry.gitDir = (fields[3].equals(NO_DIR) ? null : fields[3]);
+					if (entry.modulesTime != 0L)
+						entry.subNames = new ArrayList<String>(Arrays.asList(fields).subList(4, fields.length));
+					this.entries.put(fields[1], entry);
+					break;
+				default :
+					throw new IOException("Invalid record type \"" + fields[0] + "\" in index file.");
+				}
+			}
+		}
+		this.changed = false;
+	}
+
+	/**
+	 * Bring the index up to date with the code base on disk.
+	 */
+	private void refresh() {
+		long curTime = this.masterDir.lastModified();
+		if (curTime != this.masterTime) {
+			// The master directory has changed, so we need to rescan the top-level projects.
+			log.info("Scanning top-level projects in {}.", this.masterDir);
+			this.topNames = new ArrayList<String>();
+			for (File projDir : CodeBase.scanTopProjects(this.masterDir))
+				this.topNames.add(projDir.getName());
+			this.masterTime = curTime;
+			this.changed = true;
+		}
+		// Now we validate the projects and their submodules. Each valid entry is copied to the
+		// new map. Entries for projects that have disappeared will not be copied.
+		Map<String, Entry> newEntries = new HashMap<String, Entry>(this.entries.size() * 4 / 3 + 1);
+		for (String topName : this.topNames)
+			this.refreshProject(new File(this.masterDir, topName), topName, newEntries);
+		if (newEntries.size() != this.entries.size())
+			this.changed = true;
+		this.entries = newEntries;
+	}
+
+	/**
+	 * Validate the index entry for a project and recursively validate its submodules.
+	 *
+	 * @param projDir		project directory
+	 * @param relPath		path of the project relative to the master directory
+	 * @param newEntries	map of validated entries, to be updated
+	 */
+	private void refreshProject(File projDir, String relPath, Map<String, Entry> newEntries) {
+		Entry entry = this.entries.get(relPath);
+		long modulesTime = new File(projDir, ".gitmodules").lastModified();
+		if (entry == null || entry.modulesTime != modulesTime) {
+			// Here the submodule list is new or out of date.
+			Entry newEntry = new Entry();
+			newEntry.modulesTime = modulesTime;
+			newEntry.subNames = CodeBase.readSubmoduleNames(projDir);
+			if (entry != null)
+				newEntry.gitDir = entry.gitDir;
+			entry = newEntry;
+			this.changed = true;
+		}
+		if (entry.gitDir == null) {
+			try {
+				entry.gitDir = GitRepo.findGitDir(projDir).getPath();
+				this.changed = true;
+			} catch (IOException e) {
+				log.debug("No GIT directory found for {}: {}", projDir, e.toString());
+			}
+		}
+		newEntries.put(relPath, entry);
+		if (entry.subNames != null) {
+			for (String subName : entry.subNames) {
+				File subDir = new File(projDir, subName);
+				if (subDir.isDirectory())
+					this.refreshProject(subDir, relPath + "/" + subName, newEntries);
+			}
+		}
+	}
+
+	/**
+	 * Save the index to the index file. The index is written to a temporary file and
+	 * then renamed, so that other processes never see a partial index.
+	 *
+	 * @throws IOException
+	 */
+	private void save() throws IOException {
+		StateFile.write(this.indexFile, writer -> {
+			writer.println("#codebase-index\t" + VERSION + "\t" + this.masterTime);
+			for (String topName : this.topNames)
+				writer.println("T\t" + topName);
+			for (Map.Entry<String, Entry> mapEntry : this.entries.entrySet()) {
+				Entry entry = mapEntry.getValue();
+				StringBuilder line = new StringBuilder(80);
+				line.append("P\t").append(mapEntry.getKey()).append('\t').append(entry.modulesTime)
+						.append('\t').append(entry.gitDir == null ? NO_DIR : entry.gitDir);
+				if (entry.subNames != null) {
+					for (String subName : entry.subNames)
+						line.append('\t').append(subName);
+				}
+				writer.println(line);
+			}
+		});
+		this.changed = false;
+		log.info("Code base index saved to {} ({} projects).", this.indexFile, this.entries.size());
+	}
+
+	/**
+	 * @return the path of a project relative to the master directory
+	 *
+	 * @param projDir	project directory of interest
+	 */
+	private String relativePath(File projDir) {
+		return this.masterDir.toPath().relativize(projDir.toPath()).toString().replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * @return a list of the top-level project directories
+	 */
+	public List<File> getTopProjects() {
+		List<File> retVal = new ArrayList<File>(this.topNames.size());
+		for (String topName : this.topNames)
+			retVal.add(new File(this.masterDir, topName));
+		return retVal;
+	}
+
+	/**
+	 * @return TRUE if the specified project directory is in the index
+	 *
+	 * @param projDir	project directory of interest
+	 */
+	public boolean contains(File projDir) {
+		return this.entries.containsKey(this.relativePath(projDir));
+	}
+
+	/**
+	 * @return the declared submodule names for a project, or NULL if it is a leaf project or is not indexed
+	 *
+	 * @param projDir	project directory of interest
+	 */
+	public List<String> getSubmoduleNames(File projDir) {
+		List<String> retVal = null;
+		Entry entry = this.entries.get(this.relativePath(projDir));
+		if (entry != null)
+			retVal = entry.subNames;
+		return retVal;
+	}
+
+	/**
+	 * @return the GIT directory for a project, or NULL if it is unknown
+	 *
+	 * @param projDir	project directory of interest
+	 */
+	public File getGitDir(File projDir) {
+		File retVal = null;
+		Entry entry = this.entries.get(this.relativePath(projDir));
+		if (entry != null && entry.gitDir != null)
+			retVal = new File(entry.gitDir);
+		return retVal;
+	}
+
+	/**
+	 * @return the number of projects in the index
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+
+}
@@ -0,0 +1,165 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object watches a code base for structural changes, so that a long-running process can
+ * keep the code base in memory. The master directory is watched for projects being added or
+ * removed, and each project directory is watched for changes to its ".gitmodules" file and
+ * its ".git" entry.
+ *
+ * While the watcher is active, the code base trusts its cached submodule lists, and the
+ * watcher invalidates the lists for the projects that change.
+ *
+ * The watcher does not run a thread of its own. Instead, the owner calls "poll" before using
+ * the code base, and any pending changes are applied at that time.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CodeBaseWatcher implements AutoCloseable {
+
+	// FIELDS
+	/** logging facility */
+	private static final Logger log = LoggerFactory.getLogger(CodeBaseWatcher.class);
+	/** code base being watched */
+	private CodeBase codeBase;
+	/** file system watch service */
+	private WatchService watcher;
+	/** map of watch keys to the directories they watch */
+	private Map<WatchKey, File> keyDirs;
+
+	/**
+	 * Begin watching a code base.
+	 *
+	 * @param codeBase	code base to watch
+	 *
+	 * @throws IOException
+	 */
+	public CodeBaseWatcher(CodeBase codeBase) throws IOException {
+		this.codeBase = codeBase;
+		this.watcher = FileSystems.getDefault().newWatchService();
+		this.keyDirs = new HashMap<WatchKey, File>();
+		this.registerAll();
+		// Now the cached submodule lists can be trusted until we report a change.
+		codeBase.setWatched(true);
+	}
+
+	/**
+	 * Register the master directory and all the project directories that are not already
+	 * being watched.
+	 *
+	 * @throws IOException
+	 */
+	private void registerAll() throws IOException {
+		int oldCount = this.keyDirs.size();
+		this.register(this.codeBase.getMasterDir());
+		Iterator<File> iter = this.codeBase.iterator();
+		while (iter.hasNext())
+			this.register(iter.next());
+		log.info("{} new directories watched in {}.", this.keyDirs.size() - oldCount, this.codeBase);
+	}
+
+	/**
+	 * Watch a single directory. If the directory is already watched, nothing happens.
+	 *
+	 * @param dir	directory to watch
+	 *
+	 * @throws IOException
+	 */
+	private void register(File dir) throws IOException {
+		try {
+			WatchKey key = dir.toPath().register(this.watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			// Registering a directory twice returns the same key.
+			this.keyDirs.put(key, dir);
+		} catch (NoSuchFileException e) {
+			// The directory was deleted after we found it. The next poll will pick this up.
+			log.debug("Directory {} disappeared before it could be watched.", dir);
+		}
+	}
+
+	/**
+	 * Process all the pending change events. If a project directory has changed, its cached
+	 * submodule list is discarded, and if its ".git" entry has changed, its repository is
+	 * dropped from the repository pool. If the master directory has changed, the whole code
+	 * base is refreshed. Any new projects are then watched.
+	 *
+	 * @return TRUE if any part of the code base was invalidated
+	 *
+	 * @throws IOException
+	 */
+	public boolean poll() throws IOException {
+		boolean topChanged = false;
+		Set<File> changedProjects = new HashSet<File>();
+		File masterDir = this.codeBase.getMasterDir();
+		for (WatchKey key = this.watcher.poll(); key != null; key = this.watcher.poll()) {
+			File dir = this.keyDirs.get(key);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					// We lost events, so we can't trust anything.
+					topChanged = true;
+					this.codeBase.iterator().forEachRemaining(x -> changedProjects.add(x));
+				} else {
+					String name = ((Path) event.context()).toString();
+					if (dir.equals(masterDir)) {
+						// Anything but the state directory could be a project.
+						if (! name.equals(CodeBase.STATE_DIR_NAME))
+							topChanged = true;
+					} else if (name.equals(".git")) {
+						changedProjects.add(dir);
+						RepoPool pool = GitRepo.getRepoPool();
+						if (pool != null)
+							pool.invalidate(dir);
+					} else if (name.equals(".gitmodules") || event.kind() != StandardWatchEventKinds.ENTRY_MODIFY) {
+						// A changed module file or a new or deleted submodule directory changes
+						// the submodule list.
+						changedProjects.add(dir);
+					}
+				}
+			}
+			// A key that cannot be reset belongs to a directory that is gone.
+			if (! key.reset()) {
+				this.keyDirs.remove(key);
+				topChanged = true;
+			}
+		}
+		for (File projDir : changedProjects)
+			this.codeBase.invalidate(projDir);
+		if (topChanged)
+			this.codeBase.refresh();
+		boolean retVal = topChanged || ! changedProjects.isEmpty();
+		if (retVal) {
+			log.info("Changes detected in {}: {} projects invalidated{}.", this.codeBase, changedProjects.size(),
+					(topChanged ? ", top level refreshed" : ""));
+			this.registerAll();
+		}
+		return retVal;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.codeBase.setWatched(false);
+		this.watcher.close();
+	}
+
+}
@@ -0,0 +1,72 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import java.time.Instant;
+
+import org.eclipse.jgit.revwalk.RevCommit;
+
+/**
+ * This object contains a compact description of a single commit in a repo, for use in
+ * change reports. Only the fields needed for the report are kept, so the commit
+ * itself can be released.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CommitInfo {
+
+	// FIELDS
+	/** abbreviated commit ID */
+	private String id;
+	/** author name */
+	private String author;
+	/** commit time */
+	private Instant time;
+	/** first line of the commit message */
+	private String subject;
+	/** length of an abbreviated commit ID */
+	private static final int ID_LEN = 10;
+
+	/**
+	 * Create a commit descriptor.
+	 *
+	 * @param commit	commit to describe (its body must be parsed)
+	 */
+	public CommitInfo(RevCommit commit) {
+		this.id = commit.getId().abbreviate(ID_LEN).name();
+		this.author = commit.getAuthorIdent().getName();
+		this.time = Instant.ofEpochSecond(commit.getCommitTime());
+		this.subject = commit.getShortMessage();
+	}
+
+	/**
+	 * @return the abbreviated commit ID
+	 */
+	public String getId() {
+		return this.id;
+	}
+
+	/**
+	 * @return the author name
+	 */
+	public String getAuthor() {
+		return this.author;
+	}
+
+	/**
+	 * @return the commit time
+	 */
+	public Instant getTime() {
+		return this.time;
+	}
+
+	/**
+	 * @return the first line of the commit message
+	 */
+	public String getSubject() {
+		return this.subject;
+	}
+
+}
@@ -0,0 +1,70 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import org.eclipse.jgit.lib.ProgressMonitor;
+
+/**
+ * This is a progress monitor that counts the objects received during a fetch. JGit reports
+ * the pack download as a task named "Receiving objects" whose work units are objects, so we
+ * accumulate the updates for that task.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class FetchMonitor implements ProgressMonitor {
+
+	// FIELDS
+	/** number of objects received */
+	private int objectCount;
+	/** TRUE if the current task is receiving objects */
+	private boolean receiving;
+	/** title of the JGit object-receipt task */
+	private static final String RECEIVE_TASK = "Receiving objects";
+
+	/**
+	 * Create a new, empty fetch monitor.
+	 */
+	public FetchMonitor() {
+		this.objectCount = 0;
+		this.receiving = false;
+	}
+
+	@Override
+	public void start(int totalTasks) {
+	}
+
+	@Override
+	public void beginTask(String title, int totalWork) {
+		this.receiving = title.startsWith(RECEIVE_TASK);
+	}
+
+	@Override
+	public void update(int completed) {
+		if (this.receiving)
+			this.objectCount += completed;
+	}
+
+	@Override
+	public void endTask() {
+		this.receiving = false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public void showDuration(boolean enabled) {
+	}
+
+	/**
+	 * @return the number of objects received
+	 */
+	public int getObjectCount() {
+		return this.objectCount;
+	}
+
+}
@@ -5,27 +5,72 @@ package org.theseed.config.git;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jgit.api.CloneCommand;
+import org.eclipse.jgit.api.FetchCommand;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.ListBranchCommand;
 import org.eclipse.jgit.api.ListBranchCommand.ListMode;
+import org.eclipse.jgit.api.LsRemoteCommand;
 import org.eclipse.jgit.api.MergeResult;
 import org.eclipse.jgit.api.PullCommand;
 import org.eclipse.jgit.api.PullResult;
+import org.eclipse.jgit.api.SubmoduleUpdateCommand;
+import org.eclipse.jgit.api.TransportCommand;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheIterator;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.PackIndex;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryState;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.ObjectWalk;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevTag;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.submodule.SubmoduleStatus;
 import org.eclipse.jgit.submodule.SubmoduleWalk;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.WorkingTreeIterator;
+import org.eclipse.jgit.util.io.NullOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.io.LineReader;
@@ -49,6 +94,20 @@ public class GitRepo implements AutoCloseable {
 	private Git repoGit;
 	/** base name of this repo */
 	private String baseName;
+	/** cache of computed remote branches */
+	private static volatile BranchCache branchCache = new BranchCache();
+	/** shared transport pool for per-host limits, or NULL if remote operations are unlimited */
+	private static volatile TransportPool transportPool = null;
+	/** ref specification for copying all the refs of a remote into a mirror */
+	private static final RefSpec MIRROR_SPEC = new RefSpec("+refs/*:refs/*");
+	/** configuration key for the push URL of a remote */
+	private static final String PUSHURL_KEY = "pushurl";
+	/** prune expiration date that no object is older than; JGit cannot handle the value "never" */
+	private static final String PRUNE_NEVER = "1970-01-01";
+	/** shared repository pool, or NULL if each repo is opened separately */
+	private static volatile RepoPool repoPool = null;
+	/** key for the parent module's result in a complete pull */
+	public static final String PARENT_MODULE = "(parent)";
 
 	/**
 	 * Construct a GIT repo manager for a local file location.
@@ -58,6 +117,90 @@ public class GitRepo implements AutoCloseable {
 	 * @throws IOException
 	 */
 	public GitRepo(File loc) throws IOException {
+		this.localRepo = openRepository(loc);
+		this.repoGit = new Git(this.localRepo);
+		this.baseName = loc.getName();
+	}
+
+	/**
+	 * Open the repository for a project. If a repository pool is active, the repository comes
+	 * from the pool. In either case, the caller must close it.
+	 *
+	 * @param loc	file location of the repo
+	 *
+	 * @return the repository for the project
+	 *
+	 * @throws IOException
+	 */
+	private static Repository openRepository(File loc) throws IOException {
+		RepoPool pool = repoPool;
+		Repository retVal;
+		if (pool != null)
+			retVal = pool.open(loc);
+		else
+			retVal = new FileRepository(findGitDir(loc));
+		return retVal;
+	}
+
+	/**
+	 * Open the repository for the current submodule of a submodule walk.
+	 *
+	 * @param walk	submodule walk positioned on a submodule
+	 *
+	 * @return the submodule repository, or NULL if the submodule is not checked out
+	 *
+	 * @throws IOException
+	 */
+	private static Repository openSubmodule(SubmoduleWalk walk) throws IOException {
+		Repository retVal;
+		if (repoPool == null)
+			retVal = walk.getRepository();
+		else {
+			File subDir = walk.getDirectory();
+			if (new File(subDir, Constants.DOT_GIT).exists())
+				retVal = openRepository(subDir);
+			else
+				retVal = null;
+		}
+		return retVal;
+	}
+
+	/**
+	 * @return the underlying repository (for testing)
+	 */
+	Repository getRepository() {
+		return this.localRepo;
+	}
+
+	/**
+	 * Specify the repository pool to be used when opening repos. When the pool is closed,
+	 * this should be set back to NULL.
+	 *
+	 * @param pool	repository pool to use, or NULL to open each repo separately
+	 */
+	public static void setRepoPool(RepoPool pool) {
+		repoPool = pool;
+	}
+
+	/**
+	 * @return the active repository pool, or NULL if each repo is opened separately
+	 */
+	public static RepoPool getRepoPool() {
+		return repoPool;
+	}
+
+	/**
+	 * Compute the GIT directory for a project. This is normally the ".git" subdirectory,
+	 * but for submodules and worktrees ".git" is a file containing a pointer to the real
+	 * directory.
+	 *
+	 * @param loc	file location of the repo
+	 *
+	 * @return the GIT directory for the repo
+	 *
+	 * @throws IOException
+	 */
+	public static File findGitDir(File loc) throws IOException {
 		File gitLoc = new File(loc, ".git");
 		// Compute the GIT directory.
 		if (! gitLoc.isDirectory()) {
@@ -87,9 +230,7 @@ public class GitRepo implements AutoCloseable {
 					throw new IOException("Could not find a GIT directory pointer for " + loc + ".");
 			}
 		}
-		this.localRepo = new FileRepository(gitLoc);
-		this.repoGit = new Git(this.localRepo);
-		this.baseName = loc.getName();
+		return gitLoc;
 	}
 
 	/**
@@ -103,7 +244,23 @@ public class GitRepo implements AutoCloseable {
 	 * @throws GitAPIException
 	 */
 	public PullResult pull(String remote, String branch) throws GitAPIException {
+		return this.pull(remote, branch, NullProgressMonitor.INSTANCE);
+	}
+
+	/**
+	 * Pull the latest version of the top-level repo, reporting progress to a monitor.
+	 *
+	 * @param remote	remote tag to use (usually "origin")
+	 * @param branch	branch to fetch (or NULL for the default)
+	 * @param monitor	progress monitor for the fetch and merge
+	 *
+	 * @return a merge result, indicating what updates occurred
+	 *
+	 * @throws GitAPIException
+	 */
+	public PullResult pull(String remote, String branch, ProgressMonitor monitor) throws GitAPIException {
 		PullCommand cmd = this.repoGit.pull();
+		cmd.setProgressMonitor(monitor);
 		cmd.setRemote(remote);
 		cmd.setRebase(false);
 		if (branch == null) {
@@ -112,7 +269,7 @@ public class GitRepo implements AutoCloseable {
 		}
 		cmd.setRemoteBranchName(branch);
 		log.info("Pulling remote {} for module {}.", remote, this.baseName);
-		PullResult retVal = cmd.call();
+		PullResult retVal = callRemote(this.localRepo, remote, cmd, cmd::call);
 		return retVal;
 	}
 
@@ -130,6 +287,44 @@ public class GitRepo implements AutoCloseable {
 	 */
 	public Map<String, PullResult> pullComplete(String remote, String branch)
 			throws GitAPIException, IOException, ConfigInvalidException {
+		return this.pullModules(remote, branch, x -> x);
+	}
+
+	/**
+	 * Pull the latest version of the repo and all its submodules (if any), keeping only a short
+	 * description of each pull result. The fetch and merge results for a module are released
+	 * as soon as the module is pulled.
+	 *
+	 * @param remote	remote tag to use (usually "origin")
+	 * @param branch	branch to use (or NULL for the default)
+	 *
+	 * @return a map of module names to pull result descriptions
+	 *
+	 * @throws GitAPIException
+	 * @throws IOException
+	 * @throws ConfigInvalidException
+	 */
+	public Map<String, String> pullCompleteSummary(String remote, String branch)
+			throws GitAPIException, IOException, ConfigInvalidException {
+		return this.pullModules(remote, branch, GitRepo::resultMessageFor);
+	}
+
+	/**
+	 * Pull the latest version of the repo and all its submodules (if any), pulling the
+	 * submodules one at a time.
+	 *
+	 * @param remote	remote tag to use (usually "origin")
+	 * @param branch	branch to use (or NULL for the default)
+	 * @param converter	function to convert each pull result to the value kept in the map
+	 *
+	 * @return a map of module names to converted pull results
+	 *
+	 * @throws GitAPIException
+	 * @throws IOException
+	 * @throws ConfigInvalidException
+	 */
+	private <T> Map<String, T> pullModules(String remote, String branch, Function<PullResult, T> converter)
+			throws GitAPIException, IOException, ConfigInvalidException {
 		// Get the submodule list.
 		Map<String, SubmoduleStatus> submoduleMap = this.repoGit.submoduleStatus().call();
 		final int subTotal = submoduleMap.size();
@@ -137,32 +332,20 @@ public class GitRepo implements AutoCloseable {
 		if (branch == null)
 			branch = this.getBranch(remote);
 		// We will need a result for the top module and one for each submodule.
-		Map<String, PullResult> retVal = new TreeMap<String, PullResult>();
-		// Pull the base module.
-		PullCommand cmd = this.repoGit.pull();
-		cmd.setRebase(false);
-		cmd.setRemote(remote);
-		cmd.setRemoteBranchName(branch);
-		log.info("Pulling parent module of {}.", this.baseName);
-		PullResult result = cmd.call();
-		retVal.put("(parent)", result);
+		Map<String, T> retVal = new TreeMap<String, T>();
+		retVal.put(PARENT_MODULE, converter.apply(this.pullParent(remote, branch)));
 		// Now pull all the submodules. We need to do a submodule walk.
 		if (subTotal > 0) {
 			int subCount = 0;
 			try (SubmoduleWalk walk = SubmoduleWalk.forIndex(this.localRepo)) {
 				while (walk.next()) {
-					try (Repository subRepo = walk.getRepository()) {
+					try (Repository subRepo = openSubmodule(walk)) {
 						if (subRepo != null) {
 							subCount++;
 							log.info("Pulling submodule {} of {}: {}.", subCount, subTotal,
 									walk.getModuleName());
-							try (Git subGit = new Git(subRepo)) {
-								cmd = subGit.pull();
-								cmd.setRemoteBranchName(branch);
-								cmd.setRemote(remote);
-								result = cmd.call();
-								retVal.put(walk.getModuleName(), result);
-							}
+							PullResult result = pullSubmodule(subRepo, remote, branch);
+							retVal.put(walk.getModuleName(), converter.apply(result));
 						}
 					}
 				}
@@ -171,6 +354,950 @@ public class GitRepo implements AutoCloseable {
 		return retVal;
 	}
 
+	/**
+	 * Pull the latest version of the repo and all its submodules (if any), pulling the
+	 * submodules concurrently. The parent module is pulled first. The submodule directories
+	 * are then collected from a submodule walk and pulled on a worker pool. Each submodule
+	 * repository is opened by the worker that pulls it and closed as soon as the pull is done,
+	 * so no more than one repository per worker is open at a time. A failure in one submodule
+	 * is logged and that submodule is left out of the result map, but the others are still
+	 * pulled. The method does not return until every worker has stopped.
+	 *
+	 * @param remote	remote tag to use (usually "origin")
+	 * @param branch	branch to use (or NULL for the default)
+	 * @param threads	maximum number of submodules to pull at once
+	 *
+	 * @return a map of module names to pull results, indicating what updates occurred
+	 *
+	 * @throws GitAPIException
+	 * @throws IOException
+	 * @throws ConfigInvalidException
+	 */
+	public Map<String, PullResult> pullComplete(String remote, String branch, int threads)
+			throws GitAPIException, IOException, ConfigInvalidException {
+		return this.pullModules(remote, branch, threads, x -> x);
+	}
+
+	/**
+	 * Pull the latest version of the repo and all its submodules (if any), pulling the
+	 * submodules concurrently and keeping only a short description of each pull result.
+	 *
+	 * @param remote	remote tag to use (usually "origin")
+	 * @param branch	branch to use (or NULL for the default)
+	 * @param threads	maximum number of submodules to pull at once
+	 *
+	 * @return a map of module names to pull result descriptions
+	 *
+	 * @throws GitAPIException
+	 * @throws IOException
+	 * @throws ConfigInvalidException
+	 */
+	public Map<String, String> pullCompleteSummary(String remote, String branch, int threads)
+			throws GitAPIException, IOException, ConfigInvalidException {
+		return this.pullModules(remote, branch, threads, GitRepo::resultMessageFor);
+	}
+
+	/**
+	 * Pull the latest version of the repo and all its submodules (if any), pulling the
+	 * submodules concurrently. Each pull result is converted by the worker that produced it.
+	 *
+	 * @param remote	remote tag to use (usually "origin")
+	 * @param branch	branch to use (or NULL for the default)
+	 * @param threads	maximum number of submodules to pull at once
+	 * @param converter	function to convert each pull result to the value kept in the map
+	 *
+	 * @return a map of module names to converted pull results
+	 *
+	 * @throws GitAPIException
+	 * @throws IOException
+	 * @throws ConfigInvalidException
+	 */
+	private <T> Map<String, T> pullModules(String remote, String branch, int threads,
+			Function<PullResult, T> converter) throws GitAPIException, IOException, ConfigInvalidException {
+		// Insure we have a branch name.
+		if (branch == null)
+			branch = this.getBranch(remote);
+		final String branchName = branch;
+		Map<String, T> retVal = new TreeMap<String, T>();
+		retVal.put(PARENT_MODULE, converter.apply(this.pullParent(remote, branchName)));
+		// Collect the checked-out submodule directories.
+		Map<String, File> subDirs = new TreeMap<String, File>();
+		try (SubmoduleWalk walk = SubmoduleWalk.forIndex(this.localRepo)) {
+			while (walk.next()) {
+				File subDir = walk.getDirectory();
+				if (new File(subDir, Constants.DOT_GIT).exists())
+					subDirs.put(walk.getModuleName(), subDir);
+			}
+		}
+		final int subTotal = subDirs.size();
+		if (subTotal > 0) {
+			int poolSize = Math.max(1, Math.min(threads, subTotal));
+			log.info("Pulling {} submodules of {} with {} workers.", subTotal, this.baseName, poolSize);
+			ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+			try {
+				Map<String, Future<T>> futures = new TreeMap<String, Future<T>>();
+				for (Map.Entry<String, File> subEntry : subDirs.entrySet()) {
+					File subDir = subEntry.getValue();
+					futures.put(subEntry.getKey(), pool.submit(() -> {
+						try (Repository subRepo = openRepository(subDir)) {
+							return converter.apply(pullSubmodule(subRepo, remote, branchName));
+						}
+					}));
+				}
+				// Collect the results. Failures are isolated to the individual submodule.
+				for (Map.Entry<String, Future<T>> futureEntry : futures.entrySet()) {
+					String moduleName = futureEntry.getKey();
+					try {
+						retVal.put(moduleName, futureEntry.getValue().get());
+					} catch (ExecutionException e) {
+						log.error("Error pulling submodule {} of {}: {}", moduleName, this.baseName,
+								e.getCause().toString());
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while pulling submodules of " + this.baseName + ".");
+			} finally {
+				// If we were interrupted, some workers may still be pulling. We must not return
+				// until they stop, since the caller may close or reuse this repo.
+				pool.shutdownNow();
+				awaitWorkers(pool);
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Pull the parent module of this repo.
+	 *
+	 * @param remote	remote tag to use (usually "origin")
+	 * @param branch	branch to use
+	 *
+	 * @return the result of the pull
+	 *
+	 * @throws GitAPIException
+	 */
+	private PullResult pullParent(String remote, String branch) throws GitAPIException {
+		PullCommand cmd = this.repoGit.pull();
+		cmd.setRebase(false);
+		cmd.setRemote(remote);
+		cmd.setRemoteBranchName(branch);
+		log.info("Pulling parent module of {}.", this.baseName);
+		return callRemote(this.localRepo, remote, cmd, cmd::call);
+	}
+
+	/**
+	 * Wait for all the workers in a shut-down thread pool to finish. An interruption does not
+	 * stop the wait, but it is passed on to the caller when the wait is over.
+	 *
+	 * @param pool	thread pool to wait for
+	 */
+	private static void awaitWorkers(ExecutorService pool) {
+		boolean interrupted = false;
+		boolean done = false;
+		while (! done) {
+			try {
+				done = pool.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Pull a submodule repository.
+	 *
+	 * @param subRepo	submodule repository to pull
+	 * @param remote	remote tag to use (usually "origin")
+	 * @param branch	branch to fetch
+	 *
+	 * @return the result of the pull
+	 *
+	 * @throws GitAPIException
+	 */
+	private static PullResult pullSubmodule(Repository subRepo, String remote, String branch)
+			throws GitAPIException {
+		try (Git subGit = new Git(subRepo)) {
+			PullCommand cmd = subGit.pull();
+			cmd.setRemoteBranchName(branch);
+			cmd.setRemote(remote);
+			return callRemote(subRepo, remote, cmd, cmd::call);
+		}
+	}
+
+	/**
+	 * Determine which branches have changed on a remote without fetching anything. The heads
+	 * advertised by the remote are compared with the local remote-tracking refs.
+	 *
+	 * @param remote	remote tag to use (usually "origin")
+	 *
+	 * @return a sorted list of the names of the remote branches that are new or differ from the tracking refs
+	 *
+	 * @throws GitAPIException
+	 * @throws IOException
+	 */
+	public List<String> checkRemote(String remote) throws GitAPIException, IOException {
+		List<String> retVal = new ArrayList<String>();
+		SortedMap<String, ObjectId> remoteHeads = this.listRemoteHeads(remote);
+		for (Map.Entry<String, ObjectId> remoteHead : remoteHeads.entrySet()) {
+			String branch = remoteHead.getKey();
+			Ref tracking = this.localRepo.exactRef(Constants.R_REMOTES + remote + "/" + branch);
+			if (tracking == null || ! remoteHead.getValue().equals(tracking.getObjectId()))
+				retVal.add(branch);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Clone a remote repository into a new project directory. Submodules are not cloned; use
+	 * "initSubmodules" on the new repo to do that.
+	 *
+	 * @param url			URL of the remote repository
+	 * @param projDir		directory to contain the new project
+	 * @param remote		name to give the remote (usually "origin")
+	 * @param branch		branch to check out, or NULL to use the remote's default branch
+	 * @param depth			number of commits of history to fetch, or 0 for the full history
+	 * @param singleBranch	TRUE to fetch only the checked-out branch; ignored if no branch is specified
+	 * @param monitor		progress monitor for the fetch
+	 *
+	 * @throws GitAPIException
+	 */
+	public static void cloneRepo(String url, File projDir, String remote, String branch, int depth,
+			boolean singleBranch, ProgressMonitor monitor) throws GitAPIException {
+		CloneCommand cmd = Git.cloneRepository().setURI(url).setDirectory(projDir).setRemote(remote)
+				.setCloneSubmodules(false).setProgressMonitor(monitor);
+		if (branch != null) {
+			cmd.setBranch(branch);
+			if (singleBranch)
+				cmd.setBranchesToClone(List.of(Constants.R_HEADS + branch));
+		}
+		if (depth > 0)
+			cmd.setDepth(depth);
+		try (Git git = callRemote(urlHost(url), cmd, cmd::call)) {
+			log.debug("Cloned {} into {}.", url, projDir);
+		}
+	}
+
+	/**
+	 * Initialize and check out all the submodules of this repo, recursively. Each submodule is
+	 * checked out at the commit recorded in its parent.
+	 *
+	 * @param remote	name of the remote used to determine the host for the fetches
+	 * @param monitor	progress monitor for the fetches
+	 *
+	 * @return the number of submodules checked out
+	 *
+	 * @throws GitAPIException
+	 * @throws IOException
+	 */
+	public int initSubmodules(String remote, ProgressMonitor monitor) throws GitAPIException, IOException {
+		return initSubmodules(this.localRepo, remote, monitor);
+	}
+
+	/**
+	 * Initialize and check out all the submodules of a repository, recursively.
+	 *
+	 * @param repo		repository whose submodules are to be set up
+	 * @param remote	name of the remote used to determine the host for the fetches
+	 * @param monitor	progress monitor for the fetches
+	 *
+	 * @return the number of submodules checked out
+	 *
+	 * @throws GitAPIException
+	 * @throws IOException
+	 */
+	private static int initSubmodules(Repository repo, String remote, ProgressMonitor monitor)
+			throws GitAPIException, IOException {
+		int retVal = 0;
+		Git git = Git.wrap(repo);
+		if (! git.submoduleInit().call().isEmpty()) {
+			SubmoduleUpdateCommand cmd = git.submoduleUpdate().setProgressMonitor(monitor);
+			Collection<String> paths = callRemote(repo, remote, cmd, cmd::call);
+			for (String path : paths) {
+				retVal++;
+				try (Repository subRepo = SubmoduleWalk.getSubmoduleRepository(repo, path)) {
+					if (subRepo != null)
+						retVal += initSubmodules(subRepo, remote, monitor);
+				}
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Ask a remote for its branch heads. Only the ref advertisement is transferred.
+	 *
+	 * @param remote	remote tag to use (usually "origin")
+	 *
+	 * @return a sorted map of branch names to the commit IDs at the heads of the branches
+	 *
+	 * @throws GitAPIException
+	 */
+	public SortedMap<String, ObjectId> listRemoteHeads(String remote) throws GitAPIException {
+		LsRemoteCommand cmd = this.repoGit.lsRemote().setRemote(remote).setHeads(true);
+		Map<String, Ref> remoteHeads = callRemote(this.localRepo, remote, cmd, cmd::callAsMap);
+		SortedMap<String, ObjectId> retVal = new TreeMap<String, ObjectId>();
+		for (Ref remoteHead : remoteHeads.values())
+			retVal.put(Repository.shortenRefName(remoteHead.getName()), remoteHead.getObjectId());
+		return retVal;
+	}
+
+	/**
+	 * @return the URL of a remote, or NULL if the remote is not configured
+	 *
+	 * @param remote	remote tag of interest (usually "origin")
+	 */
+	public String getRemoteUrl(String remote) {
+		return this.localRepo.getConfig().getString(ConfigConstants.CONFIG_REMOTE_SECTION, remote,
+				ConfigConstants.CONFIG_KEY_URL);
+	}
+
+	/**
+	 * @return the push URL of a remote, or NULL if the remote has no separate push URL
+	 *
+	 * @param remote	remote tag of interest (usually "origin")
+	 */
+	public String getPushUrl(String remote) {
+		return this.localRepo.getConfig().getString(ConfigConstants.CONFIG_REMOTE_SECTION, remote,
+				PUSHURL_KEY);
+	}
+
+	/**
+	 * Direct the fetches for a remote to a local mirror of it. The remote's URL is replaced by the
+	 * mirror's location, and unless the remote already has a push URL, the original URL becomes the
+	 * push URL, so pushes still go upstream. If sharing is requested, the mirror's object store is
+	 * also added to this repo's alternates, so that objects already in the mirror are not copied
+	 * into the repo by later fetches. A shared mirror is protected from garbage collection, since
+	 * this repo may come to depend on any of its objects.
+	 *
+	 * @param remote		remote tag to redirect (usually "origin")
+	 * @param mirrorDir		directory of the bare mirror repo
+	 * @param share			TRUE to borrow objects from the mirror, else FALSE
+	 *
+	 * @return TRUE if the repo was changed, FALSE if it was already set up
+	 *
+	 * @throws IOException
+	 */
+	public boolean linkMirror(String remote, File mirrorDir, boolean share) throws IOException {
+		boolean retVal = false;
+		String mirrorUrl = mirrorDir.getAbsolutePath();
+		String url = this.getRemoteUrl(remote);
+		if (! mirrorUrl.equals(url)) {
+			StoredConfig config = this.localRepo.getConfig();
+			if (url != null && this.getPushUrl(remote) == null)
+				config.setString(ConfigConstants.CONFIG_REMOTE_SECTION, remote, PUSHURL_KEY, url);
+			config.setString(ConfigConstants.CONFIG_REMOTE_SECTION, remote, ConfigConstants.CONFIG_KEY_URL, mirrorUrl);
+			config.save();
+			retVal = true;
+		}
+		if (share) {
+			try (Repository mirror = new FileRepository(mirrorDir)) {
+				protectMirror(mirror);
+			}
+			File alternatesFile = new File(this.localRepo.getDirectory(), Constants.OBJECTS + "/" + Constants.INFO_ALTERNATES);
+			String objectsPath = new File(mirrorDir.getAbsoluteFile(), Constants.OBJECTS).getPath();
+			List<String> alternates = new ArrayList<String>();
+			if (alternatesFile.exists())
+				alternates.addAll(Files.readAllLines(alternatesFile.toPath()));
+			if (! alternates.contains(objectsPath)) {
+				alternates.add(objectsPath);
+				alternatesFile.getParentFile().mkdirs();
+				Files.write(alternatesFile.toPath(), alternates);
+				retVal = true;
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Bring a local mirror of a remote repo up to date. If the mirror does not exist, it is
+	 * created as a bare clone of all the remote's refs. Otherwise, all the refs are fetched into
+	 * it. Refs deleted on the remote are kept, and the mirror is protected from garbage
+	 * collection, so that no object a repo borrows from the mirror is ever removed.
+	 *
+	 * @param url			URL of the remote repo
+	 * @param mirrorDir		directory of the bare mirror repo
+	 * @param monitor		progress monitor for the fetch
+	 *
+	 * @return a description of the update
+	 *
+	 * @throws GitAPIException
+	 * @throws IOException
+	 */
+	public static String updateMirror(String url, File mirrorDir, ProgressMonitor monitor)
+			throws GitAPIException, IOException {
+		String retVal;
+		if (! new File(mirrorDir, Constants.OBJECTS).isDirectory()) {
+			CloneCommand cmd = Git.cloneRepository().setURI(url).setDirectory(mirrorDir).setMirror(true)
+					.setProgressMonitor(monitor);
+			try (Git git = callRemote(urlHost(url), cmd, cmd::call)) {
+				protectMirror(git.getRepository());
+				log.debug("Created mirror of {} in {}.", url, mirrorDir);
+			}
+			retVal = "CREATED";
+		} else {
+			try (Repository mirror = new FileRepository(mirrorDir); Git git = new Git(mirror)) {
+				// Protect the mirror before fetching, since a fetch can trigger an automatic collection.
+				protectMirror(mirror);
+				FetchCommand cmd = git.fetch().setRemote(url).setRefSpecs(MIRROR_SPEC)
+						.setRemoveDeletedRefs(false).setProgressMonitor(monitor);
+				FetchResult result = callRemote(urlHost(url), cmd, cmd::call);
+				int updates = result.getTrackingRefUpdates().size();
+				retVal = (updates == 0 ? "UP-TO-DATE" : updates + " REFS UPDATED");
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Protect a mirror's objects from garbage collection. A ref rewritten upstream leaves the old
+	 * commits unreachable in the mirror, but repos sharing the mirror may still depend on them. So
+	 * automatic collection is turned off, and the prune expiration is set to the start of the
+	 * epoch, so that even an explicit collection never prunes unreachable objects. (JGit parses
+	 * the usual value "never" as the end of time, which overflows in its collector.) The mirror's
+	 * configuration is only saved if it changes.
+	 *
+	 * @param mirror	mirror repository to protect
+	 *
+	 * @throws IOException
+	 */
+	private static void protectMirror(Repository mirror) throws IOException {
+		StoredConfig config = mirror.getConfig();
+		if (config.getInt(ConfigConstants.CONFIG_GC_SECTION, ConfigConstants.CONFIG_KEY_AUTO, -1) != 0
+				|| ! PRUNE_NEVER.equals(config.getString(ConfigConstants.CONFIG_GC_SECTION, null,
+						ConfigConstants.CONFIG_KEY_PRUNEEXPIRE))) {
+			config.setInt(ConfigConstants.CONFIG_GC_SECTION, null, ConfigConstants.CONFIG_KEY_AUTO, 0);
+			config.setString(ConfigConstants.CONFIG_GC_SECTION, null, ConfigConstants.CONFIG_KEY_PRUNEEXPIRE, PRUNE_NEVER);
+			config.save();
+		}
+	}
+
+	/**
+	 * @return the total size in bytes of the pack files in this repo's object store
+	 */
+	public long getPackBytes() {
+		long retVal = 0;
+		File packDir = new File(this.localRepo.getDirectory(), "objects/pack");
+		File[] packs = packDir.listFiles((dir, name) -> name.endsWith(".pack"));
+		if (packs != null) {
+			for (File pack : packs)
+				retVal += pack.length();
+		}
+		return retVal;
+	}
+
+	/**
+	 * Check this repo for damage. In fast mode, we look for leftover lock files, a missing or
+	 * unresolvable HEAD, and refs that cannot be resolved or that point to missing objects. In
+	 * deep mode, we also check that every pack has a matching index, and we walk every object
+	 * reachable from the refs, inflating each one to verify the object store.
+	 *
+	 * @param deep		TRUE to walk the object store as well as checking the refs
+	 *
+	 * @return a list of descriptions of the problems found (empty if the repo is healthy)
+	 */
+	public List<String> verify(boolean deep) {
+		List<String> retVal = new ArrayList<String>();
+		File gitDir = this.localRepo.getDirectory();
+		findLocks(gitDir, gitDir, retVal);
+		// Verify HEAD.
+		if (! new File(gitDir, Constants.HEAD).isFile())
+			retVal.add("HEAD is missing");
+		else {
+			try {
+				Ref head = this.localRepo.exactRef(Constants.HEAD);
+				if (head == null)
+					retVal.add("HEAD is unreadable");
+				else if (head.getObjectId() == null)
+					retVal.add("HEAD points to missing branch " + head.getTarget().getName());
+			} catch (IOException e) {
+				retVal.add("HEAD is unreadable: " + e.toString());
+			}
+		}
+		// Verify the other refs.
+		List<ObjectId> starts = new ArrayList<ObjectId>();
+		try {
+			for (Ref ref : this.localRepo.getRefDatabase().getRefs()) {
+				ObjectId target = ref.getObjectId();
+				if (target == null) {
+					if (! ref.isSymbolic())
+						retVal.add("ref " + ref.getName() + " is unresolvable");
+				} else if (! this.localRepo.getObjectDatabase().has(target))
+					retVal.add("ref " + ref.getName() + " points to missing object " + target.name());
+				else
+					starts.add(target);
+			}
+		} catch (IOException e) {
+			retVal.add("refs are unreadable: " + e.toString());
+		}
+		if (deep) {
+			this.verifyPacks(retVal);
+			this.verifyObjects(starts, retVal);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Search a GIT directory for leftover lock files. The object directory is skipped, since
+	 * it is large and JGit does not use lock files there.
+	 *
+	 * @param gitDir	GIT directory being checked
+	 * @param dir		current directory to search
+	 * @param problems	list of problems, to be updated
+	 */
+	private static void findLocks(File gitDir, File dir, List<String> problems) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) {
+					if (! file.getName().equals(Constants.OBJECTS) && ! file.getName().equals(Constants.MODULES))
+						findLocks(gitDir, file, problems);
+				} else if (file.getName().endsWith(".lock")) {
+					long minutes = (System.currentTimeMillis() - file.lastModified()) / 60000;
+					problems.add("lock file " + gitDir.toPath().relativize(file.toPath()) + " is " + minutes
+							+ " minutes old");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Verify that every pack file in this repo has an index and every index has a pack file.
+	 * For each pair, the pack checksum recorded in the index must match the checksum in the
+	 * pack's trailer.
+	 *
+	 * @param problems	list of problems, to be updated
+	 */
+	private void verifyPacks(List<String> problems) {
+		File packDir = new File(this.localRepo.getDirectory(), "objects/pack");
+		String[] names = packDir.list();
+		if (names != null) {
+			Set<String> nameSet = Set.of(names);
+			for (String name : names) {
+				if (name.endsWith(".pack")) {
+					String idxName = StringUtils.removeEnd(name, ".pack") + ".idx";
+					if (! nameSet.contains(idxName))
+						problems.add("pack " + name + " has no index");
+					else
+						verifyPackChecksum(new File(packDir, name), new File(packDir, idxName), problems);
+				} else if (name.endsWith(".idx")) {
+					if (! nameSet.contains(StringUtils.removeEnd(name, ".idx") + ".pack"))
+						problems.add("index " + name + " has no pack");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Verify that the checksum in a pack file's trailer matches the one recorded in its index.
+	 *
+	 * @param packFile	pack file to check
+	 * @param idxFile	index for the pack file
+	 * @param problems	list of problems, to be updated
+	 */
+	private static void verifyPackChecksum(File packFile, File idxFile, List<String> problems) {
+		try {
+			byte[] expected = PackIndex.open(idxFile).getChecksum();
+			byte[] trailer = new byte[expected.length];
+			try (RandomAccessFile packIn = new RandomAccessFile(packFile, "r")) {
+				long trailerPos = packIn.length() - trailer.length;
+				if (trailerPos < 0)
+					problems.add("pack " + packFile.getName() + " is truncated");
+				else {
+					packIn.seek(trailerPos);
+					packIn.readFully(trailer);
+					if (! Arrays.equals(expected, trailer))
+						problems.add("pack " + packFile.getName() + " checksum does not match its index");
+				}
+			}
+		} catch (IOException e) {
+			problems.add("pack " + packFile.getName() + " could not be checked: " + e.toString());
+		}
+	}
+
+	/**
+	 * Walk every object reachable from a set of starting points, inflating each object to
+	 * make sure it is present and intact. The walk stops at the first damaged object.
+	 *
+	 * @param starts	list of starting object IDs
+	 * @param problems	list of problems, to be updated
+	 */
+	private void verifyObjects(List<ObjectId> starts, List<String> problems) {
+		try (ObjectWalk walk = new ObjectWalk(this.localRepo)) {
+			ObjectReader reader = walk.getObjectReader();
+			for (ObjectId start : starts) {
+				RevObject obj = walk.parseAny(start);
+				// Peel annotated tags down to the tagged object.
+				while (obj instanceof RevTag)
+					obj = walk.parseAny(((RevTag) obj).getObject());
+				walk.markStart(obj);
+			}
+			while (walk.next() != null) {
+				// The commit has been parsed, which verifies it.
+			}
+			for (RevObject obj = walk.nextObject(); obj != null; obj = walk.nextObject()) {
+				if (obj.getType() == Constants.OBJ_BLOB)
+					reader.open(obj, Constants.OBJ_BLOB).copyTo(NullOutputStream.INSTANCE);
+			}
+		} catch (IOException e) {
+			problems.add("object store is damaged: " + e.toString());
+		}
+	}
+
+	/**
+	 * Find the local changes in this repo's working tree. The index, the HEAD commit, and the
+	 * working tree are walked together. A working-tree file is only hashed if its size and
+	 * modification time do not settle the question, so a clean tree costs little more than a
+	 * directory listing. Submodules are skipped, since each one is a repo of its own, and an
+	 * untracked directory is reported as a whole without being searched.
+	 *
+	 * Each change is a one-character code followed by a space and the path. The codes are "M"
+	 * for a modified file, "A" for a file added to the index, "D" for a deleted file, and "?"
+	 * for an untracked file or directory.
+	 *
+	 * @param untracked		TRUE to report untracked files that are not ignored
+	 *
+	 * @return a list of the local changes (empty if the working tree is clean)
+	 *
+	 * @throws IOException
+	 */
+	public List<String> findLocalChanges(boolean untracked) throws IOException {
+		List<String> retVal = new ArrayList<String>();
+		DirCache index = this.localRepo.readDirCache();
+		try (ObjectReader reader = this.localRepo.newObjectReader();
+				TreeWalk walk = new TreeWalk(this.localRepo, reader)) {
+			ObjectId headTree = this.localRepo.resolve(Constants.HEAD + "^{tree}");
+			final int headIdx = (headTree == null ? walk.addTree(new EmptyTreeIterator()) : walk.addTree(headTree));
+			final int indexIdx = walk.addTree(new DirCacheIterator(index));
+			FileTreeIterator workTree = new FileTreeIterator(this.localRepo);
+			final int workIdx = walk.addTree(workTree);
+			workTree.setDirCacheIterator(walk, indexIdx);
+			walk.setRecursive(false);
+			while (walk.next()) {
+				final int headMode = walk.getRawMode(headIdx);
+				final int indexMode = walk.getRawMode(indexIdx);
+				boolean submodule = FileMode.GITLINK.equals(headMode) || FileMode.GITLINK.equals(indexMode)
+						|| FileMode.GITLINK.equals(walk.getRawMode(workIdx));
+				if (! submodule) {
+					String path = walk.getPathString();
+					DirCacheIterator indexEntry = walk.getTree(indexIdx, DirCacheIterator.class);
+					WorkingTreeIterator workEntry = walk.getTree(workIdx, WorkingTreeIterator.class);
+					if (walk.isSubtree()) {
+						if (indexEntry != null || headMode != 0)
+							walk.enterSubtree();
+						else if (untracked && workEntry != null && ! workEntry.isEntryIgnored())
+							retVal.add("? " + path + "/");
+					} else if (indexEntry == null) {
+						if (headMode != 0)
+							retVal.add("D " + path);
+						else if (untracked && workEntry != null && ! workEntry.isEntryIgnored())
+							retVal.add("? " + path);
+					} else if (workEntry == null)
+						retVal.add("D " + path);
+					else if (headMode == 0)
+						retVal.add("A " + path);
+					else if (headMode != indexMode || ! walk.idEqual(headIdx, indexIdx)
+							|| workEntry.isModified(indexEntry.getDirCacheEntry(), false, reader))
+						retVal.add("M " + path);
+				}
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Stash the local changes to this repo's tracked files.
+	 *
+	 * @param message	message for the stash entry
+	 *
+	 * @return TRUE if changes were stashed, FALSE if there was nothing to stash
+	 *
+	 * @throws GitAPIException
+	 */
+	public boolean stashChanges(String message) throws GitAPIException {
+		RevCommit stash = this.repoGit.stashCreate().setWorkingDirectoryMessage(message).call();
+		return (stash != null);
+	}
+
+	/**
+	 * Restore the most recently stashed changes to this repo's working tree. If they are restored
+	 * cleanly, the stash entry is dropped. Otherwise, the working tree is left as it is and the
+	 * stash entry is kept. This includes the case where the repo is in the middle of a merge or
+	 * rebase, as it is after a pull with conflicts.
+	 *
+	 * @return TRUE if the changes were restored, FALSE if they were left in the stash
+	 */
+	public boolean restoreStash() {
+		boolean retVal = false;
+		RepositoryState state = this.localRepo.getRepositoryState();
+		if (! state.canCheckout())
+			log.warn("Could not restore stashed changes in {}: repository state is {}.", this.baseName,
+					state.getDescription());
+		else {
+			try {
+				this.repoGit.stashApply().call();
+				retVal = true;
+			} catch (GitAPIException e) {
+				log.warn("Could not restore stashed changes in {}: {}", this.baseName, e.getMessage());
+			}
+			if (retVal) {
+				// The changes are back, so a failure here only leaves an extra stash entry.
+				try {
+					this.repoGit.stashDrop().call();
+				} catch (GitAPIException e) {
+					log.warn("Could not drop restored stash entry in {}: {}", this.baseName, e.getMessage());
+				}
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * @return the object-store statistics for this repo, as computed by JGit's garbage collector
+	 *
+	 * @throws GitAPIException
+	 */
+	public Properties getObjectStatistics() throws GitAPIException {
+		return this.repoGit.gc().getStatistics();
+	}
+
+	/**
+	 * Run the garbage collector on this repo. Loose objects are packed, the packs are combined,
+	 * and unreachable objects past their expiration are pruned.
+	 *
+	 * @param threads	maximum number of threads to use for packing
+	 * @param monitor	progress monitor for the collection
+	 *
+	 * @return the object-store statistics after the collection
+	 *
+	 * @throws GitAPIException
+	 */
+	public Properties collectGarbage(int threads, ProgressMonitor monitor) throws GitAPIException {
+		this.enableCommitGraph();
+		// The collector only takes these settings from the repo configuration, so we set them in
+		// memory. The repository may be shared through the repo pool, so the old values are put
+		// back afterward. The pack configuration is read when the command is built.
+		StoredConfig config = this.localRepo.getConfig();
+		String oldThreads = config.getString(ConfigConstants.CONFIG_PACK_SECTION, null,
+				ConfigConstants.CONFIG_KEY_THREADS);
+		String oldGraph = config.getString(ConfigConstants.CONFIG_GC_SECTION, null,
+				ConfigConstants.CONFIG_KEY_WRITE_COMMIT_GRAPH);
+		try {
+			config.setInt(ConfigConstants.CONFIG_PACK_SECTION, null, ConfigConstants.CONFIG_KEY_THREADS, threads);
+			// Also write a commit-graph file, which speeds up history walks.
+			config.setBoolean(ConfigConstants.CONFIG_GC_SECTION, null, ConfigConstants.CONFIG_KEY_WRITE_COMMIT_GRAPH,
+					true);
+			return this.repoGit.gc().setProgressMonitor(monitor).call();
+		} finally {
+			restoreSetting(config, ConfigConstants.CONFIG_PACK_SECTION, ConfigConstants.CONFIG_KEY_THREADS, oldThreads);
+			restoreSetting(config, ConfigConstants.CONFIG_GC_SECTION, ConfigConstants.CONFIG_KEY_WRITE_COMMIT_GRAPH,
+					oldGraph);
+		}
+	}
+
+	/**
+	 * Put back the old value of an in-memory configuration setting.
+	 *
+	 * @param config	configuration to update
+	 * @param section	section containing the setting
+	 * @param name		name of the setting
+	 * @param oldValue	old value of the setting, or NULL if it was not set
+	 */
+	private static void restoreSetting(StoredConfig config, String section, String name, String oldValue) {
+		if (oldValue == null)
+			config.unset(section, null, name);
+		else
+			config.setString(section, null, name, oldValue);
+	}
+
+	/**
+	 * Allow JGit to use this repo's commit-graph file, if it has one. This is the default for
+	 * command-line GIT, but not for JGit. The setting is made in memory and is not saved.
+	 */
+	private void enableCommitGraph() {
+		this.localRepo.getConfig().setBoolean(ConfigConstants.CONFIG_CORE_SECTION, null,
+				ConfigConstants.CONFIG_COMMIT_GRAPH, true);
+	}
+
+	/**
+	 * @return the ID of the commit at the head of this repo, or NULL if the repo has no commits
+	 *
+	 * @throws IOException
+	 */
+	public ObjectId getHeadId() throws IOException {
+		return this.localRepo.resolve(Constants.HEAD);
+	}
+
+	/**
+	 * Find the commits reachable from a head commit that are not reachable from a previously-seen
+	 * commit. Only the new part of the history is walked. If the previous commit is no longer in
+	 * the repo (for example, because the history was rewritten), there is nothing to stop the walk,
+	 * so it is cut off at the limit.
+	 *
+	 * @param head		ID of the head commit
+	 * @param since		ID of the previously-seen commit, or NULL to walk the whole history
+	 * @param limit		maximum number of commits to return
+	 *
+	 * @return a list of the new commits, newest first
+	 *
+	 * @throws IOException
+	 */
+	public List<CommitInfo> findNewCommits(ObjectId head, ObjectId since, int limit) throws IOException {
+		List<CommitInfo> retVal = new ArrayList<CommitInfo>();
+		this.enableCommitGraph();
+		try (RevWalk walk = new RevWalk(this.localRepo)) {
+			walk.sort(RevSort.COMMIT_TIME_DESC);
+			walk.markStart(walk.parseCommit(head));
+			if (since != null && this.localRepo.getObjectDatabase().has(since))
+				walk.markUninteresting(walk.parseCommit(since));
+			for (RevCommit commit = walk.next(); commit != null && retVal.size() < limit; commit = walk.next())
+				retVal.add(new CommitInfo(commit));
+		}
+		return retVal;
+	}
+
+	/**
+	 * This interface describes a JGit command invocation that talks to a remote.
+	 */
+	@FunctionalInterface
+	private interface RemoteCall<T> {
+
+		/**
+		 * @return the result of the command
+		 *
+		 * @throws GitAPIException
+		 */
+		public T call() throws GitAPIException;
+
+	}
+
+	/**
+	 * Invoke a JGit command that talks to a remote. If a transport pool is active, the command
+	 * waits for a slot on the remote's host.
+	 *
+	 * @param repo		repository being processed
+	 * @param remote	name of the remote
+	 * @param cmd		transport command to configure
+	 * @param call		invocation of the command
+	 *
+	 * @return the result of the invocation
+	 *
+	 * @throws GitAPIException
+	 */
+	private static <T> T callRemote(Repository repo, String remote, TransportCommand<?, ?> cmd, RemoteCall<T> call)
+			throws GitAPIException {
+		return callRemote(remoteHost(repo, remote), cmd, call);
+	}
+
+	/**
+	 * Invoke a JGit command that talks to a specific host. If a transport pool is active, the
+	 * command waits for a slot on the host. The pool's
+	 * remote policy then applies: the command is given a transport timeout, a transient failure
+	 * is retried with increasing delays, and a host that keeps failing is skipped without being
+	 * contacted. The host's slot is given up while waiting to retry.
+	 *
+	 * @param host		remote host name, or NULL for a local remote
+	 * @param cmd		transport command to configure
+	 * @param call		invocation of the command
+	 *
+	 * @return the result of the invocation
+	 *
+	 * @throws GitAPIException
+	 */
+	private static <T> T callRemote(String host, TransportCommand<?, ?> cmd, RemoteCall<T> call)
+			throws GitAPIException {
+		TransportPool pool = transportPool;
+		T retVal = null;
+		if (pool == null)
+			retVal = call.call();
+		else {
+			RemotePolicy policy = pool.getPolicy();
+			if (policy.getTimeout() > 0)
+				cmd.setTimeout(policy.getTimeout());
+			boolean done = false;
+			int failures = 0;
+			while (! done) {
+				policy.checkHost(host);
+				GitAPIException failure = null;
+				pool.acquire(host);
+				try {
+					retVal = call.call();
+					done = true;
+				} catch (GitAPIException e) {
+					if (! RemotePolicy.isTransient(e))
+						throw e;
+					failure = e;
+				} finally {
+					pool.release(host);
+				}
+				if (done)
+					policy.recordSuccess(host);
+				else {
+					policy.recordFailure(host);
+					failures++;
+					if (failures > policy.getRetries())
+						throw failure;
+					log.warn("Retrying remote operation on {} after failure {}: {}", host, failures,
+							failure.getMessage());
+					if (! policy.pause(failures))
+						throw failure;
+				}
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Compute the host name for a repository's remote.
+	 *
+	 * @param repo		repository of interest
+	 * @param remote	name of the remote
+	 *
+	 * @return the host name from the remote URL, or NULL if the remote is local or unknown
+	 */
+	public static String remoteHost(Repository repo, String remote) {
+		String url = repo.getConfig().getString(ConfigConstants.CONFIG_REMOTE_SECTION, remote,
+				ConfigConstants.CONFIG_KEY_URL);
+		return urlHost(url);
+	}
+
+	/**
+	 * Compute the host name for a remote URL.
+	 *
+	 * @param url	remote URL, or NULL if there is none
+	 *
+	 * @return the host name from the URL, or NULL if the URL is local or invalid
+	 */
+	public static String urlHost(String url) {
+		String retVal = null;
+		if (url != null) {
+			try {
+				retVal = new URIish(url).getHost();
+			} catch (URISyntaxException e) {
+				log.debug("Invalid remote URL {}.", url);
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Specify the transport pool to be used by all repos.
+	 *
+	 * @param pool		new transport pool, or NULL to give each command its own transport
+	 */
+	public static void setTransportPool(TransportPool pool) {
+		transportPool = pool;
+	}
+
+	/**
+	 * @return the active transport pool, or NULL if each command uses its own transport
+	 */
+	public static TransportPool getTransportPool() {
+		return transportPool;
+	}
+
 	/**
 	 * @return TRUE if this repo has submodules, else FALSE
 	 *
@@ -219,7 +1346,10 @@ public class GitRepo implements AutoCloseable {
 	}
 
 	/**
-	 * Compute the current branch for a git repository relative to a specified remote.
+	 * Compute the current branch for a git repository relative to a specified remote. If the
+	 * remote's HEAD symbolic ref is known, its target is used. Otherwise, the branch with the
+	 * most recent commit is chosen. The result is cached, and the cached value is used as long
+	 * as the remote-tracking refs have not changed.
 	 *
 	 * @param rGit		git repository in question
 	 * @param remote	remote name (usually "origin")
@@ -232,30 +1362,26 @@ public class GitRepo implements AutoCloseable {
 		try {
 			// Form a search string from the remote name.
 			String remoteIndicator = "/" + remote + "/";
-			// Get the branches.
+			// Get the branches for the target remote.
 			ListBranchCommand cmd = rGit.branchList();
 			cmd.setListMode(ListMode.REMOTE);
-			List<Ref> branches = cmd.call();
-			// Find the latest ref for the target remote.
-			try (RevWalk walk = new RevWalk(rGit.getRepository())) {
-				// Initialize to a null date. We want the latest.
-				Instant latest = Instant.EPOCH;
-				for (Ref refI : branches) {
-					String refString = refI.getName();
-					if (refString.contains(remoteIndicator)) {
-						RevCommit commit = walk.parseCommit(refI.getObjectId());
-						Instant commitDate = commit.getCommitterIdent().getWhenAsInstant();
-						if (commitDate.isAfter(latest)) {
-							String leafName = refI.getLeaf().getName();
-							// Shorten us to the branch part of the name.
-							retVal = StringUtils.substringAfterLast(leafName, remoteIndicator);
-							// Save the commit time.
-							latest = commitDate;
-						}
-					}
-				}
-			} catch (IOException e) {
-				log.error("Error retrieving branch data: {}", e.toString());
+			List<Ref> branches = new ArrayList<Ref>();
+			for (Ref refI : cmd.call()) {
+				if (refI.getName().contains(remoteIndicator))
+					branches.add(refI);
+			}
+			// Check the cache.
+			Repository repo = rGit.getRepository();
+			BranchCache cache = branchCache;
+			String fingerprint = fingerprint(branches);
+			retVal = cache.get(repo.getDirectory(), remote, fingerprint);
+			if (retVal == null) {
+				// Not in the cache, so we have to compute it. Try the remote HEAD first.
+				retVal = headBranch(repo, remote, remoteIndicator);
+				if (retVal == null)
+					retVal = latestBranch(repo, branches, remoteIndicator);
+				if (retVal != null)
+					cache.put(repo.getDirectory(), remote, fingerprint, retVal);
 			}
 			if (retVal == null)
 				log.error("Could not find remote {} in {}.", remote, rGit);
@@ -265,6 +1391,101 @@ public class GitRepo implements AutoCloseable {
 		return retVal;
 	}
 
+	/**
+	 * Compute a fingerprint for a list of remote-tracking refs. The fingerprint changes if any
+	 * ref is added, removed, retargeted, or moved.
+	 *
+	 * @param branches	list of refs to fingerprint
+	 *
+	 * @return a hex string that identifies the state of the refs
+	 */
+	private static String fingerprint(List<Ref> branches) {
+		MessageDigest digest = Constants.newMessageDigest();
+		for (Ref refI : branches) {
+			digest.update(Constants.encode(refI.getName()));
+			digest.update((byte) 0);
+			digest.update(Constants.encode(refI.getLeaf().getName()));
+			digest.update((byte) 0);
+			ObjectId id = refI.getObjectId();
+			if (id != null)
+				digest.update(Constants.encode(id.name()));
+			digest.update((byte) '\n');
+		}
+		return ObjectId.fromRaw(digest.digest()).name();
+	}
+
+	/**
+	 * Compute the branch pointed to by a remote's HEAD symbolic ref.
+	 *
+	 * @param repo				repository of interest
+	 * @param remote			remote name
+	 * @param remoteIndicator	remote name search string
+	 *
+	 * @return the branch name, or NULL if the remote HEAD is not known
+	 */
+	private static String headBranch(Repository repo, String remote, String remoteIndicator) {
+		String retVal = null;
+		try {
+			Ref head = repo.exactRef(Constants.R_REMOTES + remote + "/" + Constants.HEAD);
+			if (head != null && head.isSymbolic()) {
+				String leafName = head.getTarget().getName();
+				if (leafName.contains(remoteIndicator))
+					retVal = StringUtils.substringAfterLast(leafName, remoteIndicator);
+			}
+		} catch (IOException e) {
+			log.error("Error retrieving remote HEAD data: {}", e.toString());
+		}
+		return retVal;
+	}
+
+	/**
+	 * Compute the branch with the most recent commit.
+	 *
+	 * @param repo				repository of interest
+	 * @param branches			list of remote branch refs for the remote of interest
+	 * @param remoteIndicator	remote name search string
+	 *
+	 * @return the branch name, or NULL if none was found
+	 */
+	private static String latestBranch(Repository repo, List<Ref> branches, String remoteIndicator) {
+		String retVal = null;
+		// Find the latest ref for the target remote.
+		try (RevWalk walk = new RevWalk(repo)) {
+			// Initialize to a null date. We want the latest.
+			Instant latest = Instant.EPOCH;
+			for (Ref refI : branches) {
+				RevCommit commit = walk.parseCommit(refI.getObjectId());
+				Instant commitDate = commit.getCommitterIdent().getWhenAsInstant();
+				if (commitDate.isAfter(latest)) {
+					String leafName = refI.getLeaf().getName();
+					// Shorten us to the branch part of the name.
+					retVal = StringUtils.substringAfterLast(leafName, remoteIndicator);
+					// Save the commit time.
+					latest = commitDate;
+				}
+			}
+		} catch (IOException e) {
+			log.error("Error retrieving branch data: {}", e.toString());
+		}
+		return retVal;
+	}
+
+	/**
+	 * Specify the branch cache to be used by all repos.
+	 *
+	 * @param cache		new branch cache
+	 */
+	public static void setBranchCache(BranchCache cache) {
+		branchCache = cache;
+	}
+
+	/**
+	 * @return the branch cache used by all repos
+	 */
+	public static BranchCache getBranchCache() {
+		return branchCache;
+	}
+
 	@Override
 	public void close() {
 		// Insure the git repo is closed.
@@ -0,0 +1,117 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import java.io.File;
+import java.net.URISyntaxException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jgit.transport.URIish;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object describes a directory of bare mirror repos shared by several code bases. Each
+ * mirror is stored under the host name and path of its upstream URL, so that every code base
+ * using the same upstream repo finds the same mirror.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class MirrorCache {
+
+	// FIELDS
+	/** logging facility */
+	private static final Logger log = LoggerFactory.getLogger(MirrorCache.class);
+	/** cache directory */
+	private File cacheDir;
+	/** directory name used for upstream repos without a host */
+	private static final String LOCAL_DIR = "local";
+
+	/**
+	 * Create a mirror cache descriptor.
+	 *
+	 * @param cacheDir	directory containing the mirrors
+	 */
+	public MirrorCache(File cacheDir) {
+		this.cacheDir = cacheDir.getAbsoluteFile();
+	}
+
+	/**
+	 * @return the cache directory
+	 */
+	public File getCacheDir() {
+		return this.cacheDir;
+	}
+
+	/**
+	 * Compute the mirror directory for an upstream URL. Different upstream repos must never share a
+	 * mirror, so every path segment that can change the repo named is kept. Empty and "." segments
+	 * are skipped. A ".." segment is encoded, so that it cannot escape the cache, and so is the
+	 * escape character itself, so that an encoded segment cannot match a real one.
+	 *
+	 * @param url	upstream URL
+	 *
+	 * @return the mirror directory, or NULL if the URL is invalid
+	 */
+	public File getMirrorDir(String url) {
+		File retVal = null;
+		try {
+			URIish uri = new URIish(url);
+			String host = uri.getHost();
+			if (host == null)
+				host = LOCAL_DIR;
+			else if (uri.getPort() > 0)
+				host += "_" + uri.getPort();
+			retVal = new File(this.cacheDir, host);
+			// Build the path one segment at a time, so that nothing can escape the cache.
+			for (String segment : uri.getPath().split("/")) {
+				if (! segment.isEmpty() && ! segment.equals("."))
+					retVal = new File(retVal, encodeSegment(segment));
+			}
+			if (! retVal.getName().endsWith(".git"))
+				retVal = new File(retVal.getParentFile(), retVal.getName() + ".git");
+		} catch (URISyntaxException e) {
+			log.debug("Invalid upstream URL {}.", url);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Encode a path segment for use as a directory name in the cache.
+	 *
+	 * @param segment	path segment to encode
+	 *
+	 * @return the directory name for the segment
+	 */
+	private static String encodeSegment(String segment) {
+		String retVal = StringUtils.replace(segment, "%", "%25");
+		if (retVal.equals(".."))
+			retVal = "%2E%2E";
+		return retVal;
+	}
+
+	/**
+	 * Determine the upstream URL of a repo's remote. If the repo is already fetching from its
+	 * mirror in this cache, the upstream URL is the push URL.
+	 *
+	 * @param repo		repo of interest
+	 * @param remote	name of the remote
+	 *
+	 * @return the upstream URL, or NULL if the remote is missing, relative, or already in the cache
+	 */
+	public String findUpstream(GitRepo repo, String remote) {
+		String retVal = repo.getRemoteUrl(remote);
+		String pushUrl = repo.getPushUrl(remote);
+		if (retVal != null && pushUrl != null) {
+			File mirrorDir = this.getMirrorDir(pushUrl);
+			if (mirrorDir != null && mirrorDir.getAbsolutePath().equals(retVal))
+				retVal = pushUrl;
+		}
+		if (retVal != null && (retVal.startsWith(".") || retVal.startsWith(this.cacheDir.getPath() + File.separator)))
+			retVal = null;
+		return retVal;
+	}
+
+}
@@ -0,0 +1,110 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * This object describes a single project found during a traversal of a code base. In addition
+ * to the project directory, it knows the project's depth in the submodule tree and its parent
+ * project. The GIT directory is computed on first use, since for most operations it is never
+ * needed.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ProjectInfo {
+
+	// FIELDS
+	/** project directory */
+	private File projDir;
+	/** parent project, or NULL for a top-level project */
+	private ProjectInfo parent;
+	/** depth in the submodule tree (0 for a top-level project) */
+	private int depth;
+	/** code base index for looking up the GIT directory, or NULL if there is none */
+	private CodeBaseIndex index;
+	/** GIT directory, or NULL if it has not been computed yet */
+	private volatile File gitDir;
+
+	/**
+	 * Create the descriptor for a project.
+	 *
+	 * @param projDir	project directory
+	 * @param parent	parent project, or NULL for a top-level project
+	 * @param index		code base index, or NULL if there is none
+	 */
+	protected ProjectInfo(File projDir, ProjectInfo parent, CodeBaseIndex index) {
+		this.projDir = projDir;
+		this.parent = parent;
+		this.depth = (parent == null ? 0 : parent.depth + 1);
+		this.index = index;
+		this.gitDir = null;
+	}
+
+	/**
+	 * @return the project directory
+	 */
+	public File getDir() {
+		return this.projDir;
+	}
+
+	/**
+	 * @return the project name
+	 */
+	public String getName() {
+		return this.projDir.getName();
+	}
+
+	/**
+	 * @return the parent project, or NULL for a top-level project
+	 */
+	public ProjectInfo getParent() {
+		return this.parent;
+	}
+
+	/**
+	 * @return the depth of this project in the submodule tree (0 for a top-level project)
+	 */
+	public int getDepth() {
+		return this.depth;
+	}
+
+	/**
+	 * @return TRUE if this project is a submodule of another project
+	 */
+	public boolean isSubmodule() {
+		return this.parent != null;
+	}
+
+	/**
+	 * @return the GIT directory for this project
+	 *
+	 * @throws UncheckedIOException if the GIT directory cannot be determined
+	 */
+	public File getGitDir() {
+		File retVal = this.gitDir;
+		if (retVal == null) {
+			if (this.index != null)
+				retVal = this.index.getGitDir(this.projDir);
+			if (retVal == null) {
+				try {
+					retVal = GitRepo.findGitDir(this.projDir);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			this.gitDir = retVal;
+		}
+		return retVal;
+	}
+
+	@Override
+	public String toString() {
+		return this.projDir.toString();
+	}
+
+}
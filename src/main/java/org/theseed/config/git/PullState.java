@@ -0,0 +1,141 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object remembers the remote heads last seen for each repo in a code base, so that a
+ * later pull can skip the repos whose remotes have not moved. For each repo and remote, we
+ * store a fingerprint of the full set of remote branch heads.
+ *
+ * The state is thread-safe. It is saved in a tab-delimited file with three columns-- (0) the
+ * project directory, (1) the remote name, and (2) the fingerprint of the remote heads.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class PullState {
+
+	// FIELDS
+	/** logging facility */
+	private static final Logger log = LoggerFactory.getLogger(PullState.class);
+	/** map of repo keys to head fingerprints */
+	private Map<String, String> heads;
+	/** file for saving the state */
+	private File stateFile;
+	/** TRUE if the state has changed since it was loaded */
+	private volatile boolean changed;
+	/** name of the state file in the code base state directory */
+	public static final String STATE_NAME = "pull.state";
+
+	/**
+	 * Load the pull state from a file. If the file does not exist or is unreadable, the
+	 * state will be empty, so every repo will be treated as changed.
+	 *
+	 * @param stateFile		file containing the saved state
+	 *
+	 * @return the pull state
+	 */
+	public static PullState load(File stateFile) {
+		PullState retVal = new PullState(stateFile);
+		try {
+			StateFile.read(stateFile, 3, x -> retVal.heads.put(key(x[0], x[1]), x[2]));
+		} catch (IOException e) {
+			log.warn("Could not read pull state {}: {}", stateFile, e.toString());
+			retVal.heads.clear();
+		}
+		return retVal;
+	}
+
+	/**
+	 * Create an empty pull state.
+	 *
+	 * @param stateFile		file for saving the state
+	 */
+	private PullState(File stateFile) {
+		this.stateFile = stateFile;
+		this.heads = new ConcurrentHashMap<String, String>();
+		this.changed = false;
+	}
+
+	/**
+	 * @return the key string for a repo and remote
+	 *
+	 * @param projDir	project directory path
+	 * @param remote	remote name
+	 */
+	private static String key(String projDir, String remote) {
+		return projDir + "\t" + remote;
+	}
+
+	/**
+	 * Compute the fingerprint of a set of remote heads.
+	 *
+	 * @param remoteHeads	sorted map of branch names to head commit IDs
+	 *
+	 * @return a hex string that changes whenever any head is added, removed, or moved
+	 */
+	public static String fingerprint(SortedMap<String, ObjectId> remoteHeads) {
+		MessageDigest digest = Constants.newMessageDigest();
+		for (Map.Entry<String, ObjectId> head : remoteHeads.entrySet()) {
+			digest.update(Constants.encode(head.getKey()));
+			digest.update((byte) 0);
+			digest.update(Constants.encode(head.getValue().name()));
+			digest.update((byte) '\n');
+		}
+		return ObjectId.fromRaw(digest.digest()).name();
+	}
+
+	/**
+	 * @return TRUE if the remote heads for a repo differ from the ones last seen
+	 *
+	 * @param projDir		project directory
+	 * @param remote		remote name
+	 * @param fingerprint	fingerprint of the current remote heads
+	 */
+	public boolean isChanged(File projDir, String remote, String fingerprint) {
+		String old = this.heads.get(key(projDir.getAbsolutePath(), remote));
+		return ! fingerprint.equals(old);
+	}
+
+	/**
+	 * Record the remote heads for a repo after it has been pulled.
+	 *
+	 * @param projDir		project directory
+	 * @param remote		remote name
+	 * @param fingerprint	fingerprint of the remote heads that were pulled
+	 */
+	public void update(File projDir, String remote, String fingerprint) {
+		this.heads.put(key(projDir.getAbsolutePath(), remote), fingerprint);
+		this.changed = true;
+	}
+
+	/**
+	 * Save this state to its file if it has changed.
+	 *
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		if (this.changed) {
+			StateFile.write(this.stateFile, writer -> {
+				for (Map.Entry<String, String> head : this.heads.entrySet())
+					writer.println(head.getKey() + "\t" + head.getValue());
+			});
+			this.changed = false;
+			log.info("Pull state for {} repos saved to {}.", this.heads.size(), this.stateFile);
+		}
+	}
+
+}
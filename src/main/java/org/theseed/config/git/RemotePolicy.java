@@ -0,0 +1,257 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import java.io.EOFException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.errors.TransportException;
+import org.eclipse.jgit.errors.NoRemoteRepositoryException;
+import org.eclipse.jgit.errors.NotSupportedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object describes how remote operations recover from network trouble. It has three parts.
+ *
+ * First, each remote operation has a transport timeout, so that a server that stops responding
+ * causes a failure instead of a hang.
+ *
+ * Second, an operation that fails for a transient reason (a timeout, a refused or dropped
+ * connection, or an HTTP status indicating the server is temporarily unable to respond) is
+ * retried after a delay that doubles with each attempt. Other failures, such as a missing
+ * repository or an authentication failure, are not retried.
+ *
+ * Third, each host has a circuit breaker. When enough consecutive transient failures occur on a
+ * host, the host's circuit opens, and operations on it fail immediately without contacting the
+ * host. After a cooling-off period, a single trial operation is allowed through. If it succeeds,
+ * the circuit closes; otherwise, it stays open for another cooling-off period. This keeps the
+ * workers of a parallel run busy with healthy hosts instead of waiting on a dead one.
+ *
+ * The policy is thread-safe.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class RemotePolicy {
+
+	// FIELDS
+	/** logging facility */
+	private static final Logger log = LoggerFactory.getLogger(RemotePolicy.class);
+	/** transport timeout in seconds, or 0 for none */
+	private int timeout;
+	/** maximum number of retries for a transient failure */
+	private int retries;
+	/** delay before the first retry, in milliseconds */
+	private long backoff;
+	/** number of consecutive transient failures that opens a host's circuit, or 0 for no circuit breaker */
+	private int breakerLimit;
+	/** number of milliseconds an open circuit waits before allowing a trial operation */
+	private long cooldown;
+	/** map of host names to circuit states */
+	private Map<String, Circuit> circuits;
+	/** maximum delay before a retry, in milliseconds */
+	private static final long MAX_BACKOFF = 60000L;
+	/** pattern for HTTP status codes that indicate a temporary server problem */
+	private static final Pattern TRANSIENT_STATUS = Pattern.compile(": (408|429|5\\d\\d) ");
+	/** default transport timeout in seconds */
+	public static final int DEFAULT_TIMEOUT = 120;
+	/** default number of retries */
+	public static final int DEFAULT_RETRIES = 2;
+	/** default delay before the first retry, in milliseconds */
+	public static final long DEFAULT_BACKOFF = 1000L;
+	/** default number of consecutive failures that opens a circuit */
+	public static final int DEFAULT_BREAKER = 3;
+	/** default cooling-off period for an open circuit, in milliseconds */
+	public static final long DEFAULT_COOLDOWN = 60000L;
+
+	/**
+	 * This object tracks the health of a single host.
+	 */
+	private static class Circuit {
+
+		/** number of consecutive transient failures */
+		private int failures;
+		/** time at which the next trial operation is allowed, or 0 if the circuit is closed */
+		private long openUntil;
+
+	}
+
+	/**
+	 * Create a remote policy with the default settings.
+	 */
+	public RemotePolicy() {
+		this(DEFAULT_TIMEOUT, DEFAULT_RETRIES, DEFAULT_BACKOFF, DEFAULT_BREAKER, DEFAULT_COOLDOWN);
+	}
+
+	/**
+	 * Create a remote policy.
+	 *
+	 * @param timeout		transport timeout in seconds, or 0 for none
+	 * @param retries		maximum number of retries for a transient failure
+	 * @param backoff		delay before the first retry, in milliseconds
+	 * @param breakerLimit	number of consecutive transient failures that opens a host's circuit, or 0 for none
+	 * @param cooldown		number of milliseconds an open circuit waits before allowing a trial operation
+	 */
+	public RemotePolicy(int timeout, int retries, long backoff, int breakerLimit, long cooldown) {
+		this.timeout = timeout;
+		this.retries = retries;
+		this.backoff = backoff;
+		this.breakerLimit = breakerLimit;
+		this.cooldown = cooldown;
+		this.circuits = new ConcurrentHashMap<String, Circuit>();
+	}
+
+	/**
+	 * @return the transport timeout in seconds, or 0 if there is none
+	 */
+	public int getTimeout() {
+		return this.timeout;
+	}
+
+	/**
+	 * @return the maximum number of retries for a transient failure
+	 */
+	public int getRetries() {
+		return this.retries;
+	}
+
+	/**
+	 * Insure a host is available for an operation. If the host's circuit is open, this fails
+	 * immediately, unless the cooling-off period has expired, in which case the caller is
+	 * allowed through as the trial operation.
+	 *
+	 * @param host	host name, or NULL for a local remote
+	 *
+	 * @throws TransportException	if the host's circuit is open
+	 */
+	public void checkHost(String host) throws TransportException {
+		if (this.breakerLimit > 0) {
+			Circuit circuit = this.getCircuit(host);
+			synchronized (circuit) {
+				if (circuit.openUntil > 0) {
+					long now = System.currentTimeMillis();
+					if (now < circuit.openUntil)
+						throw new TransportException("Remote host " + hostKey(host) + " is unavailable after "
+								+ circuit.failures + " consecutive failures.");
+					// Let this operation through, but keep the others out until it is done.
+					circuit.openUntil = now + this.cooldown;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Record a successful operation on a host. This closes the host's circuit.
+	 *
+	 * @param host	host name, or NULL for a local remote
+	 */
+	public void recordSuccess(String host) {
+		if (this.breakerLimit > 0) {
+			Circuit circuit = this.getCircuit(host);
+			synchronized (circuit) {
+				if (circuit.openUntil > 0)
+					log.info("Remote host {} is available again.", hostKey(host));
+				circuit.failures = 0;
+				circuit.openUntil = 0;
+			}
+		}
+	}
+
+	/**
+	 * Record a transient failure on a host. If there have been too many in a row, the host's
+	 * circuit is opened.
+	 *
+	 * @param host	host name, or NULL for a local remote
+	 */
+	public void recordFailure(String host) {
+		if (this.breakerLimit > 0) {
+			Circuit circuit = this.getCircuit(host);
+			synchronized (circuit) {
+				circuit.failures++;
+				if (circuit.failures >= this.breakerLimit) {
+					if (circuit.openUntil == 0)
+						log.warn("Remote host {} has failed {} times in a row and will be skipped for {} seconds.",
+								hostKey(host), circuit.failures, this.cooldown / 1000);
+					circuit.openUntil = System.currentTimeMillis() + this.cooldown;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait before retrying an operation. The delay doubles with each attempt, and a small random
+	 * amount is added so that workers retrying the same host do not all return at once.
+	 *
+	 * @param attempt	number of attempts that have failed so far
+	 *
+	 * @return TRUE if the wait completed, FALSE if the thread was interrupted
+	 */
+	public boolean pause(int attempt) {
+		long delay = Math.min(MAX_BACKOFF, this.backoff << Math.min(attempt - 1, 20));
+		delay += ThreadLocalRandom.current().nextLong(delay / 4 + 1);
+		boolean retVal = true;
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			retVal = false;
+		}
+		return retVal;
+	}
+
+	/**
+	 * Determine whether a failed remote operation is worth retrying.
+	 *
+	 * @param e		exception thrown by the operation
+	 *
+	 * @return TRUE if the failure was caused by a transient network or server problem, else FALSE
+	 */
+	public static boolean isTransient(GitAPIException e) {
+		boolean retVal = false;
+		if (e instanceof TransportException) {
+			Throwable cause = e.getCause();
+			while (cause != null && ! retVal) {
+				if (cause instanceof NoRemoteRepositoryException || cause instanceof NotSupportedException)
+					cause = null;
+				else {
+					if (cause instanceof InterruptedIOException || cause instanceof SocketException
+							|| cause instanceof EOFException)
+						retVal = true;
+					else if (cause instanceof org.eclipse.jgit.errors.TransportException) {
+						String message = cause.getMessage();
+						retVal = (message != null && TRANSIENT_STATUS.matcher(message).find());
+					}
+					cause = cause.getCause();
+				}
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * @return the circuit for a host
+	 *
+	 * @param host	host name, or NULL for a local remote
+	 */
+	private Circuit getCircuit(String host) {
+		return this.circuits.computeIfAbsent(hostKey(host), x -> new Circuit());
+	}
+
+	/**
+	 * @return the key to use for a host
+	 *
+	 * @param host	host name, or NULL for a local remote
+	 */
+	private static String hostKey(String host) {
+		return (host == null ? TransportPool.LOCAL_HOST : host);
+	}
+
+}
@@ -0,0 +1,29 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import org.eclipse.jgit.lib.ProgressMonitor;
+
+/**
+ * This interface describes an operation to be performed on a single repo in a code base.
+ *
+ * @author Bruce Parrello
+ *
+ */
+@FunctionalInterface
+public interface RepoAction {
+
+	/**
+	 * Perform the operation on a repo.
+	 *
+	 * @param repo		repo to process
+	 * @param monitor	progress monitor to pass to any JGit commands
+	 *
+	 * @return a status message describing the result
+	 *
+	 * @throws Exception
+	 */
+	public String apply(GitRepo repo, ProgressMonitor monitor) throws Exception;
+
+}
@@ -0,0 +1,149 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.lib.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object keeps JGit repositories open so they can be reused by later operations on the same
+ * repo. Opening a repository reads its configuration and, on first use, its pack indexes, so
+ * reusing one saves a great deal of disk access in a long run.
+ *
+ * The repositories are keyed by canonical GIT directory, so a project reached through a
+ * submodule pointer file and through its own directory shares one repository. We also remember
+ * the GIT directory for each project directory, so that the pointer files are only read once.
+ *
+ * Reference counting uses the repository's own open count. The pool holds one reference, and
+ * every caller of "open" gets another, which it releases by closing the repository as usual.
+ * When the pool is full, the least-recently-used repository is evicted by releasing the pool's
+ * reference; the repository is only really closed when its last user closes it.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class RepoPool implements AutoCloseable {
+
+	// FIELDS
+	/** logging facility */
+	private static final Logger log = LoggerFactory.getLogger(RepoPool.class);
+	/** map of canonical GIT directory names to open repositories, in access order */
+	private Map<String, Repository> repos;
+	/** map of project directories to GIT directories */
+	private Map<File, File> gitDirs;
+	/** maximum number of repositories to keep open */
+	private int capacity;
+	/** number of repository opens satisfied from the pool */
+	private int hits;
+	/** number of repository opens that required a new repository */
+	private int misses;
+
+	/**
+	 * Create a new, empty repository pool.
+	 *
+	 * @param capacity	maximum number of repositories to keep open
+	 */
+	public RepoPool(int capacity) {
+		this.capacity = capacity;
+		this.repos = new LinkedHashMap<String, Repository>(capacity * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Repository> eldest) {
+				boolean retVal = this.size() > RepoPool.this.capacity;
+				if (retVal) {
+					log.debug("Evicting repository {} from pool.", eldest.getKey());
+					eldest.getValue().close();
+				}
+				return retVal;
+			}
+		};
+		this.gitDirs = new HashMap<File, File>();
+		this.hits = 0;
+		this.misses = 0;
+	}
+
+	/**
+	 * Open the repository for a project directory. The caller must close the repository when
+	 * it is done with it.
+	 *
+	 * @param projDir	project directory
+	 *
+	 * @return the repository for the project
+	 *
+	 * @throws IOException
+	 */
+	public synchronized Repository open(File projDir) throws IOException {
+		File gitDir = this.gitDirs.get(projDir);
+		if (gitDir == null) {
+			gitDir = GitRepo.findGitDir(projDir).getCanonicalFile();
+			this.gitDirs.put(projDir, gitDir);
+		}
+		String key = gitDir.getPath();
+		Repository retVal = this.repos.get(key);
+		if (retVal != null)
+			this.hits++;
+		else {
+			this.misses++;
+			retVal = new FileRepository(gitDir);
+			this.repos.put(key, retVal);
+		}
+		// Add the caller's reference.
+		retVal.incrementOpen();
+		return retVal;
+	}
+
+	/**
+	 * Forget the GIT directory and repository for a project, so that the next open reads them
+	 * from disk. This is necessary if the project is deleted or replaced.
+	 *
+	 * @param projDir	project directory
+	 */
+	public synchronized void invalidate(File projDir) {
+		File gitDir = this.gitDirs.remove(projDir);
+		if (gitDir != null) {
+			Repository repo = this.repos.remove(gitDir.getPath());
+			if (repo != null)
+				repo.close();
+		}
+	}
+
+	/**
+	 * @return the number of repositories currently in the pool
+	 */
+	public synchronized int size() {
+		return this.repos.size();
+	}
+
+	/**
+	 * @return the number of opens satisfied from the pool
+	 */
+	public synchronized int getHits() {
+		return this.hits;
+	}
+
+	/**
+	 * @return the number of opens that required a new repository
+	 */
+	public synchronized int getMisses() {
+		return this.misses;
+	}
+
+	@Override
+	public synchronized void close() {
+		log.info("Repository pool closing: {} hits, {} misses.", this.hits, this.misses);
+		for (Repository repo : this.repos.values())
+			repo.close();
+		this.repos.clear();
+		this.gitDirs.clear();
+	}
+
+}
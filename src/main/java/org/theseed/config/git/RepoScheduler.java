@@ -0,0 +1,247 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object schedules an operation on every repo of a code base across a pool of workers so
+ * as to minimize the total wall-clock time. Each repo has an estimated duration, normally taken
+ * from the timings of previous runs. A repo's priority is the length of its critical path, that
+ * is, its own estimate plus the longest path through its submodules. Whenever a worker is free,
+ * it is given the ready repo with the highest priority, so the big repos start first instead of
+ * stretching out the end of the run.
+ *
+ * A submodule is not ready until its parent has been processed, so parents are always processed
+ * before their submodules. In addition, each repo can be assigned a host, and no more than a
+ * fixed number of repos for the same host are run at once. A repo whose host is busy is passed
+ * over in favor of the next ready repo, rather than tying up a worker while it waits.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class RepoScheduler {
+
+	// FIELDS
+	/** logging facility */
+	private static final Logger log = LoggerFactory.getLogger(RepoScheduler.class);
+	/** list of jobs, in code-base order */
+	private List<Job> jobs;
+	/** map of project directories to jobs */
+	private Map<File, Job> jobMap;
+	/** maximum number of concurrent jobs per host */
+	private int hostLimit;
+	/** lock for the scheduling state */
+	private ReentrantLock lock;
+	/** condition signaled when a job completes */
+	private Condition finished;
+	/** ready jobs, highest priority first */
+	private TreeSet<Job> ready;
+	/** map of host names to running job counts */
+	private Map<String, Integer> running;
+	/** number of jobs running */
+	private int active;
+	/** number of jobs not yet complete */
+	private int remaining;
+
+	/**
+	 * This object represents the processing of a single repo.
+	 */
+	private static class Job {
+
+		/** project directory */
+		private File projDir;
+		/** position in code-base order */
+		private int order;
+		/** host for concurrency limits, or NULL if there is no limit */
+		private String host;
+		/** estimated duration in milliseconds */
+		private long estimate;
+		/** critical-path length in milliseconds */
+		private long priority;
+		/** list of submodule jobs */
+		private List<Job> children;
+		/** result of the job */
+		private RepoSummary result;
+
+		/**
+		 * Create a job.
+		 *
+		 * @param projDir	project directory
+		 * @param order		position in code-base order
+		 * @param host		host for concurrency limits, or NULL if there is no limit
+		 * @param estimate	estimated duration in milliseconds
+		 */
+		private Job(File projDir, int order, String host, long estimate) {
+			this.projDir = projDir;
+			this.order = order;
+			this.host = host;
+			this.estimate = estimate;
+			this.priority = estimate;
+			this.children = new ArrayList<Job>();
+			this.result = null;
+		}
+
+	}
+
+	/**
+	 * Create an empty scheduler.
+	 *
+	 * @param hostLimit		maximum number of concurrent repos for a single host
+	 */
+	public RepoScheduler(int hostLimit) {
+		this.hostLimit = hostLimit;
+		this.jobs = new ArrayList<Job>();
+		this.jobMap = new HashMap<File, Job>();
+		this.lock = new ReentrantLock();
+		this.finished = this.lock.newCondition();
+		this.ready = new TreeSet<Job>(Comparator.comparingLong((Job x) -> x.priority).reversed()
+				.thenComparingInt(x -> x.order));
+		this.running = new HashMap<String, Integer>();
+	}
+
+	/**
+	 * Add a repo to the schedule. Repos must be added in code-base order, so that a parent is
+	 * always added before its submodules.
+	 *
+	 * @param projDir	project directory
+	 * @param parent	parent project directory, or NULL for a top-level project
+	 * @param host		host for concurrency limits, or NULL if there is no limit
+	 * @param estimate	estimated duration in milliseconds
+	 */
+	public void add(File projDir, File parent, String host, long estimate) {
+		Job job = new Job(projDir, this.jobs.size(), host, estimate);
+		Job parentJob = (parent == null ? null : this.jobMap.get(parent));
+		if (parentJob == null)
+			this.ready.add(job);
+		else
+			parentJob.children.add(job);
+		this.jobs.add(job);
+		this.jobMap.put(projDir, job);
+	}
+
+	/**
+	 * @return the number of repos in the schedule
+	 */
+	public int size() {
+		return this.jobs.size();
+	}
+
+	/**
+	 * Process all the repos in the schedule.
+	 *
+	 * @param workers	number of worker threads
+	 * @param task		operation to perform on each repo
+	 *
+	 * @return the results of the operation, in code-base order
+	 *
+	 * @throws InterruptedException
+	 */
+	public List<RepoSummary> run(int workers, Function<File, RepoSummary> task) throws InterruptedException {
+		// Compute the critical paths. Children always follow their parents, so we work backward.
+		for (int i = this.jobs.size() - 1; i >= 0; i--) {
+			Job job = this.jobs.get(i);
+			long longest = 0;
+			for (Job child : job.children)
+				longest = Math.max(longest, child.priority);
+			job.priority = job.estimate + longest;
+		}
+		// The ready set is sorted by priority, so it has to be rebuilt now that the priorities are known.
+		List<Job> roots = new ArrayList<Job>(this.ready);
+		this.ready.clear();
+		this.ready.addAll(roots);
+		this.remaining = this.jobs.size();
+		this.active = 0;
+		int poolSize = Math.max(1, Math.min(workers, this.jobs.size()));
+		log.info("Scheduling {} repos on {} workers.", this.jobs.size(), poolSize);
+		ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+		this.lock.lock();
+		try {
+			while (this.remaining > 0) {
+				// Start as many jobs as we have room for.
+				Job next = (this.active < poolSize ? this.nextJob() : null);
+				while (next != null) {
+					this.active++;
+					if (next.host != null)
+						this.running.merge(next.host, 1, Integer::sum);
+					final Job job = next;
+					pool.execute(() -> this.runJob(job, task));
+					next = (this.active < poolSize ? this.nextJob() : null);
+				}
+				this.finished.await();
+			}
+		} finally {
+			this.lock.unlock();
+			pool.shutdown();
+		}
+		List<RepoSummary> retVal = new ArrayList<RepoSummary>(this.jobs.size());
+		for (Job job : this.jobs)
+			retVal.add(job.result);
+		return retVal;
+	}
+
+	/**
+	 * Find the highest-priority ready job whose host has room for it and remove it from the ready
+	 * set. This must be called while holding the lock.
+	 *
+	 * @return the next job to run, or NULL if no ready job can run now
+	 */
+	private Job nextJob() {
+		Job retVal = null;
+		Iterator<Job> iter = this.ready.iterator();
+		while (retVal == null && iter.hasNext()) {
+			Job job = iter.next();
+			if (job.host == null || this.running.getOrDefault(job.host, 0) < this.hostLimit) {
+				retVal = job;
+				iter.remove();
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Run a single job and then release its submodules.
+	 *
+	 * @param job	job to run
+	 * @param task	operation to perform on the job's repo
+	 */
+	private void runJob(Job job, Function<File, RepoSummary> task) {
+		RepoSummary result;
+		try {
+			result = task.apply(job.projDir);
+		} catch (RuntimeException e) {
+			log.error("Error processing {}: {}", job.projDir, e.toString());
+			result = new RepoSummary(job.projDir, e);
+		}
+		this.lock.lock();
+		try {
+			job.result = result;
+			this.active--;
+			this.remaining--;
+			if (job.host != null)
+				this.running.merge(job.host, -1, Integer::sum);
+			// A submodule is processed even if its parent failed, the same as in a serial run.
+			this.ready.addAll(job.children);
+			this.finished.signal();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+}
@@ -0,0 +1,154 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import java.io.File;
+
+/**
+ * This object contains a compact summary of the result of a git operation on a single
+ * repo in a code base. It is used to collect results when repos are processed out of
+ * order, so that a readable report can be produced at the end.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class RepoSummary {
+
+	// FIELDS
+	/** project directory */
+	private File projDir;
+	/** status message from the operation */
+	private String status;
+	/** error message, or NULL if the operation succeeded */
+	private String error;
+	/** TRUE if the operation did everything it was asked to do */
+	private boolean successful;
+	/** elapsed wall-clock time in milliseconds */
+	private long millis;
+	/** number of bytes fetched */
+	private long bytesFetched;
+	/** number of objects received */
+	private int objectsReceived;
+
+	/**
+	 * Create a summary for a successful operation.
+	 *
+	 * @param projDir	project directory
+	 * @param status	status message for the operation
+	 */
+	public RepoSummary(File projDir, String status) {
+		this.projDir = projDir;
+		this.status = status;
+		this.error = null;
+		this.successful = true;
+	}
+
+	/**
+	 * Create a summary for a failed operation.
+	 *
+	 * @param projDir	project directory
+	 * @param e			exception that caused the failure
+	 */
+	public RepoSummary(File projDir, Exception e) {
+		this.projDir = projDir;
+		this.status = "FAILED";
+		this.error = e.toString();
+		this.successful = false;
+	}
+
+	/**
+	 * Store the metrics for this operation.
+	 *
+	 * @param millis			elapsed wall-clock time in milliseconds
+	 * @param bytesFetched		number of bytes fetched
+	 * @param objectsReceived	number of objects received
+	 */
+	public void setMetrics(long millis, long bytesFetched, int objectsReceived) {
+		this.millis = millis;
+		this.bytesFetched = bytesFetched;
+		this.objectsReceived = objectsReceived;
+	}
+
+	/**
+	 * @return the project directory
+	 */
+	public File getProjDir() {
+		return this.projDir;
+	}
+
+	/**
+	 * @return the project name
+	 */
+	public String getName() {
+		return this.projDir.getName();
+	}
+
+	/**
+	 * @return the status message
+	 */
+	public String getStatus() {
+		return this.status;
+	}
+
+	/**
+	 * @return the error message, or NULL if the operation succeeded
+	 */
+	public String getError() {
+		return this.error;
+	}
+
+	/**
+	 * @return TRUE if the operation failed
+	 */
+	public boolean isFailed() {
+		return this.error != null;
+	}
+
+	/**
+	 * @return TRUE if the operation did everything it was asked to do
+	 */
+	public boolean isSuccessful() {
+		return this.successful;
+	}
+
+	/**
+	 * Specify whether the operation did everything it was asked to do. An operation that did not
+	 * fail may still be unsuccessful, for example a pull whose merge had conflicts.
+	 *
+	 * @param successful	TRUE if the operation was successful, else FALSE
+	 */
+	public void setSuccessful(boolean successful) {
+		this.successful = successful;
+	}
+
+	/**
+	 * @return the elapsed wall-clock time in milliseconds
+	 */
+	public long getMillis() {
+		return this.millis;
+	}
+
+	/**
+	 * @return the number of bytes fetched
+	 */
+	public long getBytesFetched() {
+		return this.bytesFetched;
+	}
+
+	/**
+	 * @return the number of objects received
+	 */
+	public int getObjectsReceived() {
+		return this.objectsReceived;
+	}
+
+	@Override
+	public String toString() {
+		String retVal = this.getName() + ": " + this.status;
+		if (this.error != null)
+			retVal += " (" + this.error + ")";
+		return retVal;
+	}
+
+}
@@ -0,0 +1,130 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object remembers how long each repo in a code base took to process in previous runs, so
+ * that a scheduler can start the slowest work first. Timings are kept separately for each
+ * command, since a pull and a verify of the same repo take very different amounts of time.
+ * Each new timing is blended with the old one, so a single unusual run does not throw off
+ * the schedule.
+ *
+ * The timings are thread-safe. They are saved in a tab-delimited file with three columns--
+ * (0) the project directory, (1) the command name, and (2) the estimated time in milliseconds.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class RepoTimings {
+
+	// FIELDS
+	/** logging facility */
+	private static final Logger log = LoggerFactory.getLogger(RepoTimings.class);
+	/** map of repo keys to estimated milliseconds */
+	private Map<String, Long> timings;
+	/** file for saving the timings */
+	private File timingFile;
+	/** TRUE if the timings have changed since they were loaded */
+	private volatile boolean changed;
+	/** name of the timing file in the code base state directory */
+	public static final String TIMING_NAME = "timings.tsv";
+	/** weight given to the newest timing when it is blended with the old estimate */
+	private static final double NEW_WEIGHT = 0.5;
+
+	/**
+	 * Load the timings from a file. If the file does not exist or is unreadable, there will
+	 * be no timings, and every repo will get the default estimate.
+	 *
+	 * @param timingFile	file containing the saved timings
+	 *
+	 * @return the repo timings
+	 */
+	public static RepoTimings load(File timingFile) {
+		RepoTimings retVal = new RepoTimings(timingFile);
+		try {
+			StateFile.read(timingFile, 3, x -> retVal.timings.put(key(x[0], x[1]), Long.valueOf(x[2])));
+		} catch (IOException | NumberFormatException e) {
+			log.warn("Could not read repo timings {}: {}", timingFile, e.toString());
+			retVal.timings.clear();
+		}
+		return retVal;
+	}
+
+	/**
+	 * Create an empty timing table.
+	 *
+	 * @param timingFile	file for saving the timings
+	 */
+	public RepoTimings(File timingFile) {
+		this.timingFile = timingFile;
+		this.timings = new ConcurrentHashMap<String, Long>();
+		this.changed = false;
+	}
+
+	/**
+	 * @return the key string for a repo and command
+	 *
+	 * @param projDir	project directory path
+	 * @param command	command name
+	 */
+	private static String key(String projDir, String command) {
+		return projDir + "\t" + command;
+	}
+
+	/**
+	 * @return the estimated time to process a repo, or -1 if it has never been timed
+	 *
+	 * @param projDir	project directory
+	 * @param command	command name
+	 */
+	public long estimate(File projDir, String command) {
+		Long retVal = this.timings.get(key(projDir.getAbsolutePath(), command));
+		return (retVal == null ? -1L : retVal);
+	}
+
+	/**
+	 * Record the time it took to process a repo.
+	 *
+	 * @param projDir	project directory
+	 * @param command	command name
+	 * @param millis	elapsed time in milliseconds
+	 */
+	public void record(File projDir, String command, long millis) {
+		this.timings.merge(key(projDir.getAbsolutePath(), command), millis,
+				(x, y) -> Math.round(x * (1.0 - NEW_WEIGHT) + y * NEW_WEIGHT));
+		this.changed = true;
+	}
+
+	/**
+	 * @return the number of timings stored
+	 */
+	public int size() {
+		return this.timings.size();
+	}
+
+	/**
+	 * Save the timings to their file if they have changed.
+	 *
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		if (this.changed) {
+			StateFile.write(this.timingFile, writer -> {
+				for (Map.Entry<String, Long> timing : this.timings.entrySet())
+					writer.println(timing.getKey() + "\t" + timing.getValue());
+			});
+			this.changed = false;
+			log.info("Timings for {} repos saved to {}.", this.timings.size(), this.timingFile);
+		}
+	}
+
+}
@@ -0,0 +1,74 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.function.Consumer;
+
+import org.theseed.io.LineReader;
+
+/**
+ * This class contains the utilities for reading and writing the tab-delimited files in which the
+ * code base state is kept. A state file is always written to a new temporary file in the same
+ * directory and then renamed, so a reader never sees a partial file, and two processes saving
+ * the same file at once do not write into each other's output.
+ *
+ * @author Bruce Parrello
+ *
+ */
+class StateFile {
+
+	/**
+	 * Read the records in a state file. Each record is split on tabs, and records with the wrong
+	 * number of fields are skipped. If the file does not exist, nothing is read.
+	 *
+	 * @param file		file to read
+	 * @param width		number of fields expected in each record
+	 * @param consumer	function to process the fields of each record
+	 *
+	 * @throws IOException
+	 */
+	static void read(File file, int width, Consumer<String[]> consumer) throws IOException {
+		if (file.canRead()) {
+			try (LineReader inStream = new LineReader(file)) {
+				for (String line : inStream) {
+					String[] fields = line.split("\t");
+					if (fields.length == width)
+						consumer.accept(fields);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replace the contents of a state file.
+	 *
+	 * @param file		file to write
+	 * @param writer	function to write the new contents
+	 *
+	 * @throws IOException
+	 */
+	static void write(File file, Consumer<PrintWriter> writer) throws IOException {
+		Path target = file.getAbsoluteFile().toPath();
+		Path tempFile = Files.createTempFile(target.getParent(), file.getName(), ".tmp");
+		try {
+			try (PrintWriter outStream = new PrintWriter(Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8))) {
+				writer.accept(outStream);
+				// A print writer hides its errors, so we have to ask for them.
+				if (outStream.checkError())
+					throw new IOException("Error writing " + tempFile + ".");
+			}
+			Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tempFile);
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * This object holds the per-host limits shared by all the repos processed in a single command.
+ * It only enforces a limit on the number of concurrent remote operations for each host, so a
+ * parallel run does not overwhelm a single server, and carries the remote policy that governs
+ * timeouts, retries, and the per-host circuit breakers. Connections are not shared by the pool.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class TransportPool {
+
+	// FIELDS
+	/** maximum number of concurrent operations per host */
+	private int hostLimit;
+	/** map of host names to concurrency permits */
+	private Map<String, Semaphore> hostPermits;
+	/** policy for timeouts, retries, and failing hosts */
+	private RemotePolicy policy;
+	/** host key used for local remotes */
+	public static final String LOCAL_HOST = "(local)";
+
+	/**
+	 * Create a new transport pool with the default remote policy.
+	 *
+	 * @param hostLimit		maximum number of concurrent remote operations per host
+	 */
+	public TransportPool(int hostLimit) {
+		this(hostLimit, new RemotePolicy());
+	}
+
+	/**
+	 * Create a new transport pool.
+	 *
+	 * @param hostLimit		maximum number of concurrent remote operations per host
+	 * @param policy		policy for timeouts, retries, and failing hosts
+	 */
+	public TransportPool(int hostLimit, RemotePolicy policy) {
+		this.hostLimit = hostLimit;
+		this.policy = policy;
+		this.hostPermits = new ConcurrentHashMap<String, Semaphore>();
+	}
+
+	/**
+	 * Wait for permission to perform a remote operation on a host.
+	 *
+	 * @param host	host name, or NULL for a local remote
+	 */
+	public void acquire(String host) {
+		this.getPermits(host).acquireUninterruptibly();
+	}
+
+	/**
+	 * Indicate a remote operation on a host has completed.
+	 *
+	 * @param host	host name, or NULL for a local remote
+	 */
+	public void release(String host) {
+		this.getPermits(host).release();
+	}
+
+	/**
+	 * @return the permit semaphore for a host
+	 *
+	 * @param host	host name, or NULL for a local remote
+	 */
+	private Semaphore getPermits(String host) {
+		String key = (host == null ? LOCAL_HOST : host);
+		return this.hostPermits.computeIfAbsent(key, x -> new Semaphore(this.hostLimit, true));
+	}
+
+	/**
+	 * @return the maximum number of concurrent operations per host
+	 */
+	public int getHostLimit() {
+		return this.hostLimit;
+	}
+
+	/**
+	 * @return the policy for timeouts, retries, and failing hosts
+	 */
+	public RemotePolicy getPolicy() {
+		return this.policy;
+	}
+
+}
@@ -0,0 +1,167 @@
+/**
+ *
+ */
+package org.theseed.config;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jgit.api.Git;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * These tests run a daemon on a temporary code base and talk to it over its socket.
+ *
+ * @author Bruce Parrello
+ *
+ */
+class DaemonTests {
+
+	/** temporary working directory */
+	@TempDir
+	File workDir;
+
+	/**
+	 * Send a raw request to the daemon.
+	 *
+	 * @param socketFile	daemon socket
+	 * @param n				argument count to send
+	 * @param args			arguments to send
+	 *
+	 * @return the lines of the response
+	 *
+	 * @throws IOException
+	 */
+	private static List<String> send(File socketFile, int n, String... args) throws IOException {
+		List<String> retVal = new ArrayList<String>();
+		try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+			channel.connect(UnixDomainSocketAddress.of(socketFile.toPath()));
+			DataOutputStream outStream = new DataOutputStream(Channels.newOutputStream(channel));
+			outStream.writeInt(n);
+			for (String arg : args)
+				outStream.writeUTF(arg);
+			outStream.flush();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel),
+					StandardCharsets.UTF_8));
+			for (String line = reader.readLine(); line != null; line = reader.readLine())
+				retVal.add(line);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Send a command to the daemon.
+	 *
+	 * @param socketFile	daemon socket
+	 * @param args			command-line arguments to send
+	 *
+	 * @return the lines of the response
+	 *
+	 * @throws IOException
+	 */
+	private static List<String> send(File socketFile, String... args) throws IOException {
+		return send(socketFile, args.length, args);
+	}
+
+	/**
+	 * @return the exit code from a daemon response
+	 *
+	 * @param response	lines of the response
+	 */
+	private static int exitCode(List<String> response) {
+		String last = response.get(response.size() - 1);
+		assertThat(last, startsWith(DaemonProcessor.EXIT_PREFIX));
+		return Integer.parseInt(last.substring(DaemonProcessor.EXIT_PREFIX.length()));
+	}
+
+	/**
+	 * Start a daemon for a code base.
+	 *
+	 * @param baseDir		code base directory
+	 * @param socketFile	socket for the daemon
+	 *
+	 * @return the thread running the daemon
+	 *
+	 * @throws InterruptedException
+	 */
+	private static Thread startDaemon(File baseDir, File socketFile) throws InterruptedException {
+		DaemonProcessor daemon = new DaemonProcessor();
+		assertThat(daemon.parseCommand(new String[] { "--base", baseDir.getPath(), "--socket", socketFile.getPath() }),
+				equalTo(true));
+		Thread retVal = new Thread(daemon::run);
+		retVal.start();
+		for (int i = 0; i < 100 && ! socketFile.exists(); i++)
+			Thread.sleep(100);
+		assertThat(socketFile.exists(), equalTo(true));
+		return retVal;
+	}
+
+	@Test
+	void testProtocol() throws Exception {
+		File baseDir = new File(this.workDir, "cb");
+		File projDir = new File(baseDir, "proj");
+		try (Git git = Git.init().setDirectory(projDir).setInitialBranch("master").call()) {
+			git.commit().setMessage("start").setAuthor("test", "test@example.org")
+					.setCommitter("test", "test@example.org").setAllowEmpty(true).call();
+		}
+		File socketFile = new File(this.workDir, "test.sock");
+		Thread daemon = startDaemon(baseDir, socketFile);
+		try {
+			// Only the owner can use the socket.
+			assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(socketFile.toPath())),
+					equalTo("rw-------"));
+			// A good command ends with a zero exit code.
+			List<String> response = send(socketFile, "verify", "--base", baseDir.getPath());
+			assertThat(exitCode(response), equalTo(0));
+			assertThat(response, hasItem("Verify summary for 1 repos (0 failed):"));
+			// The daemon's pool settings override the command's.
+			response = send(socketFile, "verify", "--base", baseDir.getPath(), "--hostLimit", "2", "--stream");
+			assertThat(exitCode(response), equalTo(0));
+			assertThat(response, hasItem("Options ignored because the daemon's settings apply: --hostLimit, --stream."));
+			// Bad requests get an error, but the daemon keeps running.
+			response = send(socketFile, 0);
+			assertThat(response, contains("No command specified.", DaemonProcessor.EXIT_PREFIX + "1"));
+			response = send(socketFile, -1);
+			assertThat(response, contains("Invalid argument count -1.", DaemonProcessor.EXIT_PREFIX + "1"));
+			response = send(socketFile, Integer.MAX_VALUE);
+			assertThat(exitCode(response), equalTo(1));
+			response = send(socketFile, "daemon");
+			assertThat(response.get(0), containsString("cannot be run by the daemon"));
+			assertThat(exitCode(response), equalTo(1));
+			response = send(socketFile, "frobnicate");
+			assertThat(exitCode(response), equalTo(1));
+			response = send(socketFile, "verify", "--base", baseDir.getPath(), "--parallel", "0");
+			assertThat(response, hasItem("Invalid parameters for verify."));
+			assertThat(exitCode(response), equalTo(1));
+			assertThat(daemon.isAlive(), equalTo(true));
+			// Shut down the daemon.
+			response = send(socketFile, DaemonProcessor.SHUTDOWN);
+			assertThat(response, contains("Daemon shutting down.", DaemonProcessor.EXIT_PREFIX + "0"));
+			daemon.join(10000);
+			assertThat(daemon.isAlive(), equalTo(false));
+			assertThat(socketFile.exists(), equalTo(false));
+		} finally {
+			if (daemon.isAlive()) {
+				send(socketFile, DaemonProcessor.SHUTDOWN);
+				daemon.join(10000);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,81 @@
+/**
+ *
+ */
+package org.theseed.config;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * These tests run the maintenance command on a code base of local repos.
+ *
+ * @author Bruce Parrello
+ *
+ */
+class MaintainTests {
+
+	/** temporary working directory */
+	@TempDir
+	File workDir;
+
+	/**
+	 * Create a repo with a number of commits, each adding a new file.
+	 *
+	 * @param projDir	project directory
+	 * @param commits	number of commits to make
+	 *
+	 * @throws Exception
+	 */
+	private static void makeRepo(File projDir, int commits) throws Exception {
+		try (Git git = Git.init().setDirectory(projDir).setInitialBranch("master").call()) {
+			for (int i = 0; i < commits; i++) {
+				String name = "file" + i + ".txt";
+				try (PrintWriter writer = new PrintWriter(new File(projDir, name))) {
+					writer.println(projDir.getName() + " file " + i);
+				}
+				git.add().addFilepattern(name).call();
+				git.commit().setMessage("commit " + i).setAuthor("test", "test@example.org")
+						.setCommitter("test", "test@example.org").call();
+			}
+		}
+	}
+
+	@Test
+	void testMaintain() throws Exception {
+		File baseDir = new File(this.workDir, "cb");
+		// Each commit adds three loose objects: a blob, a tree, and a commit.
+		File busy = new File(baseDir, "busy");
+		makeRepo(busy, 10);
+		File quiet = new File(baseDir, "quiet");
+		makeRepo(quiet, 1);
+		MaintainProcessor processor = new MaintainProcessor();
+		StringWriter buffer = new StringWriter();
+		processor.setReportWriter(new PrintWriter(buffer));
+		assertThat(processor.parseCommand(new String[] { "--base", baseDir.getPath(), "--minLoose", "20",
+				"--threads", "2" }), equalTo(true));
+		processor.run();
+		List<String> report = Arrays.asList(buffer.toString().split("\\R"));
+		assertThat(report, hasItem("Maintenance summary for 2 repos (0 failed):"));
+		assertThat(report, hasItem(startsWith("   busy: COLLECTED ")));
+		assertThat(report, hasItem("   quiet: SKIPPED (3 loose, 0 packs)"));
+		// The collected repo is packed and has a commit graph, and its configuration is unchanged.
+		assertThat(new File(busy, ".git/objects/info/commit-graph").isFile(), equalTo(true));
+		assertThat(new File(quiet, ".git/objects/info/commit-graph").exists(), equalTo(false));
+		try (Git git = Git.open(busy)) {
+			assertThat(git.gc().getStatistics().get("numberOfLooseObjects"), equalTo(0L));
+			assertThat(git.getRepository().getConfig().getNames(ConfigConstants.CONFIG_PACK_SECTION), empty());
+		}
+	}
+
+}
@@ -0,0 +1,452 @@
+/**
+ *
+ */
+package org.theseed.config;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.text.StringEscapeUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RepositoryState;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.theseed.config.git.BaseGitProcessor;
+import org.theseed.config.git.PullState;
+
+/**
+ * These tests run the pull and status commands on a code base cloned from local upstream repos.
+ *
+ * @author Bruce Parrello
+ *
+ */
+class PullTests {
+
+	/** pattern for a field in a JSON metrics record */
+	private static final Pattern JSON_FIELD = Pattern.compile("\"(\\w+)\": (\"(?:[^\"\\\\]|\\\\.)*\"|-?\\d+|null)");
+
+	/** temporary working directory */
+	@TempDir
+	File workDir;
+
+	/**
+	 * Write a file in a repo and commit it.
+	 *
+	 * @param git		JGit API object for the repo
+	 * @param name		name of the file
+	 * @param content	new content of the file
+	 *
+	 * @throws GitAPIException
+	 * @throws IOException
+	 */
+	private static void commitFile(Git git, String name, String content) throws GitAPIException, IOException {
+		File file = new File(git.getRepository().getWorkTree(), name);
+		try (PrintWriter writer = new PrintWriter(file)) {
+			writer.println(content);
+		}
+		git.add().addFilepattern(name).call();
+		git.commit().setMessage("update " + name).setAuthor("test", "test@example.org")
+				.setCommitter("test", "test@example.org").call();
+	}
+
+	/**
+	 * Create an upstream repo containing a data file and a notes file.
+	 *
+	 * @param name		repo name
+	 *
+	 * @return the repo directory
+	 *
+	 * @throws GitAPIException
+	 * @throws IOException
+	 */
+	private File makeUpstream(String name) throws GitAPIException, IOException {
+		File retVal = new File(this.workDir, "up/" + name);
+		try (Git git = Git.init().setDirectory(retVal).setInitialBranch("master").call()) {
+			commitFile(git, "data.txt", name + " version 0");
+			commitFile(git, "notes.txt", "no notes");
+		}
+		return retVal;
+	}
+
+	/**
+	 * Clone an upstream repo into the code base.
+	 *
+	 * @param upstream	upstream repo directory
+	 *
+	 * @return the directory of the clone
+	 *
+	 * @throws GitAPIException
+	 */
+	private File cloneUpstream(File upstream) throws GitAPIException {
+		File retVal = new File(this.workDir, "cb/" + upstream.getName());
+		Git.cloneRepository().setURI(upstream.toURI().toString()).setDirectory(retVal).call().close();
+		return retVal;
+	}
+
+	/**
+	 * Run a git command and return its report.
+	 *
+	 * @param processor		command processor
+	 * @param args			command-line arguments, not including the code base
+	 *
+	 * @return the lines of the run summary
+	 */
+	private List<String> runCommand(BaseGitProcessor processor, String... args) {
+		String[] fullArgs = Arrays.copyOf(args, args.length + 2);
+		fullArgs[args.length] = "--base";
+		fullArgs[args.length + 1] = new File(this.workDir, "cb").getPath();
+		StringWriter buffer = new StringWriter();
+		processor.setReportWriter(new PrintWriter(buffer));
+		assertThat(processor.parseCommand(fullArgs), equalTo(true));
+		processor.run();
+		return Arrays.asList(buffer.toString().split("\\R"));
+	}
+
+	/**
+	 * @return the status reported for a repo in a run summary, or NULL if the repo is not in it
+	 *
+	 * @param report	lines of the run summary
+	 * @param name		name of the repo
+	 */
+	private static String statusOf(List<String> report, String name) {
+		String prefix = "   " + name + ": ";
+		return report.stream().filter(x -> x.startsWith(prefix)).map(x -> x.substring(prefix.length()))
+				.findFirst().orElse(null);
+	}
+
+	@Test
+	void testStashConflict() throws Exception {
+		File up = makeUpstream("conflict");
+		File local = cloneUpstream(up);
+		// Make a conflicting change on each side, and leave an uncommitted change to another file.
+		try (Git git = Git.open(up)) {
+			commitFile(git, "data.txt", "upstream change");
+		}
+		try (Git git = Git.open(local)) {
+			commitFile(git, "data.txt", "local change");
+		}
+		try (PrintWriter writer = new PrintWriter(new File(local, "notes.txt"))) {
+			writer.println("work in progress");
+		}
+		List<String> report = runCommand(new PullProcessor(), "--dirty", "STASH", "origin");
+		assertThat(report, hasItem("Pull summary for 1 repos (0 failed):"));
+		List<String> stashLines = report.stream().filter(x -> x.endsWith("(changes left in stash)")).toList();
+		assertThat(stashLines.size(), equalTo(1));
+		assertThat(stashLines.get(0), startsWith("   conflict: "));
+		// The merge is left for the user to resolve, and the uncommitted change is in the stash.
+		try (Git git = Git.open(local)) {
+			assertThat(git.getRepository().getRepositoryState(), equalTo(RepositoryState.MERGING));
+			assertThat(git.stashList().call().size(), equalTo(1));
+		}
+	}
+
+	@Test
+	void testPullState() throws Exception {
+		SortedMap<String, ObjectId> heads = new TreeMap<String, ObjectId>();
+		heads.put("master", ObjectId.fromString("1111111111111111111111111111111111111111"));
+		heads.put("dev", ObjectId.fromString("2222222222222222222222222222222222222222"));
+		String fingerprint = PullState.fingerprint(heads);
+		assertThat(PullState.fingerprint(new TreeMap<String, ObjectId>(heads)), equalTo(fingerprint));
+		// Moving, adding, or removing a head changes the fingerprint.
+		heads.put("dev", ObjectId.fromString("3333333333333333333333333333333333333333"));
+		String moved = PullState.fingerprint(heads);
+		assertThat(moved, not(equalTo(fingerprint)));
+		heads.put("topic", ObjectId.fromString("3333333333333333333333333333333333333333"));
+		assertThat(PullState.fingerprint(heads), not(equalTo(moved)));
+		heads.remove("topic");
+		assertThat(PullState.fingerprint(heads), equalTo(moved));
+		// An unknown repo is always changed. A recorded one is changed only if the fingerprint differs.
+		File stateFile = new File(this.workDir, PullState.STATE_NAME);
+		File projDir = new File(this.workDir, "cb/alpha");
+		PullState state = PullState.load(stateFile);
+		assertThat(state.isChanged(projDir, "origin", fingerprint), equalTo(true));
+		state.update(projDir, "origin", fingerprint);
+		assertThat(state.isChanged(projDir, "origin", fingerprint), equalTo(false));
+		assertThat(state.isChanged(projDir, "origin", moved), equalTo(true));
+		assertThat(state.isChanged(projDir, "upstream", fingerprint), equalTo(true));
+		// The state survives a save and reload.
+		state.save();
+		state = PullState.load(stateFile);
+		assertThat(state.isChanged(projDir, "origin", fingerprint), equalTo(false));
+		assertThat(state.isChanged(projDir, "origin", moved), equalTo(true));
+	}
+
+	@Test
+	void testChangedOnly() throws Exception {
+		File upAlpha = makeUpstream("alpha");
+		File upBeta = makeUpstream("beta");
+		cloneUpstream(upAlpha);
+		File beta = cloneUpstream(upBeta);
+		// The first run has no state, so everything is pulled.
+		List<String> report = runCommand(new PullProcessor(), "--changed", "origin");
+		assertThat(statusOf(report, "alpha"), not(equalTo("UNCHANGED")));
+		assertThat(statusOf(report, "beta"), not(equalTo("UNCHANGED")));
+		report = runCommand(new PullProcessor(), "--changed", "origin");
+		assertThat(statusOf(report, "alpha"), equalTo("UNCHANGED"));
+		assertThat(statusOf(report, "beta"), equalTo("UNCHANGED"));
+		// Only the repo whose upstream moved is pulled.
+		try (Git git = Git.open(upAlpha)) {
+			commitFile(git, "data.txt", "alpha version 1");
+		}
+		report = runCommand(new PullProcessor(), "--changed", "origin");
+		assertThat(statusOf(report, "alpha"), equalTo("Fast-forward"));
+		assertThat(statusOf(report, "beta"), equalTo("UNCHANGED"));
+		// A skipped pull does not record the new heads, so the repo is tried again next time.
+		try (Git git = Git.open(upBeta)) {
+			commitFile(git, "data.txt", "upstream change");
+		}
+		try (PrintWriter writer = new PrintWriter(new File(beta, "data.txt"))) {
+			writer.println("uncommitted change");
+		}
+		report = runCommand(new PullProcessor(), "--changed", "--dirty", "SKIP", "origin");
+		assertThat(statusOf(report, "beta"), equalTo("SKIPPED (local changes)"));
+		report = runCommand(new PullProcessor(), "--changed", "--dirty", "SKIP", "origin");
+		assertThat(statusOf(report, "beta"), equalTo("SKIPPED (local changes)"));
+		// So does a pull that fails. Here the local change is committed and conflicts with upstream.
+		try (Git git = Git.open(beta)) {
+			commitFile(git, "data.txt", "local change");
+		}
+		report = runCommand(new PullProcessor(), "--changed", "origin");
+		assertThat(statusOf(report, "beta"), equalTo("Conflicting"));
+		report = runCommand(new PullProcessor(), "--changed", "origin");
+		assertThat(statusOf(report, "beta"), not(equalTo("UNCHANGED")));
+		assertThat(statusOf(report, "alpha"), equalTo("UNCHANGED"));
+	}
+
+	@Test
+	void testParallel() throws Exception {
+		File upSub = makeUpstream("sub");
+		File upAlpha = makeUpstream("alpha");
+		try (Git git = Git.open(upAlpha)) {
+			git.submoduleAdd().setPath("sub").setURI(upSub.toURI().toString()).call().close();
+			git.commit().setMessage("add submodule").setAuthor("test", "test@example.org")
+					.setCommitter("test", "test@example.org").call();
+		}
+		List<File> upstreams = new ArrayList<File>(List.of(upSub, upAlpha));
+		for (String name : List.of("beta", "gamma", "delta", "epsilon")) {
+			File upstream = makeUpstream(name);
+			cloneUpstream(upstream);
+			upstreams.add(upstream);
+		}
+		Git.cloneRepository().setURI(upAlpha.toURI().toString()).setDirectory(new File(this.workDir, "cb/alpha"))
+				.setCloneSubmodules(true).call().close();
+		// Pull serially, and then move every upstream and pull in parallel. The results must be
+		// reported in the same order.
+		List<String> serial = runCommand(new PullProcessor(), "origin");
+		for (File upstream : upstreams) {
+			try (Git git = Git.open(upstream)) {
+				commitFile(git, "notes.txt", "new notes");
+			}
+		}
+		// Remove one upstream, so that its pull fails.
+		FileUtils.deleteDirectory(new File(this.workDir, "up/gamma"));
+		List<String> parallel = runCommand(new PullProcessor(), "--parallel", "4", "origin");
+		assertThat(repoNames(parallel), equalTo(repoNames(serial)));
+		List<String> names = repoNames(serial);
+		assertThat(names, hasSize(6));
+		assertThat(names.indexOf("sub"), equalTo(names.indexOf("alpha") + 1));
+		// The failed pull does not stop the others.
+		assertThat(parallel, hasItem("Pull summary for 6 repos (1 failed):"));
+		assertThat(statusOf(parallel, "gamma"), startsWith("FAILED"));
+		for (String name : List.of("alpha", "beta", "delta", "epsilon"))
+			assertThat(statusOf(parallel, name), equalTo("Fast-forward"));
+		assertThat(FileUtils.readFileToString(new File(this.workDir, "cb/delta/notes.txt"), StandardCharsets.UTF_8),
+				equalTo("new notes\n"));
+	}
+
+	/**
+	 * @return the names of the repos in a run summary, in order
+	 *
+	 * @param report	lines of the run summary
+	 */
+	private static List<String> repoNames(List<String> report) {
+		return report.stream().filter(x -> x.startsWith("   ")).map(x -> StringUtils.substringBetween(x, "   ", ":"))
+				.toList();
+	}
+
+	/**
+	 * Read a JSON metrics file. Each record is on its own line, and every value is returned as
+	 * a string, with NULL for a JSON null.
+	 *
+	 * @param file		metrics file to read
+	 *
+	 * @return a map from repo name to the fields of the repo's record
+	 *
+	 * @throws IOException
+	 */
+	private static Map<String, Map<String, String>> readJsonMetrics(File file) throws IOException {
+		Map<String, Map<String, String>> retVal = new LinkedHashMap<String, Map<String, String>>();
+		List<String> lines = FileUtils.readLines(file, StandardCharsets.UTF_8);
+		assertThat(lines.get(0), equalTo("["));
+		assertThat(lines.get(lines.size() - 1), equalTo("]"));
+		for (String line : lines.subList(1, lines.size() - 1)) {
+			Map<String, String> record = new HashMap<String, String>();
+			Matcher m = JSON_FIELD.matcher(line);
+			while (m.find()) {
+				String value = m.group(2);
+				if (value.equals("null"))
+					value = null;
+				else if (value.startsWith("\""))
+					value = StringEscapeUtils.unescapeJson(value.substring(1, value.length() - 1));
+				record.put(m.group(1), value);
+			}
+			retVal.put(record.get("repo"), record);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Read a CSV metrics file.
+	 *
+	 * @param file		metrics file to read
+	 *
+	 * @return a map from repo name to the fields of the repo's record
+	 *
+	 * @throws IOException
+	 */
+	private static Map<String, Map<String, String>> readCsvMetrics(File file) throws IOException {
+		Map<String, Map<String, String>> retVal = new LinkedHashMap<String, Map<String, String>>();
+		List<String> lines = FileUtils.readLines(file, StandardCharsets.UTF_8);
+		String[] headers = lines.get(0).split(",");
+		for (String line : lines.subList(1, lines.size())) {
+			// Split on the commas outside of quotes.
+			List<String> fields = new ArrayList<String>();
+			boolean quoted = false;
+			int start = 0;
+			for (int i = 0; i < line.length(); i++) {
+				char c = line.charAt(i);
+				if (c == '"')
+					quoted = ! quoted;
+				else if (c == ',' && ! quoted) {
+					fields.add(StringEscapeUtils.unescapeCsv(line.substring(start, i)));
+					start = i + 1;
+				}
+			}
+			fields.add(StringEscapeUtils.unescapeCsv(line.substring(start)));
+			assertThat(line, fields.size(), equalTo(headers.length));
+			Map<String, String> record = new HashMap<String, String>();
+			for (int i = 0; i < headers.length; i++)
+				record.put(headers[i], fields.get(i));
+			retVal.put(record.get("repo"), record);
+		}
+		return retVal;
+	}
+
+	@Test
+	void testMetrics() throws Exception {
+		final String oddName = "odd, \"quoted\" name";
+		File upBig = makeUpstream("big");
+		File big = cloneUpstream(upBig);
+		cloneUpstream(makeUpstream(oddName));
+		cloneUpstream(makeUpstream("gone"));
+		FileUtils.deleteDirectory(new File(this.workDir, "up/gone"));
+		Random rand = new Random(42);
+		for (String type : List.of("json", "csv")) {
+			// Commit a large file that will not compress, so we know how much the pack store must grow.
+			byte[] buffer = new byte[256 * 1024];
+			rand.nextBytes(buffer);
+			try (Git git = Git.open(upBig)) {
+				FileUtils.writeByteArrayToFile(new File(upBig, "big.dat"), buffer);
+				git.add().addFilepattern("big.dat").call();
+				git.commit().setMessage("add big data").setAuthor("test", "test@example.org")
+						.setCommitter("test", "test@example.org").call();
+			}
+			File metricsFile = new File(this.workDir, "metrics." + type);
+			List<String> report = runCommand(new PullProcessor(), "--metrics", metricsFile.getPath(), "origin");
+			Map<String, Map<String, String>> metrics = (type.equals("json") ? readJsonMetrics(metricsFile)
+					: readCsvMetrics(metricsFile));
+			assertThat(metrics.keySet(), containsInAnyOrder("big", "gone", oddName));
+			for (Map.Entry<String, Map<String, String>> entry : metrics.entrySet()) {
+				String name = entry.getKey();
+				Map<String, String> record = entry.getValue();
+				assertThat(type + " " + name, record.get("path"), equalTo(new File(this.workDir, "cb/" + name).getPath()));
+				assertThat(type + " " + name, record.get("status"), equalTo(statusOf(report, name).split(" \\(")[0]));
+				assertThat(type + " " + name, Long.parseLong(record.get("millis")), greaterThanOrEqualTo(0L));
+			}
+			Map<String, String> record = metrics.get("big");
+			assertThat(type, record.get("status"), equalTo("Fast-forward"));
+			assertThat(type, Long.parseLong(record.get("bytes")), greaterThan((long) buffer.length));
+			assertThat(type, Integer.parseInt(record.get("objects")), greaterThanOrEqualTo(3));
+			assertThat(type, record.get("error"), emptyOrNullString());
+			assertThat(FileUtils.readFileToByteArray(new File(big, "big.dat")), equalTo(buffer));
+			// Nothing is fetched for a repo that is already current.
+			record = metrics.get(oddName);
+			assertThat(type, Long.parseLong(record.get("bytes")), equalTo(0L));
+			assertThat(type, Integer.parseInt(record.get("objects")), equalTo(0));
+			assertThat(type, record.get("error"), emptyOrNullString());
+			// The failed repo reports its error.
+			record = metrics.get("gone");
+			assertThat(type, record.get("status"), equalTo("FAILED"));
+			assertThat(type, record.get("error"), not(emptyOrNullString()));
+			assertThat(type, statusOf(report, "gone"), containsString(record.get("error")));
+		}
+	}
+
+	@Test
+	void testStatus() throws Exception {
+		File upAlpha = makeUpstream("alpha");
+		File upBeta = makeUpstream("beta");
+		File upGamma = makeUpstream("gamma");
+		File alpha = cloneUpstream(upAlpha);
+		File beta = cloneUpstream(upBeta);
+		cloneUpstream(upGamma);
+		cloneUpstream(makeUpstream("delta"));
+		// Alpha is behind on master, beta is ahead of its upstream, and gamma has a new remote branch.
+		try (Git git = Git.open(upAlpha)) {
+			commitFile(git, "data.txt", "alpha version 1");
+		}
+		try (Git git = Git.open(beta)) {
+			commitFile(git, "notes.txt", "local notes");
+		}
+		try (Git git = Git.open(upGamma)) {
+			git.branchCreate().setName("dev").call();
+		}
+		ObjectId tracking;
+		try (Git git = Git.open(alpha)) {
+			tracking = git.getRepository().resolve("refs/remotes/origin/master");
+		}
+		List<String> report = runCommand(new StatusProcessor(), "origin");
+		assertThat(report, hasItem("Status summary for 4 repos (0 failed):"));
+		assertThat(statusOf(report, "alpha"), equalTo("BEHIND (master)"));
+		assertThat(statusOf(report, "beta"), equalTo("CURRENT"));
+		assertThat(statusOf(report, "gamma"), equalTo("BEHIND (dev)"));
+		assertThat(statusOf(report, "delta"), equalTo("CURRENT"));
+		// Nothing was fetched.
+		try (Git git = Git.open(alpha)) {
+			assertThat(git.getRepository().resolve("refs/remotes/origin/master"), equalTo(tracking));
+		}
+		// With --apply, only the repos that are behind are pulled, and afterward all are current.
+		report = runCommand(new StatusProcessor(), "--apply", "origin");
+		assertThat(statusOf(report, "alpha"), equalTo("PULLED Fast-forward"));
+		assertThat(statusOf(report, "beta"), equalTo("CURRENT"));
+		assertThat(statusOf(report, "gamma"), startsWith("PULLED "));
+		assertThat(statusOf(report, "delta"), equalTo("CURRENT"));
+		assertThat(FileUtils.readFileToString(new File(alpha, "data.txt"), StandardCharsets.UTF_8),
+				equalTo("alpha version 1\n"));
+		report = runCommand(new StatusProcessor(), "--parallel", "2", "origin");
+		for (String name : List.of("alpha", "beta", "gamma", "delta"))
+			assertThat(statusOf(report, name), equalTo("CURRENT"));
+	}
+
+}
@@ -0,0 +1,150 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.theseed.config.CloneProcessor;
+
+/**
+ * These tests clone repos from local "file:" remotes built in a temporary directory.
+ *
+ * @author Bruce Parrello
+ *
+ */
+class CloneTests {
+
+	/** temporary working directory */
+	@TempDir
+	File workDir;
+
+	/**
+	 * Create an upstream repo with a few commits.
+	 *
+	 * @param name		repo name
+	 * @param commits	number of commits to make
+	 *
+	 * @return the repo directory
+	 *
+	 * @throws GitAPIException
+	 * @throws IOException
+	 */
+	private File makeUpstream(String name, int commits) throws GitAPIException, IOException {
+		File retVal = new File(this.workDir, "up/" + name);
+		try (Git git = Git.init().setDirectory(retVal).setInitialBranch("master").call()) {
+			for (int i = 0; i < commits; i++) {
+				try (PrintWriter writer = new PrintWriter(new File(retVal, "data.txt"))) {
+					writer.println(name + " version " + i);
+				}
+				git.add().addFilepattern("data.txt").call();
+				git.commit().setMessage("commit " + i).setAuthor("test", "test@example.org")
+						.setCommitter("test", "test@example.org").call();
+			}
+		}
+		return retVal;
+	}
+
+	@Test
+	void testClone() throws Exception {
+		File sub = makeUpstream("sub", 2);
+		File top = makeUpstream("top", 3);
+		try (Git git = Git.open(top)) {
+			git.submoduleAdd().setPath("sub").setURI(sub.toURI().toString()).call().close();
+			git.commit().setMessage("add submodule").setAuthor("test", "test@example.org")
+					.setCommitter("test", "test@example.org").call();
+		}
+		File codeBase = new File(this.workDir, "cb");
+		// Clone the full history.
+		File fullDir = new File(codeBase, "full");
+		GitRepo.cloneRepo(top.toURI().toString(), fullDir, "origin", null, 0, false, NullProgressMonitor.INSTANCE);
+		try (GitRepo repo = new GitRepo(fullDir)) {
+			assertThat(repo.initSubmodules("origin", NullProgressMonitor.INSTANCE), equalTo(1));
+		}
+		assertThat(new File(fullDir, "sub/data.txt").canRead(), equalTo(true));
+		try (Git git = Git.open(fullDir)) {
+			int count = 0;
+			for (@SuppressWarnings("unused") var commit : git.log().call())
+				count++;
+			assertThat(count, equalTo(4));
+		}
+		// Clone a single branch with a depth of 1.
+		File shallowDir = new File(codeBase, "shallow");
+		GitRepo.cloneRepo(top.toURI().toString(), shallowDir, "origin", "master", 1, true, NullProgressMonitor.INSTANCE);
+		assertThat(new File(shallowDir, ".git/shallow").canRead(), equalTo(true));
+		try (Git git = Git.open(shallowDir)) {
+			int count = 0;
+			for (@SuppressWarnings("unused") var commit : git.log().call())
+				count++;
+			assertThat(count, equalTo(1));
+		}
+		// The new projects should be visible in the code base. The shallow clone's submodule
+		// directory exists even though it was not checked out.
+		CodeBase cb = new CodeBase(codeBase);
+		assertThat(cb.projects().map(x -> x.getName()).toList(), containsInAnyOrder("full", "sub", "shallow", "sub"));
+	}
+
+	@Test
+	void testCloneRerun() throws Exception {
+		File sub = makeUpstream("sub", 1);
+		File top = makeUpstream("top", 1);
+		try (Git git = Git.open(top)) {
+			git.submoduleAdd().setPath("sub").setURI(sub.toURI().toString()).call().close();
+			git.commit().setMessage("add submodule").setAuthor("test", "test@example.org")
+					.setCommitter("test", "test@example.org").call();
+		}
+		File codeBase = new File(this.workDir, "cb");
+		codeBase.mkdirs();
+		File manifest = new File(this.workDir, "manifest.tbl");
+		try (PrintWriter writer = new PrintWriter(manifest)) {
+			writer.println("top\t" + top.toURI());
+		}
+		// Move the submodule's upstream away, so the clone succeeds but the submodule setup fails.
+		File hidden = new File(this.workDir, "hidden");
+		FileUtils.moveDirectory(sub, hidden);
+		List<String> report = runClone(codeBase, manifest);
+		assertThat(report, hasItem("Clone summary for 1 repos (1 failed):"));
+		File projDir = new File(codeBase, "top");
+		assertThat(projDir.exists(), equalTo(false));
+		// Once the submodule is reachable, a rerun sets up the whole project.
+		FileUtils.moveDirectory(hidden, sub);
+		report = runClone(codeBase, manifest);
+		assertThat(report, hasItem("   top: CLONED (1 submodules)"));
+		assertThat(new File(projDir, "sub/data.txt").canRead(), equalTo(true));
+		report = runClone(codeBase, manifest);
+		assertThat(report, hasItem("   top: EXISTS"));
+	}
+
+	/**
+	 * Run the clone command on a code base.
+	 *
+	 * @param codeBase	code base directory
+	 * @param manifest	manifest file
+	 *
+	 * @return the lines of the run summary
+	 */
+	private static List<String> runClone(File codeBase, File manifest) {
+		CloneProcessor processor = new CloneProcessor();
+		StringWriter buffer = new StringWriter();
+		processor.setReportWriter(new PrintWriter(buffer));
+		assertThat(processor.parseCommand(new String[] { "--base", codeBase.getPath(), manifest.getPath() }),
+				equalTo(true));
+		processor.run();
+		return Arrays.asList(buffer.toString().split("\\R"));
+	}
+
+}
@@ -0,0 +1,313 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.theseed.basic.ParseFailureException;
+
+/**
+ * These tests use a synthetic code base built in a temporary directory. The projects
+ * are not real repos: each one is a directory with an empty ".git" subdirectory, and
+ * submodules are declared by writing a ".gitmodules" file.
+ *
+ * @author Bruce Parrello
+ *
+ */
+class CodeBaseTests {
+
+	/** temporary code base directory */
+	@TempDir
+	File baseDir;
+
+	/**
+	 * Create a fake project.
+	 *
+	 * @param parent	parent directory
+	 * @param name		project name
+	 * @param subs		names of submodules to declare
+	 *
+	 * @return the project directory
+	 *
+	 * @throws IOException
+	 */
+	protected static File makeProject(File parent, String name, String... subs) throws IOException {
+		File retVal = new File(parent, name);
+		new File(retVal, ".git").mkdirs();
+		if (subs.length > 0)
+			writeModules(retVal, subs);
+		return retVal;
+	}
+
+	/**
+	 * Write a ".gitmodules" file declaring the specified submodules.
+	 *
+	 * @param projDir	project directory
+	 * @param subs		names of submodules to declare
+	 *
+	 * @throws IOException
+	 */
+	protected static void writeModules(File projDir, String... subs) throws IOException {
+		File moduleFile = new File(projDir, ".gitmodules");
+		try (PrintWriter writer = new PrintWriter(moduleFile)) {
+			for (String sub : subs) {
+				writer.println("[submodule \"" + sub + "\"]");
+				writer.println("\tpath = " + sub);
+				writer.println("\turl = https://example.org/" + sub + ".git");
+			}
+		}
+	}
+
+	/**
+	 * @return a list of the project names in a code base, in iteration order
+	 *
+	 * @param codeBase	code base to traverse
+	 */
+	protected static List<String> traverse(CodeBase codeBase) {
+		List<String> retVal = new ArrayList<String>();
+		Iterator<File> iter = codeBase.iterator();
+		while (iter.hasNext())
+			retVal.add(iter.next().getName());
+		return retVal;
+	}
+
+	@Test
+	void testIndex() throws IOException {
+		makeProject(this.baseDir, "alpha");
+		File beta = makeProject(this.baseDir, "beta", "x", "y");
+		makeProject(beta, "x");
+		makeProject(beta, "y");
+		CodeBase scanned = new CodeBase(this.baseDir);
+		List<String> expected = traverse(scanned);
+		assertThat(expected.size(), equalTo(4));
+		CodeBase indexed = new CodeBase(this.baseDir);
+		indexed.loadIndex(false);
+		File indexFile = indexed.getStateFile(CodeBaseIndex.INDEX_NAME);
+		assertThat(indexFile.canRead(), equalTo(true));
+		assertThat(indexed.getIndex().size(), equalTo(4));
+		assertThat(traverse(indexed), equalTo(expected));
+		assertThat(indexed.getIndex().getGitDir(new File(beta, "x")), equalTo(new File(new File(beta, "x"), ".git")));
+		// Reload from the saved file and verify we get the same result.
+		indexed = new CodeBase(this.baseDir);
+		indexed.loadIndex(false);
+		assertThat(traverse(indexed), equalTo(expected));
+		// Add a submodule to beta. Only the new module file changes.
+		makeProject(beta, "z");
+		writeModules(beta, "x", "y", "z");
+		File moduleFile = new File(beta, ".gitmodules");
+		moduleFile.setLastModified(moduleFile.lastModified() + 5000);
+		indexed = new CodeBase(this.baseDir);
+		indexed.loadIndex(false);
+		assertThat(indexed.getIndex().size(), equalTo(5));
+		assertThat(traverse(indexed), equalTo(traverse(new CodeBase(this.baseDir))));
+		// Add a new top-level project.
+		makeProject(this.baseDir, "gamma");
+		this.baseDir.setLastModified(this.baseDir.lastModified() + 5000);
+		indexed = new CodeBase(this.baseDir);
+		indexed.loadIndex(false);
+		assertThat(indexed.getIndex().size(), equalTo(6));
+		assertThat(traverse(indexed), hasItem("gamma"));
+		// A forced rebuild should produce the same result.
+		indexed = new CodeBase(this.baseDir);
+		indexed.loadIndex(true);
+		assertThat(indexed.getIndex().size(), equalTo(6));
+		assertThat(traverse(indexed), equalTo(traverse(new CodeBase(this.baseDir))));
+	}
+
+	@Test
+	void testFindProject() throws Exception {
+		File alpha = makeProject(this.baseDir, "alpha", "common", "solo");
+		makeProject(alpha, "common");
+		File solo = makeProject(alpha, "solo");
+		File beta = makeProject(this.baseDir, "beta", "common");
+		makeProject(beta, "common");
+		CodeBase codeBase = new CodeBase(this.baseDir);
+		assertThat(codeBase.findProject("solo"), equalTo(solo));
+		assertThat(codeBase.findProject("beta"), equalTo(beta));
+		ParseFailureException e = assertThrows(ParseFailureException.class, () -> codeBase.findProject("common"));
+		assertThat(e.getMessage(), containsString("ambiguous"));
+		assertThrows(ParseFailureException.class, () -> codeBase.findProject("missing"));
+	}
+
+	@Test
+	void testDiscover() throws IOException {
+		File alpha = makeProject(this.baseDir, "alpha", "a1", "a2");
+		File a1 = makeProject(alpha, "a1", "a11");
+		makeProject(a1, "a11");
+		makeProject(alpha, "a2");
+		makeProject(this.baseDir, "beta");
+		File gamma = makeProject(this.baseDir, "gamma", "g1");
+		makeProject(gamma, "g1");
+		List<String> expected = traverse(new CodeBase(this.baseDir));
+		assertThat(expected.size(), equalTo(7));
+		CodeBase discovered = new CodeBase(this.baseDir);
+		discovered.discover(4);
+		assertThat(traverse(discovered), equalTo(expected));
+		// The discovered tree is used even if the disk changes.
+		new File(alpha, ".gitmodules").delete();
+		assertThat(traverse(discovered), equalTo(expected));
+		// Discovery with an index must produce the same order.
+		discovered = new CodeBase(this.baseDir);
+		discovered.loadIndex(true);
+		expected = traverse(discovered);
+		discovered.discover(2);
+		assertThat(traverse(discovered), equalTo(expected));
+	}
+
+	@Test
+	void testProjects() throws IOException {
+		File alpha = makeProject(this.baseDir, "alpha", "a1", "a2");
+		File a1 = makeProject(alpha, "a1", "a11");
+		makeProject(a1, "a11");
+		makeProject(alpha, "a2");
+		for (int i = 0; i < 20; i++)
+			makeProject(this.baseDir, "p" + i);
+		CodeBase codeBase = new CodeBase(this.baseDir);
+		List<String> expected = traverse(codeBase);
+		assertThat(codeBase.projects().map(x -> x.getName()).toList(), equalTo(expected));
+		assertThat(codeBase.projects().parallel().map(x -> x.getName()).toList(), equalTo(expected));
+		ProjectInfo a11 = codeBase.projects().filter(x -> x.getName().equals("a11")).findFirst().get();
+		assertThat(a11.getDepth(), equalTo(2));
+		assertThat(a11.isSubmodule(), equalTo(true));
+		assertThat(a11.getParent().getName(), equalTo("a1"));
+		assertThat(a11.getParent().getParent().isSubmodule(), equalTo(false));
+		assertThat(a11.getGitDir(), equalTo(new File(new File(a1, "a11"), ".git")));
+	}
+
+	@Test
+	void testModuleCache() throws IOException {
+		File alpha = makeProject(this.baseDir, "alpha", "a1");
+		makeProject(alpha, "a1");
+		makeProject(alpha, "a2");
+		CodeBase codeBase = new CodeBase(this.baseDir);
+		assertThat(traverse(codeBase), contains("alpha", "a1"));
+		// Without a watcher, a change to the module file is detected.
+		writeModules(alpha, "a1", "a2");
+		assertThat(traverse(codeBase), contains("alpha", "a1", "a2"));
+		// With a watcher, the cache is trusted until the project is invalidated.
+		codeBase.setWatched(true);
+		writeModules(alpha, "a2");
+		assertThat(traverse(codeBase), contains("alpha", "a1", "a2"));
+		codeBase.invalidate(alpha);
+		assertThat(traverse(codeBase), contains("alpha", "a2"));
+	}
+
+	@Test
+	void testStateFile() throws Exception {
+		File stateFile = new File(this.baseDir, "test.tsv");
+		StateFile.write(stateFile, x -> x.println("a\t1"));
+		// Several processes saving the same file at once must each write a complete file.
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			final String value = Integer.toString(i);
+			threads.add(new Thread(() -> {
+				try {
+					StateFile.write(stateFile, x -> {
+						for (int j = 0; j < 1000; j++)
+							x.println("k" + j + "\t" + value);
+					});
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}));
+		}
+		threads.forEach(x -> x.start());
+		for (Thread thread : threads)
+			thread.join();
+		Set<String> values = new HashSet<String>();
+		List<String> keys = new ArrayList<String>();
+		StateFile.read(stateFile, 2, x -> { keys.add(x[0]); values.add(x[1]); });
+		assertThat(keys.size(), equalTo(1000));
+		assertThat(values.size(), equalTo(1));
+		// A failed save leaves the old file alone.
+		assertThrows(IllegalStateException.class, () -> StateFile.write(stateFile, x -> {
+			x.println("bad\t0");
+			throw new IllegalStateException("write failed");
+		}));
+		keys.clear();
+		StateFile.read(stateFile, 2, x -> keys.add(x[0]));
+		assertThat(keys.size(), equalTo(1000));
+		// No temporary files are left behind.
+		assertThat(Arrays.asList(this.baseDir.list()), contains("test.tsv"));
+		// A missing file has no records.
+		StateFile.read(new File(this.baseDir, "missing.tsv"), 2, x -> keys.add(x[0]));
+		assertThat(keys.size(), equalTo(1000));
+	}
+
+	/**
+	 * Poll a watcher until the code base contains the expected projects. File system events are
+	 * delivered asynchronously, and a single change can arrive in several batches, so we may have
+	 * to poll several times.
+	 *
+	 * @param watcher	watcher to poll
+	 * @param codeBase	code base being watched
+	 * @param expected	names of the projects expected in the code base
+	 *
+	 * @return TRUE if the watcher reported at least one change
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static boolean waitForChange(CodeBaseWatcher watcher, CodeBase codeBase, String... expected)
+			throws IOException, InterruptedException {
+		Set<String> wanted = Set.of(expected);
+		boolean retVal = watcher.poll();
+		for (int i = 0; i < 100 && ! (retVal && new HashSet<String>(traverse(codeBase)).equals(wanted)); i++) {
+			Thread.sleep(100);
+			retVal |= watcher.poll();
+		}
+		return retVal;
+	}
+
+	@Test
+	void testWatcher() throws Exception {
+		File alpha = makeProject(this.baseDir, "alpha", "a1");
+		makeProject(alpha, "a1");
+		makeProject(alpha, "a2");
+		File beta = makeProject(this.baseDir, "beta");
+		File dataFile = new File(new File(alpha, "a1"), "data.txt");
+		FileUtils.writeStringToFile(dataFile, "start\n", StandardCharsets.UTF_8);
+		CodeBase codeBase = new CodeBase(this.baseDir);
+		codeBase.loadIndex(false);
+		try (CodeBaseWatcher watcher = new CodeBaseWatcher(codeBase)) {
+			assertThat(traverse(codeBase), containsInAnyOrder("alpha", "a1", "beta"));
+			assertThat(watcher.poll(), equalTo(false));
+			// A new submodule is picked up once the watcher reports the module file change.
+			writeModules(alpha, "a1", "a2");
+			assertThat(waitForChange(watcher, codeBase, "alpha", "a1", "a2", "beta"), equalTo(true));
+			assertThat(traverse(codeBase), containsInAnyOrder("alpha", "a1", "a2", "beta"));
+			// So is a new top-level project.
+			makeProject(this.baseDir, "gamma");
+			assertThat(waitForChange(watcher, codeBase, "alpha", "a1", "a2", "beta", "gamma"), equalTo(true));
+			assertThat(traverse(codeBase), containsInAnyOrder("alpha", "a1", "a2", "beta", "gamma"));
+			// A deleted project disappears.
+			FileUtils.deleteDirectory(beta);
+			assertThat(waitForChange(watcher, codeBase, "alpha", "a1", "a2", "gamma"), equalTo(true));
+			assertThat(traverse(codeBase), containsInAnyOrder("alpha", "a1", "a2", "gamma"));
+			// Changes to ordinary files are not reported.
+			Thread.sleep(500);
+			watcher.poll();
+			FileUtils.writeStringToFile(dataFile, "more\n", StandardCharsets.UTF_8, true);
+			Thread.sleep(500);
+			assertThat(watcher.poll(), equalTo(false));
+		}
+	}
+
+}
@@ -0,0 +1,497 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.MergeResult.MergeStatus;
+import org.eclipse.jgit.api.PullResult;
+import org.eclipse.jgit.api.ResetCommand.ResetType;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.theseed.config.VerifyProcessor;
+
+/**
+ * These tests operate on real repos built in a temporary directory. Remotes are accessed
+ * through local "file:" URLs.
+ *
+ * @author Bruce Parrello
+ *
+ */
+class LocalRepoTests {
+
+	/** temporary working directory */
+	@TempDir
+	File workDir;
+
+	/**
+	 * Create an upstream repo with a few commits.
+	 *
+	 * @param name		repo name
+	 * @param commits	number of commits to make
+	 *
+	 * @return the repo directory
+	 *
+	 * @throws GitAPIException
+	 * @throws IOException
+	 */
+	private File makeUpstream(String name, int commits) throws GitAPIException, IOException {
+		File retVal = new File(this.workDir, "up/" + name);
+		try (Git git = Git.init().setDirectory(retVal).setInitialBranch("master").call()) {
+			for (int i = 0; i < commits; i++) {
+				try (PrintWriter writer = new PrintWriter(new File(retVal, "data.txt"))) {
+					writer.println(name + " version " + i);
+				}
+				git.add().addFilepattern("data.txt").call();
+				git.commit().setMessage("commit " + i).setAuthor("test", "test@example.org")
+						.setCommitter("test", "test@example.org").call();
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Set the modification time of every file in a directory tree to a month ago.
+	 *
+	 * @param dir	directory to process
+	 */
+	private static void ageFiles(File dir) {
+		long time = System.currentTimeMillis() - 30L * 24 * 3600 * 1000;
+		for (File file : dir.listFiles()) {
+			if (file.isDirectory())
+				ageFiles(file);
+			else
+				file.setLastModified(time);
+		}
+	}
+
+	@Test
+	void testPullComplete() throws Exception {
+		File sub1 = makeUpstream("sub1", 1);
+		File sub2 = makeUpstream("sub2", 1);
+		File top = makeUpstream("top", 1);
+		try (Git git = Git.open(top)) {
+			for (File sub : List.of(sub2, sub1))
+				git.submoduleAdd().setPath(sub.getName()).setURI(sub.toURI().toString()).call().close();
+			git.commit().setMessage("add submodules").setAuthor("test", "test@example.org")
+					.setCommitter("test", "test@example.org").call();
+		}
+		File projDir = new File(this.workDir, "cb/top");
+		GitRepo.cloneRepo(top.toURI().toString(), projDir, "origin", null, 0, false, NullProgressMonitor.INSTANCE);
+		try (GitRepo repo = new GitRepo(projDir)) {
+			assertThat(repo.initSubmodules("origin", NullProgressMonitor.INSTANCE), equalTo(2));
+			// The threaded pull reports the parent first and then the submodules in name order,
+			// just like the serial pull.
+			Map<String, PullResult> serial = repo.pullComplete("origin", null);
+			assertThat(serial.keySet(), contains(GitRepo.PARENT_MODULE, "sub1", "sub2"));
+			for (PullResult result : serial.values())
+				assertThat(result.isSuccessful(), equalTo(true));
+			Map<String, PullResult> threaded = repo.pullComplete("origin", null, 4);
+			assertThat(threaded.keySet(), contains(GitRepo.PARENT_MODULE, "sub1", "sub2"));
+			for (PullResult result : threaded.values())
+				assertThat(result.getFetchResult(), notNullValue());
+			Map<String, String> summary = repo.pullCompleteSummary("origin", null);
+			assertThat(summary.keySet(), contains(GitRepo.PARENT_MODULE, "sub1", "sub2"));
+			// Update one submodule upstream and remove the other. The failure only affects its own result.
+			try (Git git = Git.open(sub1)) {
+				try (PrintWriter writer = new PrintWriter(new File(sub1, "data.txt"))) {
+					writer.println("sub1 version 1");
+				}
+				git.add().addFilepattern("data.txt").call();
+				git.commit().setMessage("commit 1").setAuthor("test", "test@example.org")
+						.setCommitter("test", "test@example.org").call();
+			}
+			FileUtils.deleteDirectory(sub2);
+			threaded = repo.pullComplete("origin", null, 4);
+			assertThat(threaded.keySet(), contains(GitRepo.PARENT_MODULE, "sub1"));
+			assertThat(threaded.get("sub1").getFetchResult().getTrackingRefUpdate("refs/remotes/origin/master"),
+					notNullValue());
+			assertThat(threaded.get(GitRepo.PARENT_MODULE).getMergeResult().getMergeStatus(),
+					equalTo(MergeStatus.ALREADY_UP_TO_DATE));
+			// Now everything is current. The summary form reports the descriptions of the same results.
+			threaded = repo.pullComplete("origin", null, 4);
+			summary = repo.pullCompleteSummary("origin", null, 4);
+			assertThat(summary.keySet(), contains(GitRepo.PARENT_MODULE, "sub1"));
+			for (Map.Entry<String, String> entry : summary.entrySet())
+				assertThat(entry.getValue(), equalTo(GitRepo.resultMessageFor(threaded.get(entry.getKey()))));
+			assertThat(FileUtils.readFileToString(new File(projDir, "sub1/data.txt"), StandardCharsets.UTF_8),
+					equalTo("sub1 version 1\n"));
+		}
+	}
+
+	@Test
+	void testVerify() throws Exception {
+		File up = makeUpstream("damaged", 3);
+		try (GitRepo repo = new GitRepo(up)) {
+			assertThat(repo.verify(true), empty());
+		}
+		// Leave a lock file behind.
+		File lockFile = new File(up, ".git/refs/heads/master.lock");
+		lockFile.createNewFile();
+		try (GitRepo repo = new GitRepo(up)) {
+			List<String> problems = repo.verify(false);
+			assertThat(problems.size(), equalTo(1));
+			assertThat(problems.get(0), containsString("master.lock"));
+		}
+		lockFile.delete();
+		// Corrupt a loose object. Only the deep check will find it.
+		File objDir = new File(up, ".git/objects");
+		File victim = null;
+		for (File sub : objDir.listFiles()) {
+			if (sub.getName().length() == 2 && victim == null)
+				victim = sub.listFiles()[0];
+		}
+		victim.setWritable(true);
+		try (PrintWriter writer = new PrintWriter(victim)) {
+			writer.println("garbage");
+		}
+		try (GitRepo repo = new GitRepo(up)) {
+			assertThat(repo.verify(false), empty());
+			List<String> problems = repo.verify(true);
+			assertThat(problems.size(), equalTo(1));
+			assertThat(problems.get(0), containsString("damaged"));
+		}
+	}
+
+	@Test
+	void testVerifyPacks() throws Exception {
+		File up = makeUpstream("packed", 3);
+		try (Git git = Git.open(up)) {
+			git.gc().call();
+		}
+		try (GitRepo repo = new GitRepo(up)) {
+			assertThat(repo.verify(true), empty());
+		}
+		// Change the last byte of the pack's trailer, so it no longer matches the index.
+		File packDir = new File(up, ".git/objects/pack");
+		File packFile = packDir.listFiles((d, n) -> n.endsWith(".pack"))[0];
+		byte[] packData = Files.readAllBytes(packFile.toPath());
+		packData[packData.length - 1] ^= 0xFF;
+		packFile.setWritable(true);
+		Files.write(packFile.toPath(), packData);
+		try (GitRepo repo = new GitRepo(up)) {
+			List<String> problems = repo.verify(true);
+			assertThat(problems, hasItem("pack " + packFile.getName() + " checksum does not match its index"));
+		}
+	}
+
+	@Test
+	void testCollectGarbage() throws Exception {
+		File up = makeUpstream("collect", 3);
+		try (RepoPool pool = new RepoPool(4)) {
+			GitRepo.setRepoPool(pool);
+			try (GitRepo repo = new GitRepo(up)) {
+				Repository shared = repo.getRepository();
+				StoredConfig config = shared.getConfig();
+				config.setInt(ConfigConstants.CONFIG_PACK_SECTION, null, ConfigConstants.CONFIG_KEY_THREADS, 3);
+				Properties stats = repo.collectGarbage(1, NullProgressMonitor.INSTANCE);
+				assertThat(stats.get("numberOfLooseObjects"), equalTo(0L));
+				assertThat(new File(up, ".git/objects/info/commit-graph").isFile(), equalTo(true));
+				// The pooled repo's configuration is the same as before the collection.
+				assertThat(config.getInt(ConfigConstants.CONFIG_PACK_SECTION, ConfigConstants.CONFIG_KEY_THREADS, 0),
+						equalTo(3));
+				assertThat(config.getString(ConfigConstants.CONFIG_GC_SECTION, null,
+						ConfigConstants.CONFIG_KEY_WRITE_COMMIT_GRAPH), nullValue());
+			}
+		} finally {
+			GitRepo.setRepoPool(null);
+		}
+	}
+
+	@Test
+	void testRepoPool() throws Exception {
+		File up1 = makeUpstream("one", 1);
+		File up2 = makeUpstream("two", 1);
+		try (RepoPool pool = new RepoPool(1)) {
+			GitRepo.setRepoPool(pool);
+			try (GitRepo repo1 = new GitRepo(up1)) {
+				try (GitRepo again = new GitRepo(up1)) {
+					assertThat(pool.getHits(), equalTo(1));
+				}
+				// Opening a second repo evicts the first, but it stays usable until closed.
+				try (GitRepo repo2 = new GitRepo(up2)) {
+					assertThat(pool.size(), equalTo(1));
+					assertThat(repo1.verify(true), empty());
+					assertThat(repo2.verify(true), empty());
+				}
+			}
+			try (GitRepo repo1 = new GitRepo(up1)) {
+				assertThat(pool.getMisses(), equalTo(3));
+				assertThat(repo1.verify(true), empty());
+			}
+		} finally {
+			GitRepo.setRepoPool(null);
+		}
+	}
+
+	@Test
+	void testChanges() throws Exception {
+		File up = makeUpstream("hist", 3);
+		ChangeCheckpoint checkpoint = ChangeCheckpoint.load(new File(this.workDir, ChangeCheckpoint.CHECKPOINT_NAME));
+		assertThat(checkpoint.get(up), nullValue());
+		try (GitRepo repo = new GitRepo(up)) {
+			ObjectId head = repo.getHeadId();
+			assertThat(repo.findNewCommits(head, null, 2).size(), equalTo(2));
+			checkpoint.update(up, head);
+			checkpoint.save();
+		}
+		try (Git git = Git.open(up)) {
+			for (int i = 0; i < 2; i++)
+				git.commit().setMessage("later " + i).setAuthor("other", "other@example.org")
+						.setCommitter("other", "other@example.org").setAllowEmpty(true).call();
+		}
+		checkpoint = ChangeCheckpoint.load(new File(this.workDir, ChangeCheckpoint.CHECKPOINT_NAME));
+		try (GitRepo repo = new GitRepo(up)) {
+			List<CommitInfo> commits = repo.findNewCommits(repo.getHeadId(), checkpoint.get(up), 100);
+			assertThat(commits.stream().map(x -> x.getSubject()).toList(), contains("later 1", "later 0"));
+			assertThat(commits.get(0).getAuthor(), equalTo("other"));
+		}
+	}
+
+	@Test
+	void testLocalChanges() throws Exception {
+		File up = makeUpstream("work", 2);
+		try (GitRepo repo = new GitRepo(up)) {
+			assertThat(repo.findLocalChanges(true), empty());
+			// Change the file without changing its size.
+			try (PrintWriter writer = new PrintWriter(new File(up, "data.txt"))) {
+				writer.println("work VERSION 1");
+			}
+			try (PrintWriter writer = new PrintWriter(new File(up, ".gitignore"))) {
+				writer.println("*.log");
+			}
+			new File(up, "junk.log").createNewFile();
+			File newDir = new File(up, "newDir");
+			newDir.mkdir();
+			new File(newDir, "inner.txt").createNewFile();
+			assertThat(repo.findLocalChanges(true), containsInAnyOrder("M data.txt", "? .gitignore", "? newDir/"));
+			assertThat(repo.findLocalChanges(false), contains("M data.txt"));
+			// Stash the change and restore it.
+			assertThat(repo.stashChanges("test stash"), equalTo(true));
+			assertThat(repo.findLocalChanges(false), empty());
+			assertThat(repo.restoreStash(), equalTo(true));
+			assertThat(repo.findLocalChanges(false), contains("M data.txt"));
+		}
+	}
+
+	/**
+	 * Compute the memory in use after a full garbage collection. We keep asking for a collection
+	 * until a freshly-dropped object shows up in a reference queue, since a single request is only
+	 * a hint to the JVM.
+	 *
+	 * @return the number of bytes of heap in use
+	 *
+	 * @throws InterruptedException
+	 */
+	private static long usedMemory() throws InterruptedException {
+		ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+		WeakReference<Object> sentinel = new WeakReference<Object>(new Object(), queue);
+		Reference<?> found = null;
+		for (int i = 0; i < 50 && found == null; i++) {
+			System.gc();
+			found = queue.remove(100);
+		}
+		assertThat(found, sameInstance(sentinel));
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	@Test
+	void testBoundedMemory() throws Exception {
+		// Build a synthetic code base whose repos hold far more data than the memory ceiling.
+		final int repoCount = 40;
+		final long ceiling = 16L * 1024 * 1024;
+		File baseDir = new File(this.workDir, "cb");
+		Random rand = new Random(1234);
+		byte[] buffer = new byte[1024 * 1024];
+		for (int i = 0; i < repoCount; i++) {
+			File projDir = new File(baseDir, String.format("r%02d", i));
+			try (Git git = Git.init().setDirectory(projDir).setInitialBranch("master").call()) {
+				rand.nextBytes(buffer);
+				Files.write(new File(projDir, "data.bin").toPath(), buffer);
+				git.add().addFilepattern("data.bin").call();
+				git.commit().setMessage("data").setAuthor("test", "test@example.org")
+						.setCommitter("test", "test@example.org").call();
+			}
+		}
+		// Process the code base the way stream mode does: no repo pool and no submodule cache.
+		CodeBase codeBase = new CodeBase(baseDir);
+		codeBase.setModuleCaching(false);
+		ReferenceQueue<Repository> queue = new ReferenceQueue<Repository>();
+		List<WeakReference<Repository>> released = new ArrayList<WeakReference<Repository>>(repoCount);
+		long before = usedMemory();
+		Iterator<File> iter = codeBase.iterator();
+		while (iter.hasNext()) {
+			try (GitRepo repo = new GitRepo(iter.next())) {
+				assertThat(repo.verify(true), empty());
+				released.add(new WeakReference<Repository>(repo.getRepository(), queue));
+			}
+		}
+		assertThat(released.size(), equalTo(repoCount));
+		// Every repo must be collectable once it is closed.
+		int count = 0;
+		for (int i = 0; i < 50 && count < repoCount; i++) {
+			System.gc();
+			for (Reference<?> ref = queue.remove(100); ref != null; ref = queue.poll())
+				count++;
+		}
+		assertThat(count, equalTo(repoCount));
+		assertThat(usedMemory() - before, lessThan(ceiling));
+		// Now run a real command in stream mode. It must not hold on to the repos either.
+		VerifyProcessor processor = new VerifyProcessor();
+		StringWriter report = new StringWriter();
+		processor.setReportWriter(new PrintWriter(report));
+		assertThat(processor.parseCommand(new String[] { "--base", baseDir.getPath(), "--stream", "--deep" }),
+				equalTo(true));
+		before = usedMemory();
+		processor.run();
+		assertThat(usedMemory() - before, lessThan(ceiling));
+		assertThat(report.toString(), containsString("Verify summary for " + repoCount + " repos (0 failed):"));
+	}
+
+	@Test
+	void testMirror() throws Exception {
+		File up = makeUpstream("shared", 2);
+		String url = up.getAbsolutePath();
+		MirrorCache cache = new MirrorCache(new File(this.workDir, "mirrors"));
+		File mirrorDir = cache.getMirrorDir(url);
+		assertThat(mirrorDir.getName(), equalTo("shared.git"));
+		assertThat(mirrorDir.getPath(), startsWith(cache.getCacheDir().getPath()));
+		assertThat(cache.getMirrorDir("https://github.com/SEEDtk/./kernel"),
+				equalTo(new File(cache.getCacheDir(), "github.com/SEEDtk/kernel.git")));
+		// Segments that change the repo named must not be dropped, and must stay in the cache.
+		File dotDir = cache.getMirrorDir("https://github.com/SEEDtk/../kernel");
+		assertThat(dotDir, equalTo(new File(cache.getCacheDir(), "github.com/SEEDtk/%2E%2E/kernel.git")));
+		assertThat(dotDir.toPath().normalize().startsWith(cache.getCacheDir().toPath()), equalTo(true));
+		assertThat(cache.getMirrorDir("https://github.com/a/../b"), not(equalTo(cache.getMirrorDir("https://github.com/a/b"))));
+		assertThat(cache.getMirrorDir("ssh://host/~alice/x.git"), not(equalTo(cache.getMirrorDir("ssh://host/~bob/x.git"))));
+		assertThat(cache.getMirrorDir("ssh://host/~alice/x.git"), not(equalTo(cache.getMirrorDir("ssh://host/x.git"))));
+		assertThat(GitRepo.updateMirror(url, mirrorDir, NullProgressMonitor.INSTANCE), equalTo("CREATED"));
+		assertThat(GitRepo.updateMirror(url, mirrorDir, NullProgressMonitor.INSTANCE), equalTo("UP-TO-DATE"));
+		// Link two code bases to the mirror, one of them sharing objects.
+		File proj1 = new File(this.workDir, "cb1/shared");
+		File proj2 = new File(this.workDir, "cb2/shared");
+		GitRepo.cloneRepo(url, proj1, "origin", null, 0, false, NullProgressMonitor.INSTANCE);
+		GitRepo.cloneRepo(url, proj2, "origin", null, 0, false, NullProgressMonitor.INSTANCE);
+		try (GitRepo repo1 = new GitRepo(proj1); GitRepo repo2 = new GitRepo(proj2)) {
+			assertThat(cache.findUpstream(repo1, "origin"), equalTo(url));
+			assertThat(repo1.linkMirror("origin", mirrorDir, false), equalTo(true));
+			assertThat(repo2.linkMirror("origin", mirrorDir, true), equalTo(true));
+			assertThat(repo1.linkMirror("origin", mirrorDir, false), equalTo(false));
+			assertThat(repo1.getRemoteUrl("origin"), equalTo(mirrorDir.getAbsolutePath()));
+			assertThat(repo1.getPushUrl("origin"), equalTo(url));
+			assertThat(cache.findUpstream(repo1, "origin"), equalTo(url));
+		}
+		File alternates = new File(proj2, ".git/objects/info/alternates");
+		assertThat(Files.readAllLines(alternates.toPath()), contains(new File(mirrorDir, "objects").getPath()));
+		// A new upstream commit reaches the code bases through the mirror.
+		try (Git git = Git.open(up)) {
+			try (PrintWriter writer = new PrintWriter(new File(up, "data.txt"))) {
+				writer.println("shared version 3");
+			}
+			git.commit().setAll(true).setMessage("commit 3").setAuthor("test", "test@example.org")
+					.setCommitter("test", "test@example.org").call();
+		}
+		ObjectId upHead;
+		try (GitRepo upRepo = new GitRepo(up)) {
+			upHead = upRepo.getHeadId();
+		}
+		assertThat(GitRepo.updateMirror(url, mirrorDir, NullProgressMonitor.INSTANCE), not(equalTo("UP-TO-DATE")));
+		for (File proj : List.of(proj1, proj2)) {
+			try (GitRepo repo = new GitRepo(proj)) {
+				repo.pull("origin", null);
+				assertThat(repo.getHeadId(), equalTo(upHead));
+				assertThat(repo.verify(true), empty());
+			}
+		}
+	}
+
+	@Test
+	void testMirrorProtection() throws Exception {
+		File up = makeUpstream("rewritten", 2);
+		String url = up.getAbsolutePath();
+		MirrorCache cache = new MirrorCache(new File(this.workDir, "mirrors"));
+		File mirrorDir = cache.getMirrorDir(url);
+		assertThat(GitRepo.updateMirror(url, mirrorDir, NullProgressMonitor.INSTANCE), equalTo("CREATED"));
+		try (Repository mirror = new FileRepository(mirrorDir)) {
+			assertThat(mirror.getConfig().getInt(ConfigConstants.CONFIG_GC_SECTION, ConfigConstants.CONFIG_KEY_AUTO, -1),
+					equalTo(0));
+		}
+		// Create a code base repo that borrows objects from the mirror.
+		File proj = new File(this.workDir, "cb/rewritten");
+		GitRepo.cloneRepo(url, proj, "origin", null, 0, false, NullProgressMonitor.INSTANCE);
+		try (GitRepo repo = new GitRepo(proj)) {
+			assertThat(repo.linkMirror("origin", mirrorDir, true), equalTo(true));
+		}
+		// Add an upstream commit. The code base repo gets it only through the mirror.
+		try (Git git = Git.open(up)) {
+			try (PrintWriter writer = new PrintWriter(new File(up, "data.txt"))) {
+				writer.println("rewritten version 2");
+			}
+			git.commit().setAll(true).setMessage("commit 2").setAuthor("test", "test@example.org")
+					.setCommitter("test", "test@example.org").call();
+		}
+		GitRepo.updateMirror(url, mirrorDir, NullProgressMonitor.INSTANCE);
+		ObjectId borrowed;
+		try (GitRepo repo = new GitRepo(proj)) {
+			repo.pull("origin", null);
+			borrowed = repo.getHeadId();
+		}
+		// Rewrite the upstream history, so that the borrowed commit is no longer reachable in the
+		// mirror.
+		try (Git git = Git.open(up)) {
+			git.reset().setMode(ResetType.HARD).setRef("HEAD~1").call();
+			try (PrintWriter writer = new PrintWriter(new File(up, "data.txt"))) {
+				writer.println("rewritten version 2a");
+			}
+			git.commit().setAll(true).setMessage("commit 2a").setAuthor("test", "test@example.org")
+					.setCommitter("test", "test@example.org").call();
+		}
+		assertThat(GitRepo.updateMirror(url, mirrorDir, NullProgressMonitor.INSTANCE), not(equalTo("UP-TO-DATE")));
+		// Collect the mirror's garbage twice, aging its objects past the default expiration each
+		// time. The first collection loosens the unreachable objects, and the second prunes them
+		// unless the mirror is protected.
+		try (Git git = Git.open(mirrorDir)) {
+			for (int i = 0; i < 2; i++) {
+				ageFiles(new File(mirrorDir, "objects"));
+				git.gc().call();
+			}
+		}
+		// JGit keeps the repositories opened as alternates in a global cache, which would hide the
+		// loss of an object.
+		RepositoryCache.clear();
+		try (GitRepo repo = new GitRepo(proj)) {
+			assertThat(repo.getHeadId(), equalTo(borrowed));
+			assertThat(repo.verify(true), empty());
+		}
+	}
+
+}
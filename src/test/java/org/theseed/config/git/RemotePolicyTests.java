@@ -0,0 +1,265 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jgit.api.errors.InvalidRemoteException;
+import org.eclipse.jgit.api.errors.TransportException;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * These tests check the remote policy against a local stand-in for a git server. The stand-in
+ * counts the requests it receives, and depending on the path, it stalls, fails with a server
+ * error, fails a set number of times and then reports the repo is missing, simply reports
+ * the repo is missing, or reports the repo is missing after a short delay while tracking how
+ * many requests are active for each host.
+ *
+ * @author Bruce Parrello
+ *
+ */
+class RemotePolicyTests {
+
+	/** temporary working directory */
+	@TempDir
+	File workDir;
+
+	/**
+	 * This object is a stand-in git server. It installs a transport pool with the policy under
+	 * test, and removes the pool when it is closed.
+	 */
+	private static class StandIn implements AutoCloseable {
+
+		/** HTTP server */
+		private HttpServer server;
+		/** request handler threads */
+		private ExecutorService handlers;
+		/** number of requests received */
+		private AtomicInteger requests;
+		/** number of server errors left before the flaky path reports a missing repo */
+		private AtomicInteger flakyErrors;
+		/** map of host names to the number of active requests on the slow path */
+		private Map<String, AtomicInteger> active;
+		/** map of host names to the highest number of requests active at once on the slow path */
+		private Map<String, Integer> peaks;
+
+		/**
+		 * Start the stand-in server.
+		 *
+		 * @param policy	remote policy to use
+		 *
+		 * @throws IOException
+		 */
+		private StandIn(RemotePolicy policy) throws IOException {
+			this(policy, 4);
+		}
+
+		/**
+		 * Start the stand-in server.
+		 *
+		 * @param policy		remote policy to use
+		 * @param hostLimit		maximum number of concurrent requests per host
+		 *
+		 * @throws IOException
+		 */
+		private StandIn(RemotePolicy policy, int hostLimit) throws IOException {
+			this.requests = new AtomicInteger();
+			this.flakyErrors = new AtomicInteger();
+			this.active = new ConcurrentHashMap<String, AtomicInteger>();
+			this.peaks = new ConcurrentHashMap<String, Integer>();
+			this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+			this.server.createContext("/stall", x -> {
+				this.requests.incrementAndGet();
+				try {
+					Thread.sleep(30000);
+				} catch (InterruptedException e) {
+					// Here the server is shutting down.
+				}
+				x.close();
+			});
+			this.server.createContext("/fail", x -> {
+				this.requests.incrementAndGet();
+				respond(x, 503);
+			});
+			this.server.createContext("/flaky", x -> {
+				this.requests.incrementAndGet();
+				respond(x, (this.flakyErrors.getAndDecrement() > 0 ? 502 : 404));
+			});
+			this.server.createContext("/missing", x -> {
+				this.requests.incrementAndGet();
+				respond(x, 404);
+			});
+			this.server.createContext("/slow", x -> {
+				this.requests.incrementAndGet();
+				String host = x.getRequestHeaders().getFirst("Host");
+				AtomicInteger counter = this.active.computeIfAbsent(host, k -> new AtomicInteger());
+				int count = counter.incrementAndGet();
+				this.peaks.merge(host, count, Math::max);
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					// Here the server is shutting down.
+				}
+				counter.decrementAndGet();
+				respond(x, 404);
+			});
+			this.handlers = Executors.newCachedThreadPool();
+			this.server.setExecutor(this.handlers);
+			this.server.start();
+			GitRepo.setTransportPool(new TransportPool(hostLimit, policy));
+		}
+
+		/**
+		 * Send an empty response with the specified status.
+		 *
+		 * @param exchange	HTTP exchange to answer
+		 * @param status	status code to send
+		 *
+		 * @throws IOException
+		 */
+		private static void respond(HttpExchange exchange, int status) throws IOException {
+			exchange.sendResponseHeaders(status, -1);
+			exchange.close();
+		}
+
+		/**
+		 * @return the URL of a repo on the stand-in server
+		 *
+		 * @param host	host name to use for the server
+		 * @param path	path to the repo
+		 */
+		private String url(String host, String path) {
+			return "http://" + host + ":" + this.server.getAddress().getPort() + path;
+		}
+
+		@Override
+		public void close() {
+			GitRepo.setTransportPool(null);
+			this.server.stop(0);
+			this.handlers.shutdownNow();
+		}
+
+	}
+
+	/**
+	 * Clone a repo from the stand-in server.
+	 *
+	 * @param url	URL of the repo to clone
+	 *
+	 * @throws Exception
+	 */
+	private void cloneFrom(String url) throws Exception {
+		this.cloneFrom(url, "clone");
+	}
+
+	/**
+	 * Clone a repo from the stand-in server into a named directory.
+	 *
+	 * @param url		URL of the repo to clone
+	 * @param name		name of the target directory
+	 *
+	 * @throws Exception
+	 */
+	private void cloneFrom(String url, String name) throws Exception {
+		GitRepo.cloneRepo(url, new File(this.workDir, name), "origin", null, 0, false, NullProgressMonitor.INSTANCE);
+	}
+
+	@Test
+	void testTimeout() throws Exception {
+		try (StandIn server = new StandIn(new RemotePolicy(1, 1, 10, 0, 1000))) {
+			long start = System.currentTimeMillis();
+			TransportException e = assertThrows(TransportException.class,
+					() -> this.cloneFrom(server.url("127.0.0.1", "/stall/x.git")));
+			long elapsed = System.currentTimeMillis() - start;
+			assertThat(RemotePolicy.isTransient(e), equalTo(true));
+			assertThat(server.requests.get(), equalTo(2));
+			assertThat(elapsed, lessThan(20000L));
+		}
+	}
+
+	@Test
+	void testRetry() throws Exception {
+		try (StandIn server = new StandIn(new RemotePolicy(5, 5, 10, 0, 1000))) {
+			// Two server errors are retried, and then the missing repo stops the retries.
+			server.flakyErrors.set(2);
+			assertThrows(InvalidRemoteException.class, () -> this.cloneFrom(server.url("127.0.0.1", "/flaky/x.git")));
+			assertThat(server.requests.get(), equalTo(3));
+			// A missing repo is never retried.
+			server.requests.set(0);
+			assertThrows(InvalidRemoteException.class, () -> this.cloneFrom(server.url("127.0.0.1", "/missing/x.git")));
+			assertThat(server.requests.get(), equalTo(1));
+			// The retries run out on a server that keeps failing.
+			server.requests.set(0);
+			assertThrows(TransportException.class, () -> this.cloneFrom(server.url("127.0.0.1", "/fail/x.git")));
+			assertThat(server.requests.get(), equalTo(6));
+		}
+	}
+
+	@Test
+	void testBreaker() throws Exception {
+		try (StandIn server = new StandIn(new RemotePolicy(5, 0, 10, 2, 500))) {
+			String failUrl = server.url("127.0.0.1", "/fail/x.git");
+			for (int i = 0; i < 5; i++)
+				assertThrows(TransportException.class, () -> this.cloneFrom(failUrl));
+			// The circuit opened after two failures, so the other three never reached the server.
+			assertThat(server.requests.get(), equalTo(2));
+			// The same server under another host name has its own circuit.
+			assertThrows(InvalidRemoteException.class, () -> this.cloneFrom(server.url("localhost", "/missing/x.git")));
+			assertThat(server.requests.get(), equalTo(3));
+			// After the cooling-off period, one trial is let through. It fails, so the circuit reopens.
+			Thread.sleep(600);
+			assertThrows(TransportException.class, () -> this.cloneFrom(failUrl));
+			assertThrows(TransportException.class, () -> this.cloneFrom(failUrl));
+			assertThat(server.requests.get(), equalTo(4));
+		}
+	}
+
+	@Test
+	void testHostLimit() throws Exception {
+		final int perHost = 6;
+		try (StandIn server = new StandIn(new RemotePolicy(5, 0, 10, 0, 1000), 2)) {
+			// Send six requests to each of two host names at once.
+			ExecutorService pool = Executors.newFixedThreadPool(perHost * 2);
+			try {
+				List<Future<?>> futures = new ArrayList<Future<?>>();
+				for (int i = 0; i < perHost; i++) {
+					for (String host : List.of("127.0.0.1", "localhost")) {
+						String name = host + i;
+						futures.add(pool.submit(() -> assertThrows(InvalidRemoteException.class,
+								() -> this.cloneFrom(server.url(host, "/slow/x.git"), name))));
+					}
+				}
+				for (Future<?> future : futures)
+					future.get();
+			} finally {
+				pool.shutdown();
+			}
+			assertThat(server.requests.get(), equalTo(perHost * 2));
+			// Each host name gets its own permits, and neither one ever has more than two requests active.
+			assertThat(server.peaks.size(), equalTo(2));
+			for (int peak : server.peaks.values())
+				assertThat(peak, equalTo(2));
+		}
+	}
+
+}
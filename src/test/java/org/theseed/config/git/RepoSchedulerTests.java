@@ -0,0 +1,102 @@
+/**
+ *
+ */
+package org.theseed.config.git;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * These tests check the repo scheduler and the repo timings. The scheduled operations do not
+ * touch any repos; they only record the order in which they were called.
+ *
+ * @author Bruce Parrello
+ *
+ */
+class RepoSchedulerTests {
+
+	/** temporary state directory */
+	@TempDir
+	File stateDir;
+
+	@Test
+	void testOrder() throws InterruptedException {
+		File a = new File("a");
+		File b = new File("b");
+		File bs = new File(b, "s");
+		File c = new File("c");
+		File cs = new File(c, "s");
+		RepoScheduler scheduler = new RepoScheduler(4);
+		scheduler.add(a, null, null, 10);
+		scheduler.add(b, null, null, 100);
+		scheduler.add(bs, b, null, 5);
+		scheduler.add(c, null, null, 50);
+		scheduler.add(cs, c, null, 200);
+		assertThat(scheduler.size(), equalTo(5));
+		List<File> started = Collections.synchronizedList(new ArrayList<File>());
+		List<RepoSummary> results = scheduler.run(1, x -> {
+			started.add(x);
+			return new RepoSummary(x, "OK");
+		});
+		// "c" has the longest critical path, and "s" is released when "c" finishes.
+		assertThat(started, contains(c, cs, b, a, bs));
+		// The results are in code-base order.
+		assertThat(results.stream().map(x -> x.getProjDir()).toList(), contains(a, b, bs, c, cs));
+	}
+
+	@Test
+	void testHostLimit() throws InterruptedException {
+		RepoScheduler scheduler = new RepoScheduler(2);
+		for (int i = 0; i < 12; i++)
+			scheduler.add(new File("p" + i), null, (i % 3 == 0 ? "other" : "busy"), 10);
+		AtomicInteger busyCount = new AtomicInteger();
+		AtomicInteger busyMax = new AtomicInteger();
+		List<RepoSummary> results = scheduler.run(6, x -> {
+			int n = Integer.parseInt(x.getName().substring(1));
+			boolean busy = (n % 3 != 0);
+			if (busy)
+				busyMax.accumulateAndGet(busyCount.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (busy)
+				busyCount.decrementAndGet();
+			if (n == 4)
+				throw new IllegalStateException("failure");
+			return new RepoSummary(x, "OK");
+		});
+		assertThat(busyMax.get(), lessThanOrEqualTo(2));
+		assertThat(results.size(), equalTo(12));
+		assertThat(results.get(4).isFailed(), equalTo(true));
+		assertThat(results.get(5).isFailed(), equalTo(false));
+	}
+
+	@Test
+	void testTimings() throws IOException {
+		File timingFile = new File(this.stateDir, RepoTimings.TIMING_NAME);
+		RepoTimings timings = RepoTimings.load(timingFile);
+		File proj = new File(this.stateDir, "proj");
+		assertThat(timings.estimate(proj, "pull"), equalTo(-1L));
+		timings.record(proj, "pull", 1000);
+		timings.record(proj, "pull", 2000);
+		timings.record(proj, "verify", 30);
+		timings.save();
+		timings = RepoTimings.load(timingFile);
+		assertThat(timings.size(), equalTo(2));
+		assertThat(timings.estimate(proj, "pull"), equalTo(1500L));
+		assertThat(timings.estimate(proj, "verify"), equalTo(30L));
+	}
+
+}